@@ -378,6 +378,19 @@ public interface ServicesAPI {
          */
         interface ADMIN extends PluginAPI {
 
+            /**
+             * POST endpoint to notify the runtime of a changed {@link
+             * org.integratedmodelling.klab.api.services.resources.ResourceSet} so that it can drop
+             * any cached resolution affected by it.
+             */
+            String RESOURCES_CHANGED = "/resourcesChanged";
+
+            /**
+             * GET endpoint returning the test cases built from runtime exceptions as a map of case
+             * class to source code. A <code>deleteExisting</code> parameter deletes them after
+             * sending.
+             */
+            String EXCEPTION_TESTCASES = "/exceptionTestcases";
         }
 
         String GET_SESSION_INFO = "/sessions";
@@ -68,6 +68,11 @@ public enum Configuration {
     public static final String KLAB_USE_IN_MEMORY_DATABASE = "klab.database.inmemory";
     public static final String KLAB_PARALLELIZE_CONTEXTUALIZATION = "klab.computation.parallel";
     public static final String KLAB_USE_IN_MEMORY_STORAGE = "klab.storage.inmemory";
+    /**
+     * If true, messages to the broker are sent in the binary format, batching observation lifecycle
+     * events. Receivers understand both formats. Default false.
+     */
+    public static final String KLAB_BINARY_MESSAGING = "klab.messaging.binary";
     public static final String CERTFILE_PROPERTY = "klab.certificate";
     public static final String KLAB_CONNECTION_TIMEOUT = "klab.connection.timeout";
     public static final String KLAB_PROJECT_BLACKLIST_PROPERTY = "klab.project.blacklist";
@@ -394,6 +399,10 @@ public enum Configuration {
         return getProperties().getProperty(KLAB_USE_IN_MEMORY_DATABASE, "true").equals("true");
     }
 
+    public boolean useBinaryMessaging() {
+        return getProperties().getProperty(KLAB_BINARY_MESSAGING, "false").equals("true");
+    }
+
     public long getResourceRecheckIntervalMs() {
         // TODO tie to engine configuration property. This is 10 minutes
         return 10 * 60 * 1000;
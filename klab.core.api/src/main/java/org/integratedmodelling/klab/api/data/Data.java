@@ -141,23 +141,75 @@ public interface Data {
   /**
    * A filler is a tag interface for an object that can be used to add data to a buffer along a
    * given geometry and filling curve. All subclasses of Filler expose an add() method using
-   * primitive data types to avoid boxing.
+   * primitive data types to avoid boxing. Numeric fillers also accept bulk input from arrays and
+   * NIO buffers, which should be preferred when ingesting large data.
    */
   interface Filler {}
 
   @FunctionalInterface
   interface IntFiller extends Filler {
     void add(int value);
+
+    /**
+     * Add <code>len</code> values from the passed array starting at <code>from</code>, in fill
+     * curve order. Implementations should override the default to write contiguous runs directly.
+     */
+    default void add(int[] values, int from, int len) {
+      for (int i = from; i < from + len; i++) {
+        add(values[i]);
+      }
+    }
+
+    /** Add all the remaining values in the passed buffer, in fill curve order. */
+    default void fill(java.nio.IntBuffer buffer) {
+      while (buffer.hasRemaining()) {
+        add(buffer.get());
+      }
+    }
   }
 
   @FunctionalInterface
   interface LongFiller extends Filler {
     void add(long value);
+
+    /**
+     * Add <code>len</code> values from the passed array starting at <code>from</code>, in fill
+     * curve order. Implementations should override the default to write contiguous runs directly.
+     */
+    default void add(long[] values, int from, int len) {
+      for (int i = from; i < from + len; i++) {
+        add(values[i]);
+      }
+    }
+
+    /** Add all the remaining values in the passed buffer, in fill curve order. */
+    default void fill(java.nio.LongBuffer buffer) {
+      while (buffer.hasRemaining()) {
+        add(buffer.get());
+      }
+    }
   }
 
   @FunctionalInterface
   interface FloatFiller extends Filler {
     void add(float value);
+
+    /**
+     * Add <code>len</code> values from the passed array starting at <code>from</code>, in fill
+     * curve order. Implementations should override the default to write contiguous runs directly.
+     */
+    default void add(float[] values, int from, int len) {
+      for (int i = from; i < from + len; i++) {
+        add(values[i]);
+      }
+    }
+
+    /** Add all the remaining values in the passed buffer, in fill curve order. */
+    default void fill(java.nio.FloatBuffer buffer) {
+      while (buffer.hasRemaining()) {
+        add(buffer.get());
+      }
+    }
   }
 
   @FunctionalInterface
@@ -168,6 +220,23 @@ public interface Data {
   @FunctionalInterface
   interface DoubleFiller extends Filler {
     void add(double value);
+
+    /**
+     * Add <code>len</code> values from the passed array starting at <code>from</code>, in fill
+     * curve order. Implementations should override the default to write contiguous runs directly.
+     */
+    default void add(double[] values, int from, int len) {
+      for (int i = from; i < from + len; i++) {
+        add(values[i]);
+      }
+    }
+
+    /** Add all the remaining values in the passed buffer, in fill curve order. */
+    default void fill(java.nio.DoubleBuffer buffer) {
+      while (buffer.hasRemaining()) {
+        add(buffer.get());
+      }
+    }
   }
 
   @FunctionalInterface
@@ -104,6 +104,18 @@ public interface DigitalTwin {
    */
   boolean ingest(Data data, Observation target, ContextScope scope);
 
+  /**
+   * Ingest data contextualized to a tile of the target's geometry, i.e. one of the geometries
+   * obtained by splitting it, into the part of the target's storage covered by the tile. Tiles of
+   * the same target can be ingested concurrently.
+   *
+   * @param data
+   * @param target
+   * @param tile the tile geometry, whose extent offsets locate the data in the target's geometry
+   * @return
+   */
+  boolean ingest(Data data, Observation target, Geometry tile, ContextScope scope);
+
   /**
    * Dispose of all storage and data, either in memory only or also on any attached storage. Whether
    * the disposal is permanent depends on the graph database used and its configuration.
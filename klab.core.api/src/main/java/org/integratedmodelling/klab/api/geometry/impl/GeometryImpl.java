@@ -826,6 +826,9 @@ public class GeometryImpl implements Geometry {
 
     private boolean generic;
 
+    // set in the geometries produced by split(long)
+    private long[] extentOffsets;
+
     // private MultidimensionalCursor cursor;
 
     //    public double getCoverage() {
@@ -1398,7 +1401,72 @@ public class GeometryImpl implements Geometry {
 
     @Override
     public long[] getExtentOffsets() {
-        return new long[dimensions.size()];
+        return extentOffsets == null ? new long[dimensions.size()] : extentOffsets.clone();
+    }
+
+    /**
+     * Split a regular two-dimensional spatial grid into bands of whole rows containing at most
+     * <code>maxCells</code> cells each (but at least one row), in the order of the linear offsets.
+     * Each band has its own bounding box and shape and reports the linear offset of its first cell
+     * within the original spatial extent in {@link #getExtentOffsets()}. Geometries that are within
+     * the budget, have no bounding box or distribute any extent other than space are returned as
+     * they are.
+     *
+     * @param maxCells
+     * @return
+     */
+    public List<Geometry> split(long maxCells) {
+
+        var space = (DimensionImpl) dimension(Dimension.Type.SPACE);
+        if (space == null || !space.regular || space.shape == null || space.shape.size() != 2
+                || size() <= maxCells) {
+            return List.of(this);
+        }
+        for (var dimension : dimensions) {
+            if (dimension != space && dimension.size() > 1) {
+                return List.of(this);
+            }
+        }
+
+        var bbox = space.parameters.get(PARAMETER_SPACE_BOUNDINGBOX);
+        List<Double> corners = null;
+        if (bbox instanceof List<?> list) {
+            corners = list.stream().map(c -> ((Number) c).doubleValue()).toList();
+        } else if (bbox instanceof String string) {
+            corners = Utils.Data.parseList(string, Double.class);
+        }
+        if (corners == null || corners.size() != 4) {
+            return List.of(this);
+        }
+
+        // linear offsets start at the top row, see DimensionImpl.offset()
+        long nx = space.shape.get(0);
+        long ny = space.shape.get(1);
+        long rowsPerTile = Math.max(1, maxCells / nx);
+        double maxY = corners.get(3);
+        double dy = (maxY - corners.get(2)) / ny;
+        int spaceIndex = dimensions.indexOf(space);
+        List<Geometry> ret = new ArrayList<>();
+        for (long row = 0; row < ny; row += rowsPerTile) {
+            long rows = Math.min(rowsPerTile, ny - row);
+            var band = space.copy();
+            band.coverage = space.coverage;
+            band.shape = new ArrayList<>(List.of(nx, rows));
+            band.parameters.put(PARAMETER_SPACE_BOUNDINGBOX,
+                    encodeVal(new double[]{corners.get(0), corners.get(1), maxY - (row + rows) * dy,
+                                           maxY - row * dy}));
+            var tile = new GeometryImpl();
+            tile.scalar = scalar;
+            tile.granularity = granularity;
+            for (var dimension : dimensions) {
+                tile.dimensions.add(dimension == space ? band : dimension.copy());
+            }
+            tile.finishDefinition();
+            tile.extentOffsets = new long[dimensions.size()];
+            tile.extentOffsets[spaceIndex] = row * nx;
+            ret.add(tile);
+        }
+        return ret;
     }
 
     @Override
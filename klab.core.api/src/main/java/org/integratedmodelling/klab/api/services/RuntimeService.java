@@ -224,5 +224,13 @@ public interface RuntimeService extends KlabService {
      * @return
      */
     Map<String, String> getExceptionTestcases(Scope scope, boolean deleteExisting);
+
+    /**
+     * Notify the runtime of changes in the knowledge or resources it may have used, so that any
+     * cached resolution affected by them is discarded.
+     *
+     * @param changes as reported by the resources service
+     */
+    void resourcesChanged(ResourceSet changes);
   }
 }
@@ -0,0 +1,179 @@
+package org.integratedmodelling.common.authentication.scope;
+
+import com.rabbitmq.client.AMQP;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.integratedmodelling.common.utils.Utils;
+import org.integratedmodelling.klab.api.exceptions.KlabIOException;
+import org.integratedmodelling.klab.api.services.runtime.Message;
+import org.integratedmodelling.klab.api.services.runtime.impl.MessageImpl;
+
+/**
+ * Wire formats for the messages exchanged through the broker. JSON sends each message as its own
+ * document. The binary format sends a batch of one or more messages in an Avro array, with the
+ * same naming conventions as the records in {@code klabdata.avdl}; the message envelope is binary
+ * and only the payload, whose type is open, remains JSON. The format is stated in the content type
+ * of each delivery, so receivers understand both regardless of their own setting.
+ */
+public final class MessageCodec {
+
+  public static final String JSON_CONTENT_TYPE = "application/json";
+  public static final String AVRO_CONTENT_TYPE = "application/vnd.klab.messages+avro";
+
+  static final Schema MESSAGE =
+      SchemaBuilder.record("Message")
+          .namespace("org.integratedmodelling.klab.common.data")
+          .fields()
+          .requiredLong("id")
+          .requiredLong("inResponseTo")
+          .requiredLong("timestamp")
+          .optionalString("identity")
+          .optionalString("messageClass")
+          .optionalString("messageType")
+          .optionalString("queue")
+          .optionalString("taskId")
+          .optionalString("payloadClass")
+          .optionalString("payload")
+          .endRecord();
+
+  static final Schema BATCH = Schema.createArray(MESSAGE);
+
+  static final AMQP.BasicProperties JSON_PROPERTIES =
+      new AMQP.BasicProperties.Builder().contentType(JSON_CONTENT_TYPE).build();
+  static final AMQP.BasicProperties AVRO_PROPERTIES =
+      new AMQP.BasicProperties.Builder().contentType(AVRO_CONTENT_TYPE).build();
+
+  private MessageCodec() {}
+
+  /**
+   * Encode a single message as JSON.
+   *
+   * @param message
+   * @return
+   */
+  public static byte[] encodeJson(Message message) {
+    return Utils.Json.asString(message).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Encode a batch of messages in the binary format, preserving their order.
+   *
+   * @param messages
+   * @return
+   */
+  public static byte[] encodeBatch(Collection<Message> messages) {
+    var records = new GenericData.Array<GenericRecord>(messages.size(), BATCH);
+    for (var message : messages) {
+      records.add(toRecord(message));
+    }
+    try {
+      var out = new ByteArrayOutputStream();
+      var encoder = EncoderFactory.get().binaryEncoder(out, null);
+      new GenericDatumWriter<GenericData.Array<GenericRecord>>(BATCH).write(records, encoder);
+      encoder.flush();
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new KlabIOException(e);
+    }
+  }
+
+  /**
+   * Decode a delivery in either format according to its content type. Deliveries without a content
+   * type come from senders that only know JSON.
+   *
+   * @param properties
+   * @param body
+   * @return the messages in the delivery, in sending order
+   */
+  public static List<Message> decode(AMQP.BasicProperties properties, byte[] body) {
+
+    if (properties == null || !AVRO_CONTENT_TYPE.equals(properties.getContentType())) {
+      return List.of(
+          Utils.Json.parseObject(new String(body, StandardCharsets.UTF_8), Message.class));
+    }
+
+    try {
+      var decoder = DecoderFactory.get().binaryDecoder(body, null);
+      var records =
+          new GenericDatumReader<GenericData.Array<GenericRecord>>(BATCH).read(null, decoder);
+      List<Message> ret = new ArrayList<>(records.size());
+      for (var record : records) {
+        ret.add(fromRecord(record));
+      }
+      return ret;
+    } catch (IOException e) {
+      throw new KlabIOException(e);
+    }
+  }
+
+  private static GenericRecord toRecord(Message message) {
+    var ret = new GenericData.Record(MESSAGE);
+    ret.put("id", message.getId());
+    ret.put("inResponseTo", 0L);
+    ret.put("timestamp", message.getTimestamp());
+    ret.put("identity", message.getIdentity());
+    ret.put("messageClass", name(message.getMessageClass()));
+    ret.put("messageType", name(message.getMessageType()));
+    ret.put("queue", name(message.getQueue()));
+    ret.put("taskId", message.getTaskId());
+    Object payload;
+    if (message instanceof MessageImpl messageImpl) {
+      ret.put("inResponseTo", messageImpl.getInResponseTo());
+      ret.put("payloadClass", messageImpl.getPayloadClass());
+      payload = messageImpl.getPayload();
+    } else {
+      payload = message.getPayload(Object.class);
+    }
+    ret.put("payload", payload == null ? null : Utils.Json.asString(payload));
+    return ret;
+  }
+
+  private static Message fromRecord(GenericRecord record) {
+    var ret = new MessageImpl();
+    ret.setId((Long) record.get("id"));
+    ret.setInResponseTo((Long) record.get("inResponseTo"));
+    ret.setTimestamp((Long) record.get("timestamp"));
+    ret.setIdentity(string(record, "identity"));
+    var messageClass = string(record, "messageClass");
+    if (messageClass != null) {
+      ret.setMessageClass(Message.MessageClass.valueOf(messageClass));
+    }
+    var messageType = string(record, "messageType");
+    if (messageType != null) {
+      ret.setMessageType(Message.MessageType.valueOf(messageType));
+    }
+    var queue = string(record, "queue");
+    if (queue != null) {
+      ret.setQueue(Message.Queue.valueOf(queue));
+    }
+    ret.setTaskId(string(record, "taskId"));
+    ret.setPayloadClass(string(record, "payloadClass"));
+    var payload = string(record, "payload");
+    if (payload != null) {
+      ret.setPayload(Utils.Json.parseObject(payload, Object.class));
+    }
+    return ret;
+  }
+
+  private static String name(Enum<?> value) {
+    return value == null ? null : value.name();
+  }
+
+  // Avro decodes strings as Utf8
+  private static String string(GenericRecord record, String field) {
+    var ret = record.get(field);
+    return ret == null ? null : ret.toString();
+  }
+}
@@ -0,0 +1,211 @@
+package org.integratedmodelling.common.authentication.scope;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.integratedmodelling.common.logging.Logging;
+import org.integratedmodelling.klab.api.services.runtime.Message;
+
+/**
+ * Publishes messages to the broker on a small pool of channels, so that the scopes sharing a
+ * connection never publish on the same AMQP channel at the same time. In binary mode, observation
+ * lifecycle messages, which can come by the thousands during a contextualization, are held for a
+ * few milliseconds and sent as one delivery per queue, and each batch waits for the broker's
+ * publisher confirms. Any other message flushes the pending batches before it is sent, so that
+ * messages reach each queue in the order they were sent.
+ */
+public class MessagePublisher {
+
+  static final int POOL_SIZE = 8;
+  static final int MAX_BATCH = 256;
+  static final long BATCH_DELAY_MS = 50;
+  static final long CONFIRM_TIMEOUT_MS = 5000;
+
+  private static final Set<Message.MessageClass> BATCHED =
+      EnumSet.of(Message.MessageClass.ObservationLifecycle);
+
+  private record Pending(String queue, Message message) {}
+
+  private final Connection connection;
+  private final boolean binary;
+  private final BlockingQueue<Channel> channels = new LinkedBlockingQueue<>();
+  private final AtomicInteger openChannels = new AtomicInteger();
+  private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pendingCount = new AtomicInteger();
+  private final ScheduledExecutorService batcher;
+
+  /**
+   * @param connection the broker connection to create channels from
+   * @param binary use the binary format and batch lifecycle messages; if false, send each message
+   *     as JSON as soon as it is published
+   */
+  public MessagePublisher(Connection connection, boolean binary) {
+    this.connection = connection;
+    this.binary = binary;
+    if (binary) {
+      this.batcher =
+          Executors.newSingleThreadScheduledExecutor(
+              Thread.ofPlatform().daemon().name("klab-message-batcher").factory());
+      this.batcher.scheduleWithFixedDelay(
+          this::flushQuietly, BATCH_DELAY_MS, BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+    } else {
+      this.batcher = null;
+    }
+  }
+
+  /**
+   * Send a message to the named queue, or add it to the next batch for it.
+   *
+   * @param queue
+   * @param message
+   * @throws IOException if the message could not be published
+   */
+  public void publish(String queue, Message message) throws IOException {
+
+    if (binary && BATCHED.contains(message.getMessageClass())) {
+      pending.add(new Pending(queue, message));
+      if (pendingCount.incrementAndGet() >= MAX_BATCH) {
+        flush();
+      }
+      return;
+    }
+
+    if (binary) {
+      flush();
+    }
+
+    var channel = borrow();
+    try {
+      if (binary) {
+        channel.basicPublish(
+            "", queue, MessageCodec.AVRO_PROPERTIES, MessageCodec.encodeBatch(List.of(message)));
+      } else {
+        channel.basicPublish(
+            "", queue, MessageCodec.JSON_PROPERTIES, MessageCodec.encodeJson(message));
+      }
+    } finally {
+      release(channel);
+    }
+  }
+
+  /**
+   * Publish all the pending messages, one delivery per queue and up to {@link #MAX_BATCH} messages,
+   * and wait for the broker to confirm them.
+   *
+   * @throws IOException if publishing failed or the broker did not confirm in time
+   */
+  public synchronized void flush() throws IOException {
+
+    if (pending.isEmpty()) {
+      return;
+    }
+
+    Map<String, List<Message>> batches = new LinkedHashMap<>();
+    Pending next;
+    while ((next = pending.poll()) != null) {
+      pendingCount.decrementAndGet();
+      batches.computeIfAbsent(next.queue(), q -> new ArrayList<>()).add(next.message());
+    }
+
+    var channel = borrow();
+    try {
+      for (var batch : batches.entrySet()) {
+        var messages = batch.getValue();
+        for (int i = 0; i < messages.size(); i += MAX_BATCH) {
+          var chunk = messages.subList(i, Math.min(i + MAX_BATCH, messages.size()));
+          channel.basicPublish(
+              "", batch.getKey(), MessageCodec.AVRO_PROPERTIES, MessageCodec.encodeBatch(chunk));
+        }
+      }
+      channel.waitForConfirmsOrDie(CONFIRM_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (TimeoutException e) {
+      throw new IOException("broker did not confirm message batch in time", e);
+    } finally {
+      release(channel);
+    }
+  }
+
+  /** Send anything pending and close the channels. The connection is left to its owner. */
+  public void close() {
+    if (batcher != null) {
+      batcher.shutdown();
+    }
+    flushQuietly();
+    Channel channel;
+    while ((channel = channels.poll()) != null) {
+      try {
+        channel.close();
+      } catch (Throwable t) {
+        // closing anyway
+      }
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (Throwable t) {
+      Logging.INSTANCE.error("Error publishing message batch", t);
+    }
+  }
+
+  private Channel borrow() throws IOException {
+    try {
+      var ret = channels.poll();
+      while (ret == null) {
+        if (openChannels.incrementAndGet() <= POOL_SIZE) {
+          ret = openChannel();
+        } else {
+          openChannels.decrementAndGet();
+          // a channel that gets closed instead of returned frees a slot, so look again
+          ret = channels.poll(BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+      }
+      return ret;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+  }
+
+  private Channel openChannel() throws IOException {
+    try {
+      var ret = connection.createChannel();
+      if (ret == null) {
+        throw new IOException("no more channels available on the broker connection");
+      }
+      if (binary) {
+        ret.confirmSelect();
+      }
+      return ret;
+    } catch (IOException e) {
+      openChannels.decrementAndGet();
+      throw e;
+    }
+  }
+
+  private void release(Channel channel) {
+    if (channel.isOpen()) {
+      channels.add(channel);
+    } else {
+      openChannels.decrementAndGet();
+    }
+  }
+}
@@ -4,7 +4,7 @@ import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.DeliverCallback;
-import org.integratedmodelling.common.utils.Utils;
+import org.integratedmodelling.klab.api.configuration.Configuration;
 import org.integratedmodelling.klab.api.exceptions.KlabInternalErrorException;
 import org.integratedmodelling.klab.api.identities.Identity;
 import org.integratedmodelling.klab.api.identities.UserIdentity;
@@ -15,7 +15,6 @@ import org.integratedmodelling.klab.api.services.runtime.Message;
 import org.integratedmodelling.klab.api.services.runtime.MessagingChannel;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -37,6 +36,7 @@ public abstract class MessagingChannelImpl extends ChannelImpl implements Messag
   private boolean receiver;
   private ConnectionFactory connectionFactory = null;
   private Connection connection = null;
+  private MessagePublisher publisher = null;
   private final Map<Message.Queue, String> queueNames = new HashMap<>();
   private boolean connected;
 
@@ -66,6 +66,7 @@ public abstract class MessagingChannelImpl extends ChannelImpl implements Messag
     this.receiver = parent.receiver;
     this.connectionFactory = parent.connectionFactory;
     this.connection = parent.connection;
+    this.publisher = parent.publisher;
     this.connected = parent.connected;
     this.queueNames.putAll(parent.queueNames);
     copyListeners(parent);
@@ -79,9 +80,14 @@ public abstract class MessagingChannelImpl extends ChannelImpl implements Messag
       var queue = queueNames.get(message.getQueue());
       if (queue != null) {
         try {
-          getChannel(message.getQueue())
-              .basicPublish(
-                  "", queue, null, Utils.Json.asString(message).getBytes(StandardCharsets.UTF_8));
+          var holder = findParent((p) -> p.publisher != null);
+          if (holder != null) {
+            holder.publisher.publish(queue, message);
+          } else {
+            getChannel(message.getQueue())
+                .basicPublish(
+                    "", queue, MessageCodec.JSON_PROPERTIES, MessageCodec.encodeJson(message));
+          }
         } catch (IOException e) {
           error(e);
         }
@@ -190,6 +196,9 @@ public abstract class MessagingChannelImpl extends ChannelImpl implements Messag
       this.connectionFactory = new ConnectionFactory();
       this.connectionFactory.setUri(brokerUrl);
       this.connection = this.connectionFactory.newConnection();
+      // publishing goes through pooled channels, the shared one is for queue setup and consumers
+      this.publisher =
+          new MessagePublisher(this.connection, Configuration.INSTANCE.useBinaryMessaging());
       return setupMessagingQueues(scopeId, queuesHeader);
     } catch (Throwable t) {
       error("Error connecting to broker: no messaging available", t);
@@ -238,90 +247,10 @@ public abstract class MessagingChannelImpl extends ChannelImpl implements Messag
 
             DeliverCallback deliverCallback =
                 (consumerTag, delivery) -> {
-                  var message =
-                      Utils.Json.parseObject(
-                          new String(delivery.getBody(), StandardCharsets.UTF_8), Message.class);
-
-//                  System.out.println("ZIO PERA " + message);
-
-                  // if there is a consumer installed for this queue, run it
-                  var consumers = queueConsumers.get(scopeId);
-                  if (consumers != null && consumers.containsKey(queueId)) {
-                    for (var consumer : consumers.get(queueId)) {
-                      consumer.accept(message);
-                      // TODO the consumer may call reply() on the message and if that was done,
-                      //  we could reply with the message ID as long as the channel is also a
-                      //  sender.
-                      //  reply() would take all the parameters of Message.create() and would
-                      //  automatically
-                      //  install the requesting message ID.
-                    }
-                  }
-
-                  // TODO skip this and put the ID in MessagingScope
-                  if (this instanceof SessionScope scope) {
-                    var id = scope.getId();
-                    var mMatchers = messageMatchers.get(id);
-                    var mFutures = messageFutures.get(id);
-
-                    if (mMatchers != null) {
-                      List<Message.Match> remove = new ArrayList<>();
-                      for (var match : mMatchers) {
-                        if (matchApplies(match, message)) {
-                          if (match.getMessageConsumer() != null) {
-                            // TODO put this in a virtual thread?
-                            match.getMessageConsumer().accept(message);
-                          }
-                          if (!match.isPersistent()) {
-                            remove.add(match);
-                          }
-                        }
-                      }
-                      remove.forEach(mMatchers::remove);
-                    }
-
-                    if (mFutures != null) {
-                      List<Message.Match> remove = new ArrayList<>();
-                      for (var match : mFutures.keySet()) {
-                        if (matchApplies(match, message)) {
-                          if (match.getMessageConsumer() != null) {
-                            // TODO put this in a virtual thread?
-                            match.getMessageConsumer().accept(message);
-                          }
-                          mFutures.get(match).resolve(message);
-                          remove.add(match);
-                        }
-                      }
-                      remove.forEach(mFutures::remove);
-                    }
-                  }
-
-                  switch (queue) {
-                    case Events -> {
-                      event(message);
-                    }
-                    case Errors -> {
-                      error(message);
-                    }
-                    case Warnings -> {
-                      warn(message);
-                    }
-                    case Info -> {
-                      info(message);
-                    }
-                    case Debug -> {
-                      debug(message);
-                    }
-                    case Clock -> {
-                      // TODO
-                    }
-                    case Status -> {
-                      // TODO
-                    }
-                    case UI -> {
-                      ui(message);
-                    }
-                    case None -> {}
+                  // a delivery may carry a batch of messages
+                  for (var message :
+                      MessageCodec.decode(delivery.getProperties(), delivery.getBody())) {
+                    dispatch(message, scopeId, queueId, queue);
                   }
                 };
             getChannel(queue)
@@ -365,6 +294,90 @@ public abstract class MessagingChannelImpl extends ChannelImpl implements Messag
     return EnumSet.noneOf(Message.Queue.class);
   }
 
+  /** Run the consumers, matchers and handlers for a message received from a queue. */
+  private void dispatch(Message message, String scopeId, String queueId, Message.Queue queue) {
+
+    // if there is a consumer installed for this queue, run it
+    var consumers = queueConsumers.get(scopeId);
+    if (consumers != null && consumers.containsKey(queueId)) {
+      for (var consumer : consumers.get(queueId)) {
+        consumer.accept(message);
+        // TODO the consumer may call reply() on the message and if that was done,
+        //  we could reply with the message ID as long as the channel is also a
+        //  sender.
+        //  reply() would take all the parameters of Message.create() and would
+        //  automatically
+        //  install the requesting message ID.
+      }
+    }
+
+    // TODO skip this and put the ID in MessagingScope
+    if (this instanceof SessionScope scope) {
+      var id = scope.getId();
+      var mMatchers = messageMatchers.get(id);
+      var mFutures = messageFutures.get(id);
+
+      if (mMatchers != null) {
+        List<Message.Match> remove = new ArrayList<>();
+        for (var match : mMatchers) {
+          if (matchApplies(match, message)) {
+            if (match.getMessageConsumer() != null) {
+              // TODO put this in a virtual thread?
+              match.getMessageConsumer().accept(message);
+            }
+            if (!match.isPersistent()) {
+              remove.add(match);
+            }
+          }
+        }
+        remove.forEach(mMatchers::remove);
+      }
+
+      if (mFutures != null) {
+        List<Message.Match> remove = new ArrayList<>();
+        for (var match : mFutures.keySet()) {
+          if (matchApplies(match, message)) {
+            if (match.getMessageConsumer() != null) {
+              // TODO put this in a virtual thread?
+              match.getMessageConsumer().accept(message);
+            }
+            mFutures.get(match).resolve(message);
+            remove.add(match);
+          }
+        }
+        remove.forEach(mFutures::remove);
+      }
+    }
+
+    switch (queue) {
+      case Events -> {
+        event(message);
+      }
+      case Errors -> {
+        error(message);
+      }
+      case Warnings -> {
+        warn(message);
+      }
+      case Info -> {
+        info(message);
+      }
+      case Debug -> {
+        debug(message);
+      }
+      case Clock -> {
+        // TODO
+      }
+      case Status -> {
+        // TODO
+      }
+      case UI -> {
+        ui(message);
+      }
+      case None -> {}
+    }
+  }
+
   private boolean matchApplies(Message.Match match, Message message) {
 
     if (!match.getApplicableClasses().isEmpty()) {
@@ -461,6 +474,9 @@ public abstract class MessagingChannelImpl extends ChannelImpl implements Messag
 
   @Override
   public void close() {
+    if (this.publisher != null) {
+      this.publisher.close();
+    }
     if (this.connection != null) {
       try {
         this.connection.close();
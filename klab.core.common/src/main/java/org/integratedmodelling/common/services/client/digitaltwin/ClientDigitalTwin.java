@@ -7,6 +7,7 @@ import org.integratedmodelling.klab.api.digitaltwin.DigitalTwin;
 import org.integratedmodelling.klab.api.digitaltwin.Scheduler;
 import org.integratedmodelling.klab.api.digitaltwin.StateStorage;
 import org.integratedmodelling.klab.api.exceptions.KlabIllegalStateException;
+import org.integratedmodelling.klab.api.geometry.Geometry;
 import org.integratedmodelling.klab.api.knowledge.observation.Observation;
 import org.integratedmodelling.klab.api.provenance.Provenance;
 import org.integratedmodelling.klab.api.scope.ContextScope;
@@ -77,6 +78,11 @@ public class ClientDigitalTwin implements DigitalTwin {
     throw new KlabIllegalStateException("ingest() called on a client-side digital twin");
   }
 
+  @Override
+  public boolean ingest(Data data, Observation target, Geometry tile, ContextScope scope) {
+    throw new KlabIllegalStateException("ingest() called on a client-side digital twin");
+  }
+
   @Override
   public void dispose() {}
 }
@@ -227,6 +227,11 @@ public class EngineImpl implements Engine, PropertyHolder {
                 defaultUser.info("Worldview was updated in the reasoner", UI.Interactivity.DISPLAY);
               }
             }
+            // runtimes drop any cached resolution that the changes may invalidate
+            if (defaultUser.getService(RuntimeService.class)
+                instanceof RuntimeService.Admin runtime) {
+              runtime.resourcesChanged(changes);
+            }
           }
         });
     if (this.defaultUser instanceof ChannelImpl channel) {
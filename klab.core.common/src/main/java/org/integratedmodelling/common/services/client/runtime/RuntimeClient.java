@@ -34,11 +34,13 @@ import org.integratedmodelling.klab.rest.ServiceReference;
 
 import java.net.URL;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 import java.util.function.BiConsumer;
 
-public class RuntimeClient extends ServiceClient implements RuntimeService {
+public class RuntimeClient extends ServiceClient
+    implements RuntimeService, RuntimeService.Admin {
 
   private GraphQLClient graphClient;
 
@@ -290,6 +292,25 @@ public class RuntimeClient extends ServiceClient implements RuntimeService {
     return false;
   }
 
+  @Override
+  @SuppressWarnings("unchecked")
+  public Map<String, String> getExceptionTestcases(Scope scope, boolean deleteExisting) {
+    var ret =
+        client
+            .withScope(scope)
+            .get(
+                ServicesAPI.RUNTIME.ADMIN.EXCEPTION_TESTCASES,
+                Map.class,
+                "deleteExisting",
+                deleteExisting);
+    return ret == null ? Map.of() : ret;
+  }
+
+  @Override
+  public void resourcesChanged(ResourceSet changes) {
+    client.post(ServicesAPI.RUNTIME.ADMIN.RESOURCES_CHANGED, changes, Boolean.class);
+  }
+
   @Override
   public <T extends RuntimeAsset> List<T> retrieveAssets(
       ContextScope contextScope, Class<T> assetClass, Object... queryParameters) {
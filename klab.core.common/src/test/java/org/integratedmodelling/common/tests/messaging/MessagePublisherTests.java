@@ -0,0 +1,198 @@
+package org.integratedmodelling.common.tests.messaging;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.integratedmodelling.common.authentication.scope.MessageCodec;
+import org.integratedmodelling.common.authentication.scope.MessagePublisher;
+import org.integratedmodelling.klab.api.services.runtime.Message;
+import org.integratedmodelling.klab.api.services.runtime.impl.MessageImpl;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the binary transport against a stand-in broker connection that records what is published
+ * on its channels.
+ */
+class MessagePublisherTests {
+
+    record Delivery(String queue, AMQP.BasicProperties properties, byte[] body) {
+    }
+
+    /**
+     * What the broker does when the publisher waits for confirms: return to ack everything, or
+     * throw as the client does for a nack or a timeout.
+     */
+    interface Confirms {
+        void await() throws Exception;
+    }
+
+    static Connection connection(List<Delivery> deliveries) {
+        return connection(deliveries, () -> {
+        });
+    }
+
+    static Connection connection(List<Delivery> deliveries, Confirms confirms) {
+        Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class<?>[]{Channel.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "basicPublish" -> {
+                        synchronized (deliveries) {
+                            deliveries.add(new Delivery((String) args[1],
+                                    (AMQP.BasicProperties) args[args.length - 2],
+                                    (byte[]) args[args.length - 1]));
+                        }
+                        yield null;
+                    }
+                    case "waitForConfirmsOrDie" -> {
+                        confirms.await();
+                        yield null;
+                    }
+                    case "isOpen" -> true;
+                    default -> null;
+                });
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> method.getName().equals("createChannel") ? channel : null);
+    }
+
+    static Message message(long id, Message.MessageClass messageClass,
+                           Message.MessageType messageType) {
+        var ret = new MessageImpl();
+        ret.setId(id);
+        ret.setIdentity("test.session");
+        ret.setMessageClass(messageClass);
+        ret.setMessageType(messageType);
+        ret.setQueue(messageType.queue);
+        ret.setPayload(Map.of("index", (int) id));
+        return ret;
+    }
+
+    static Message lifecycle(long id) {
+        return message(id, Message.MessageClass.ObservationLifecycle, Message.MessageType.Info);
+    }
+
+    @Test
+    void binaryRoundTrip() {
+        var sent = List.of(lifecycle(1), message(2, Message.MessageClass.Notification,
+                Message.MessageType.Warning));
+        var properties = new AMQP.BasicProperties.Builder().contentType(
+                MessageCodec.AVRO_CONTENT_TYPE).build();
+        var received = MessageCodec.decode(properties, MessageCodec.encodeBatch(sent));
+        assertEquals(sent.size(), received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertEquals(sent.get(i).getId(), received.get(i).getId());
+            assertEquals(sent.get(i).getMessageClass(), received.get(i).getMessageClass());
+            assertEquals(sent.get(i).getMessageType(), received.get(i).getMessageType());
+            assertEquals(sent.get(i).getQueue(), received.get(i).getQueue());
+            assertEquals(sent.get(i).getIdentity(), received.get(i).getIdentity());
+            assertEquals(i + 1, received.get(i).getPayload(Map.class).get("index"));
+        }
+    }
+
+    @Test
+    void jsonStillUnderstood() {
+        var sent = lifecycle(7);
+        var received = MessageCodec.decode(null, MessageCodec.encodeJson(sent));
+        assertEquals(1, received.size());
+        assertEquals(7, received.getFirst().getId());
+    }
+
+    @Test
+    void lifecycleMessagesAreBatched() throws Exception {
+        List<Delivery> deliveries = new ArrayList<>();
+        var confirmations = new AtomicInteger();
+        var publisher = new MessagePublisher(connection(deliveries,
+                confirmations::incrementAndGet), true);
+        for (int i = 0; i < 100; i++) {
+            publisher.publish("events", lifecycle(i));
+        }
+        publisher.flush();
+        publisher.close();
+
+        List<Message> received = new ArrayList<>();
+        for (var delivery : deliveries) {
+            assertEquals(MessageCodec.AVRO_CONTENT_TYPE, delivery.properties().getContentType());
+            received.addAll(MessageCodec.decode(delivery.properties(), delivery.body()));
+        }
+        assertEquals(100, received.size());
+        assertTrue(deliveries.size() < received.size());
+        assertTrue(confirmations.get() > 0);
+        for (int i = 0; i < received.size(); i++) {
+            assertEquals(i, received.get(i).getId());
+        }
+    }
+
+    @Test
+    void otherMessagesKeepTheirOrder() throws Exception {
+        List<Delivery> deliveries = new ArrayList<>();
+        var publisher = new MessagePublisher(connection(deliveries), true);
+        publisher.publish("events", lifecycle(0));
+        publisher.publish("events", lifecycle(1));
+        publisher.publish("events", message(2, Message.MessageClass.Notification,
+                Message.MessageType.Info));
+        publisher.close();
+
+        List<Long> ids = new ArrayList<>();
+        for (var delivery : deliveries) {
+            for (var message : MessageCodec.decode(delivery.properties(), delivery.body())) {
+                ids.add(message.getId());
+            }
+        }
+        assertEquals(List.of(0L, 1L, 2L), ids);
+    }
+
+    @Test
+    void jsonModeSendsEachMessage() throws Exception {
+        List<Delivery> deliveries = new ArrayList<>();
+        var publisher = new MessagePublisher(connection(deliveries), false);
+        publisher.publish("events", lifecycle(0));
+        publisher.publish("events", lifecycle(1));
+        publisher.close();
+
+        assertEquals(2, deliveries.size());
+        assertEquals(MessageCodec.JSON_CONTENT_TYPE,
+                deliveries.getFirst().properties().getContentType());
+    }
+
+    @Test
+    void nackedBatchFails() throws Exception {
+        List<Delivery> deliveries = new ArrayList<>();
+        var publisher = new MessagePublisher(connection(deliveries, () -> {
+            throw new IOException("nack");
+        }), true);
+        // holding the publisher's monitor keeps the background batcher from flushing first
+        synchronized (publisher) {
+            publisher.publish("events", lifecycle(0));
+            var error = assertThrows(IOException.class, publisher::flush);
+            assertEquals("nack", error.getMessage());
+        }
+        publisher.close();
+        assertEquals(1, deliveries.size());
+    }
+
+    @Test
+    void unconfirmedBatchTimesOut() throws Exception {
+        List<Delivery> deliveries = new ArrayList<>();
+        var publisher = new MessagePublisher(connection(deliveries, () -> {
+            throw new TimeoutException();
+        }), true);
+        synchronized (publisher) {
+            publisher.publish("events", lifecycle(0));
+            var error = assertThrows(IOException.class, publisher::flush);
+            assertInstanceOf(TimeoutException.class, error.getCause());
+        }
+        publisher.close();
+    }
+}
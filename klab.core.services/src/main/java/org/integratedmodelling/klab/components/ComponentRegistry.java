@@ -7,6 +7,9 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -209,6 +212,57 @@ public class ComponentRegistry {
     public Object wrappingClassInstance;
     // if
     public Method method;
+    // the method bound to its instance, with its own parameter types, built at registration
+    public MethodHandle handle;
+    // the above spread over an argument array
+    public MethodHandle invoker;
+
+    /**
+     * Build the invoker for the method, so that calls do not go through reflection. Non-static
+     * methods are bound to the main class instance, so this must be called after that is set.
+     * Methods that cannot be bound are left to {@link Method#invoke(Object, Object...)}.
+     */
+    void bind() {
+      if (method == null
+          || (!Modifier.isStatic(method.getModifiers()) && mainClassInstance == null)) {
+        return;
+      }
+      try {
+        method.trySetAccessible();
+        var handle = MethodHandles.lookup().unreflect(method);
+        if (!Modifier.isStatic(method.getModifiers())) {
+          handle = handle.bindTo(mainClassInstance);
+        }
+        this.handle = handle;
+        this.invoker =
+            handle
+                .asSpreader(Object[].class, method.getParameterCount())
+                .asType(MethodType.methodType(Object.class, Object[].class));
+      } catch (IllegalAccessException e) {
+        Logging.INSTANCE.warn(
+            "Cannot bind " + method + ", calling through reflection: " + e.getMessage());
+      }
+    }
+
+    /**
+     * Call the method with arguments matched to its parameters, e.g. by {@link
+     * ComponentRegistry#matchArguments}. The array is not retained and can be reused across calls.
+     *
+     * @param arguments
+     * @return the method's return value, null for void methods
+     * @throws Throwable anything thrown by the method
+     */
+    public Object invoke(Object[] arguments) throws Throwable {
+      if (invoker != null) {
+        return (Object) invoker.invokeExact(arguments);
+      }
+      try {
+        return method.invoke(
+            Modifier.isStatic(method.getModifiers()) ? null : mainClassInstance, arguments);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
   }
 
   public ServiceImplementation implementation(Extensions.FunctionDescriptor descriptor) {
@@ -540,6 +594,8 @@ public class ComponentRegistry {
       }
     }
 
+    implementation.bind();
+
     return ret;
   }
 
@@ -1398,6 +1454,7 @@ public class ComponentRegistry {
       var serviceInfo = new ServiceInfoImpl();
       serviceInfo.setName(functionUrn);
       ret.serviceInfo = serviceInfo;
+      impl.bind();
       return Pair.of(ret, impl);
     }
   }
@@ -1440,8 +1497,8 @@ public class ComponentRegistry {
     }
 
     try {
-      return implementation.method.invoke(implementation.mainClassInstance, arguments.toArray());
-    } catch (Exception e) {
+      return implementation.invoke(arguments.toArray());
+    } catch (Throwable e) {
       return new KlabCompilationError(e);
     }
   }
@@ -1479,6 +1536,51 @@ public class ComponentRegistry {
       LookupTable lookupTable,
       Data inputData,
       Scope scope) {
+    return matchArguments(
+        method,
+        resource,
+        geometry,
+        builder,
+        observation,
+        observable,
+        urn,
+        urnParameters,
+        serviceCall,
+        storage,
+        expression,
+        lookupTable,
+        inputData,
+        scope,
+        false);
+  }
+
+  /**
+   * Match the arguments of a method, optionally leaving its numeric and boolean parameters to be set
+   * at each call.
+   *
+   * @param scalarValues if true, the primitive, number and boolean parameters are matched to null
+   *     and are expected to be set by the caller with the value of each cell, as the scalar mapper
+   *     does. Otherwise they cannot be matched.
+   * @return the arguments in parameter order, or null if the method is null
+   * @see #matchArguments(Method, Resource, Geometry, Data.Builder, Observation, Observable, Urn,
+   *     Parameters, ServiceCall, Storage, Expression, LookupTable, Data, Scope)
+   */
+  public static List<Object> matchArguments(
+      Method method,
+      Resource resource,
+      Geometry geometry,
+      Data.Builder builder,
+      Observation observation,
+      Observable observable,
+      Urn urn,
+      Parameters<String> urnParameters,
+      ServiceCall serviceCall,
+      Storage storage,
+      Expression expression,
+      LookupTable lookupTable,
+      Data inputData,
+      Scope scope,
+      boolean scalarValues) {
     List<Object> runArguments = new ArrayList<>();
     DigitalTwin digitalTwin = null;
     if (scope instanceof ContextScope contextScope) {
@@ -1570,6 +1672,12 @@ public class ComponentRegistry {
           runArguments.add(urn);
         } else if (LookupTable.class.isAssignableFrom(argument) && lookupTable != null) {
           runArguments.add(lookupTable);
+        } else if (scalarValues
+            && (argument.isPrimitive()
+                || Number.class.isAssignableFrom(argument)
+                || Boolean.class == argument)) {
+          // per-cell value of a scalar function, set by the scalar mapper at each call
+          runArguments.add(null);
         } else {
           scope.error(
               "Cannot map argument of type "
@@ -335,6 +335,12 @@ public enum ServiceConfiguration {
   public static final String KLAB_USE_IN_MEMORY_DATABASE = "klab.database.inmemory";
   public static final String KLAB_PARALLELIZE_CONTEXTUALIZATION = "klab.computation.parallel";
   public static final String KLAB_USE_IN_MEMORY_STORAGE = "klab.storage.inmemory";
+
+  /**
+   * Maximum off-heap memory, in megabytes, that the state storage of each digital twin can map.
+   * Default 8192.
+   */
+  public static final String KLAB_STORAGE_OFFHEAP_BUDGET = "klab.storage.offheap.budget";
   public static final String CERTFILE_PROPERTY = "klab.certificate";
   public static final String KLAB_CONNECTION_TIMEOUT = "klab.connection.timeout";
   public static final String KLAB_PROJECT_BLACKLIST_PROPERTY = "klab.project.blacklist";
@@ -942,6 +948,15 @@ public enum ServiceConfiguration {
         && properties.getProperty(KLAB_USE_IN_MEMORY_STORAGE, "true").equals("true");
   }
 
+  /**
+   * The off-heap budget for the state storage of one digital twin.
+   *
+   * @return the budget in bytes
+   */
+  public long getOffHeapStorageBudget() {
+    return Long.parseLong(getProperty(KLAB_STORAGE_OFFHEAP_BUDGET, "8192")) * 1024 * 1024;
+  }
+
   public File getExportFile(String export) {
     if (Utils.Files.isRelativePath(export)) {
       return new File(getDefaultExportDirectory() + File.separator + export);
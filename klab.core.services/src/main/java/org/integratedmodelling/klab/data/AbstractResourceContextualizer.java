@@ -37,6 +37,24 @@ public abstract class AbstractResourceContextualizer {
     return scope.getDigitalTwin().ingest(data,observation, scope);
   }
 
+  /**
+   * Contextualize the resource to a tile of the observation's geometry and ingest the result into
+   * the part of the observation's storage that the tile covers. Different tiles of the same
+   * observation can be contextualized concurrently.
+   *
+   * @param observation
+   * @param tile
+   * @param scope
+   * @return
+   */
+  public boolean contextualize(Observation observation, Geometry tile, ContextScope scope) {
+    var data = getData(tile, scope);
+    if (data == null || data.empty()) {
+      return false;
+    }
+    return scope.getDigitalTwin().ingest(data, observation, tile, scope);
+  }
+
   /**
    * Retrieve all the input data the resource wants.
    *
@@ -36,8 +36,7 @@ public class ServiceResourceContextualizer extends AbstractResourceContextualize
             ? observation.getObservable().getUrn()
             : observation.getObservable().getStatedName();
 
-    Data.Builder builder =
-        Data.builder(name, observation.getObservable(), observation.getGeometry());
+    Data.Builder builder = Data.builder(name, observation.getObservable(), geometry);
 
     // TODO add observation, observable, urn, input data if the resource requires them, observation
     //  storage and anything the adapter may want.
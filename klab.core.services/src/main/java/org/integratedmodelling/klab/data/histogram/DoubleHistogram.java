@@ -0,0 +1,383 @@
+package org.integratedmodelling.klab.data.histogram;
+
+import java.util.Arrays;
+import org.integratedmodelling.klab.api.data.Histogram;
+import org.integratedmodelling.klab.api.data.impl.HistogramImpl;
+
+/**
+ * Streaming histogram specialized for double values, meant for the storage hot path where {@link
+ * SPDTHistogram} would box every point. Points are collected in a primitive buffer and periodically
+ * sorted and merged into a bounded set of centroids using the merging t-digest algorithm (Dunning
+ * and Ertl, "Computing extremely accurate quantiles using t-digests"), so inserting costs no
+ * allocation and amortized constant time. Histograms are mergeable, so buffer histograms can be
+ * combined into the histogram of a whole storage. NaN values are counted as nodata.
+ *
+ * <p>Not thread-safe: each instance should be filled by one thread, then merged.
+ */
+public class DoubleHistogram {
+
+  /** Default compression, i.e. the approximate maximum number of centroids kept. */
+  public static final int DEFAULT_COMPRESSION = 100;
+
+  private static final int BUFFER_SIZE = 512;
+
+  private final double compression;
+  private final double[] pending = new double[BUFFER_SIZE];
+  private int nPending;
+
+  // centroids, sorted by mean
+  private double[] means;
+  private double[] counts;
+  private double[] sumSquares;
+  private double[] mins;
+  private double[] maxs;
+  private int nCentroids;
+
+  // scratch holding the sorted input of each compression pass
+  private double[] sMeans;
+  private double[] sCounts;
+  private double[] sSumSquares;
+  private double[] sMins;
+  private double[] sMaxs;
+
+  private long count;
+  private long missingCount;
+  private double minimum = Double.NaN;
+  private double maximum = Double.NaN;
+
+  public DoubleHistogram() {
+    this(DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * @param compression the approximate maximum number of centroids. Larger values give more
+   *     accurate quantiles at the price of memory and merge time.
+   */
+  public DoubleHistogram(int compression) {
+    this.compression = Math.max(10, compression);
+    allocate(2 * (int) this.compression + BUFFER_SIZE + 2);
+  }
+
+  /**
+   * Insert a value. NaN counts as nodata.
+   *
+   * @param value
+   */
+  public void insert(double value) {
+    if (Double.isNaN(value)) {
+      missingCount++;
+      return;
+    }
+    if (count == 0) {
+      minimum = maximum = value;
+    } else if (value < minimum) {
+      minimum = value;
+    } else if (value > maximum) {
+      maximum = value;
+    }
+    count++;
+    pending[nPending++] = value;
+    if (nPending == BUFFER_SIZE) {
+      compress();
+    }
+  }
+
+  /**
+   * Insert a run of values from an array.
+   *
+   * @param values
+   * @param from
+   * @param len
+   */
+  public void insert(double[] values, int from, int len) {
+    for (int i = from; i < from + len; i++) {
+      insert(values[i]);
+    }
+  }
+
+  /**
+   * Add a number of nodata values.
+   *
+   * @param n
+   */
+  public void insertMissing(long n) {
+    missingCount += n;
+  }
+
+  /**
+   * Merge another histogram into this one. The other histogram is flushed but otherwise not
+   * modified.
+   *
+   * @param other
+   * @return this histogram
+   */
+  public DoubleHistogram merge(DoubleHistogram other) {
+    other.compress();
+    compress();
+    missingCount += other.missingCount;
+    if (other.count == 0) {
+      return this;
+    }
+    if (count == 0) {
+      minimum = other.minimum;
+      maximum = other.maximum;
+    } else {
+      minimum = Math.min(minimum, other.minimum);
+      maximum = Math.max(maximum, other.maximum);
+    }
+    count += other.count;
+
+    int total = nCentroids + other.nCentroids;
+    if (total > sMeans.length) {
+      allocate(total);
+    }
+    // merge the two sorted centroid lists into scratch, then compress back
+    int i = 0, j = 0, n = 0;
+    while (i < nCentroids || j < other.nCentroids) {
+      if (j >= other.nCentroids || (i < nCentroids && means[i] <= other.means[j])) {
+        setScratch(n++, means[i], counts[i], sumSquares[i], mins[i], maxs[i]);
+        i++;
+      } else {
+        setScratch(
+            n++,
+            other.means[j],
+            other.counts[j],
+            other.sumSquares[j],
+            other.mins[j],
+            other.maxs[j]);
+        j++;
+      }
+    }
+    compressScratch(n);
+    return this;
+  }
+
+  /** Total number of valid (non-nodata) values inserted. */
+  public long getCount() {
+    return count;
+  }
+
+  public long getMissingCount() {
+    return missingCount;
+  }
+
+  /** The minimum value, or NaN if no valid value was inserted. */
+  public double getMinimum() {
+    return minimum;
+  }
+
+  /** The maximum value, or NaN if no valid value was inserted. */
+  public double getMaximum() {
+    return maximum;
+  }
+
+  public boolean isEmpty() {
+    return count == 0;
+  }
+
+  /**
+   * Estimate the value at the passed quantile.
+   *
+   * @param q the quantile in [0, 1]
+   * @return the estimated value, or NaN if the histogram is empty
+   */
+  public double quantile(double q) {
+    compress();
+    if (count == 0) {
+      return Double.NaN;
+    }
+    if (q <= 0) {
+      return minimum;
+    }
+    if (q >= 1) {
+      return maximum;
+    }
+    if (nCentroids == 1) {
+      return means[0];
+    }
+    double target = q * count;
+    double cumulative = 0;
+    for (int i = 0; i < nCentroids; i++) {
+      double center = cumulative + counts[i] / 2;
+      if (target < center) {
+        if (i == 0) {
+          return interpolate(target, 0, minimum, center, means[0]);
+        }
+        double previous = cumulative - counts[i - 1] / 2;
+        return interpolate(target, previous, means[i - 1], center, means[i]);
+      }
+      cumulative += counts[i];
+    }
+    double lastCenter = count - counts[nCentroids - 1] / 2;
+    return interpolate(target, lastCenter, means[nCentroids - 1], count, maximum);
+  }
+
+  /**
+   * Estimate the fraction of the valid values that are less than or equal to the passed value.
+   *
+   * @param value
+   * @return the fraction in [0, 1], or NaN if the histogram is empty
+   */
+  public double cdf(double value) {
+    compress();
+    if (count == 0) {
+      return Double.NaN;
+    }
+    if (value < minimum) {
+      return 0;
+    }
+    if (value >= maximum) {
+      return 1;
+    }
+    double cumulative = 0;
+    double previousMean = minimum;
+    double previousRank = 0;
+    for (int i = 0; i < nCentroids; i++) {
+      double center = cumulative + counts[i] / 2;
+      if (value < means[i]) {
+        return interpolate(value, previousMean, previousRank, means[i], center) / count;
+      }
+      previousMean = means[i];
+      previousRank = center;
+      cumulative += counts[i];
+    }
+    return interpolate(value, previousMean, previousRank, maximum, count) / count;
+  }
+
+  /**
+   * Produce the portable histogram with the passed number of equal-width bins between minimum and
+   * maximum. Each centroid contributes to the bin containing its mean.
+   *
+   * @param binCount
+   * @return
+   */
+  public Histogram asHistogram(int binCount) {
+    compress();
+    var ret = new HistogramImpl();
+    ret.setMissingCount(missingCount);
+    if (count == 0) {
+      ret.setEmpty(true);
+      return ret;
+    }
+    ret.setMin(minimum);
+    ret.setMax(maximum);
+
+    var bins = new HistogramImpl.BinImpl[Math.max(1, binCount)];
+    double width = (maximum - minimum) / bins.length;
+    for (int i = 0; i < bins.length; i++) {
+      bins[i] = new HistogramImpl.BinImpl();
+      bins[i].setMin(minimum + i * width);
+      bins[i].setMax(i == bins.length - 1 ? maximum : minimum + (i + 1) * width);
+    }
+    for (int i = 0; i < nCentroids; i++) {
+      int b = width == 0 ? 0 : (int) Math.min(bins.length - 1, (means[i] - minimum) / width);
+      var bin = bins[b];
+      bin.setCount(bin.getCount() + counts[i]);
+      bin.setSum(bin.getSum() + means[i] * counts[i]);
+      bin.setSumSquared(bin.getSumSquared() + sumSquares[i]);
+    }
+    for (var bin : bins) {
+      bin.setWeight(bin.getCount() / count);
+      bin.setMean(bin.getCount() == 0 ? Double.NaN : bin.getSum() / bin.getCount());
+      ret.getBins().add(bin);
+    }
+    return ret;
+  }
+
+  /** Merge the pending points into the centroids. */
+  private void compress() {
+    if (nPending == 0) {
+      return;
+    }
+    Arrays.sort(pending, 0, nPending);
+    int i = 0, j = 0, n = 0;
+    while (i < nCentroids || j < nPending) {
+      if (j >= nPending || (i < nCentroids && means[i] <= pending[j])) {
+        setScratch(n++, means[i], counts[i], sumSquares[i], mins[i], maxs[i]);
+        i++;
+      } else {
+        double v = pending[j++];
+        setScratch(n++, v, 1, v * v, v, v);
+      }
+    }
+    nPending = 0;
+    compressScratch(n);
+  }
+
+  /**
+   * Single merging pass over the n sorted centroids in scratch, bounding each output centroid with
+   * the arcsine scale function so that the tails keep small centroids. The result is written to the
+   * centroid arrays.
+   */
+  private void compressScratch(int n) {
+    double total = 0;
+    for (int i = 0; i < n; i++) {
+      total += sCounts[i];
+    }
+    int out = 0;
+    double soFar = 0;
+    double limit = total * qLimit(0);
+    double mean = sMeans[0], weight = sCounts[0], squares = sSumSquares[0];
+    double min = sMins[0], max = sMaxs[0];
+    for (int i = 1; i < n; i++) {
+      if (soFar + weight + sCounts[i] <= limit) {
+        weight += sCounts[i];
+        mean += (sMeans[i] - mean) * sCounts[i] / weight;
+        squares += sSumSquares[i];
+        min = Math.min(min, sMins[i]);
+        max = Math.max(max, sMaxs[i]);
+      } else {
+        setCentroid(out++, mean, weight, squares, min, max);
+        soFar += weight;
+        limit = total * qLimit(soFar / total);
+        mean = sMeans[i];
+        weight = sCounts[i];
+        squares = sSumSquares[i];
+        min = sMins[i];
+        max = sMaxs[i];
+      }
+    }
+    setCentroid(out++, mean, weight, squares, min, max);
+    nCentroids = out;
+  }
+
+  /** The cumulative quantile up to which a centroid starting at q can extend. */
+  private double qLimit(double q) {
+    double k = compression / (2 * Math.PI) * Math.asin(2 * q - 1) + 1;
+    return k >= compression / 4 ? 1 : (Math.sin(k * 2 * Math.PI / compression) + 1) / 2;
+  }
+
+  private void setScratch(int i, double mean, double count, double squares, double min, double max) {
+    sMeans[i] = mean;
+    sCounts[i] = count;
+    sSumSquares[i] = squares;
+    sMins[i] = min;
+    sMaxs[i] = max;
+  }
+
+  private void setCentroid(
+      int i, double mean, double count, double squares, double min, double max) {
+    means[i] = mean;
+    counts[i] = count;
+    sumSquares[i] = squares;
+    mins[i] = min;
+    maxs[i] = max;
+  }
+
+  private void allocate(int capacity) {
+    means = means == null ? new double[capacity] : Arrays.copyOf(means, capacity);
+    counts = counts == null ? new double[capacity] : Arrays.copyOf(counts, capacity);
+    sumSquares = sumSquares == null ? new double[capacity] : Arrays.copyOf(sumSquares, capacity);
+    mins = mins == null ? new double[capacity] : Arrays.copyOf(mins, capacity);
+    maxs = maxs == null ? new double[capacity] : Arrays.copyOf(maxs, capacity);
+    sMeans = new double[capacity];
+    sCounts = new double[capacity];
+    sSumSquares = new double[capacity];
+    sMins = new double[capacity];
+    sMaxs = new double[capacity];
+  }
+
+  private static double interpolate(double x, double x0, double y0, double x1, double y1) {
+    return x1 == x0 ? (y0 + y1) / 2 : y0 + (x - x0) * (y1 - y0) / (x1 - x0);
+  }
+}
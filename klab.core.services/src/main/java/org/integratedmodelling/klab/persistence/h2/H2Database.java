@@ -29,6 +29,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -40,11 +41,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
-
-import javax.sql.PooledConnection;
 
 import org.h2.engine.Constants;
+import org.h2.jdbcx.JdbcConnectionPool;
 import org.h2.jdbcx.JdbcDataSource;
 import org.h2gis.functions.factory.H2GISFunctions;
 import org.h2gis.utilities.JDBCUtilities;
@@ -70,6 +69,13 @@ import org.integratedmodelling.klab.utilities.Utils;
  * with username=sa, password=sa
  * 
  * Use with org.h2.tools.Console
+ * 
+ * Connections come from a pool and are returned to it after each operation, so
+ * concurrent requests don't share a connection. Each connection keeps the last
+ * {@link #QUERY_CACHE_SIZE} statements it has parsed, so prepared statements
+ * that are run repeatedly with different parameters are only parsed once. IDs
+ * come from a database sequence.
+ * 
  * @deprecated use noSQL storage
  * @author Ferd
  *
@@ -78,16 +84,25 @@ public class H2Database {
 
 	private static Map<String, H2Database> datastores = new HashMap<>();
 
+	/**
+	 * Parsed statements cached per connection.
+	 */
+	public static final int QUERY_CACHE_SIZE = 64;
+
+	/**
+	 * The maximum number of connections open at the same time.
+	 */
+	public static final int MAX_CONNECTIONS = Math.max(10, 2 * Runtime.getRuntime().availableProcessors());
+
 	JdbcDataSource ds;
+	JdbcConnectionPool pool;
 	String url;
 	boolean isNew = false;
-	AtomicLong oid = new AtomicLong(1);
 	// directory containing the database files.
 	// File directory;
 	String name;
 	// cache for still unknown trait-assembled concepts that were saved before.
 	Map<String, String> derivedConcepts = new HashMap<>();
-	PooledConnection pooledConnection = null;
 	// we leave it to the user to decide whether to reuse a connection (for
 	// single-user
 	// repetitive operations) or get one from the pool at every use (default).
@@ -102,10 +117,8 @@ public class H2Database {
 
 		List<Map<String, String>> ret = new ArrayList<>();
 
-		try {
-			Connection conn = getConnection();
-			Statement st = conn.createStatement();
-			ResultSet rs = st.executeQuery("SELECT * FROM " + table + ";");
+		Connection conn = getConnection();
+		try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM " + table + ";")) {
 			ResultSetMetaData rsmd = rs.getMetaData();
 			int columnsNumber = rsmd.getColumnCount();
 
@@ -120,13 +133,7 @@ public class H2Database {
 		} catch (SQLException e) {
 			throw new KlabStorageException(e);
 		} finally {
-			try {
-				if (connection != null) {
-					// connection.close();
-				}
-			} catch (Exception e) {
-				throw new KlabStorageException(e);
-			}
+			releaseConnection(conn);
 		}
 
 		return ret;
@@ -152,7 +159,8 @@ public class H2Database {
 
 		if (inMemory) {
 
-			this.url = "jdbc:h2:mem:" + kboxName;
+			// keep the database when the pool has no open connections
+			this.url = "jdbc:h2:mem:" + kboxName + ";DB_CLOSE_DELAY=-1;QUERY_CACHE_SIZE=" + QUERY_CACHE_SIZE;
 			this.isNew = true;
 
 		} else {
@@ -169,45 +177,47 @@ public class H2Database {
 			 */
 			this.isNew = !f1.exists() && !f2.exists();
 			this.url = "jdbc:h2:" + directory + "/" + kboxName
-					+ ";AUTO_SERVER=true;NON_KEYWORDS=KEY,VALUE,SECOND,MINUTE,HOUR,DAY,MONTH,YEAR"; // ;MVCC=true"; -
-																									// Not supported
-																									// from h2 1.4.200
+					+ ";AUTO_SERVER=true;NON_KEYWORDS=KEY,VALUE,SECOND,MINUTE,HOUR,DAY,MONTH,YEAR;QUERY_CACHE_SIZE="
+					+ QUERY_CACHE_SIZE; // ;MVCC=true"; - Not supported from h2 1.4.200
 		}
 
 		this.ds.setURL(url);
 		this.ds.setUser("sa");
 		this.ds.setPassword("sa");
-		try {
-			pooledConnection = this.ds.getPooledConnection();
-		} catch (SQLException e) {
-			throw new KlabStorageException(e);
-		}
+		this.pool = JdbcConnectionPool.create(ds);
+		this.pool.setMaxConnections(MAX_CONNECTIONS);
 
 		if (isNew) {
-			try {
-				H2GISFunctions.load(this.ds.getConnection());
+			try (Connection conn = pool.getConnection()) {
+				H2GISFunctions.load(conn);
 				execute("CREATE TABLE hids (id LONG)");
 				execute("INSERT INTO hids VALUES (1)");
 				execute("CREATE TABLE knowledge_structure (knowledge VARCHAR(256) PRIMARY KEY, structure VARCHAR(4096))");
 			} catch (Exception e) {
 				throw new KlabStorageException(e);
 			}
-		} else {
-			try {
-				oid.set(queryIds("SELECT id FROM hids").get(0));
-				/*
-				 * TODO fill derivedConcept cache
-				 */
-			} catch (Exception e) {
-				throw new KlabStorageException(e);
-			}
 		}
+
+		try {
+			/*
+			 * IDs come from a sequence. Databases written before it existed recorded the
+			 * next ID in hids, so the sequence starts from there.
+			 */
+			execute("CREATE SEQUENCE IF NOT EXISTS oids START WITH " + queryIds("SELECT id FROM hids").get(0));
+			/*
+			 * TODO fill derivedConcept cache
+			 */
+		} catch (Exception e) {
+			throw new KlabStorageException(e);
+		}
+
 		datastores.put(kboxName, this);
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 
 			@Override
 			public void run() {
 				deallocateConnection();
+				pool.dispose();
 			}
 		});
 		sanityCheck();
@@ -216,7 +226,7 @@ public class H2Database {
 	public void preallocateConnection() {
 		if (connection == null) {
 			try {
-				connection = JDBCUtilities.wrapConnection(pooledConnection.getConnection());
+				connection = JDBCUtilities.wrapConnection(pool.getConnection());
 			} catch (SQLException e) {
 				// just leave null
 			}
@@ -245,24 +255,20 @@ public class H2Database {
 		 */
 	}
 
-	public synchronized long getNextId() {
-		long ret = oid.getAndIncrement();
-		try {
-			execute("UPDATE hids SET id = " + (ret + 1));
-		} catch (Exception e) {
-			throw new KlabStorageException(e);
+	public long getNextId() {
+		List<Long> ret = queryIds("SELECT NEXT VALUE FOR oids");
+		if (ret.isEmpty()) {
+			throw new KlabStorageException("cannot allocate a new ID in " + url);
 		}
-		return ret;
+		return ret.get(0);
 	}
 
 	public long countRows(String tableName) {
 		long ret = -1;
 		if (hasTable(tableName)) {
-			DBIterator result = query("SELECT COUNT(*) FROM " + tableName + ";");
-			try {
-				ret = result.result.getLong(1);
-			} catch (SQLException e) {
-				// return -1
+			List<Long> result = queryIds("SELECT COUNT(*) FROM " + tableName + ";");
+			if (!result.isEmpty()) {
+				ret = result.get(0);
 			}
 		}
 		return ret;
@@ -312,7 +318,9 @@ public class H2Database {
 	}
 
 	/**
-	 * Get a connection, turning any exception into a k.LAB one.
+	 * Get a connection, turning any exception into a k.LAB one. Unless a
+	 * connection was preallocated, this takes one from the pool, which must be
+	 * given back with {@link #releaseConnection(Connection)}.
 	 * 
 	 * @return connection
 	 * @throws KlabStorageException
@@ -324,13 +332,30 @@ public class H2Database {
 		}
 
 		try {
-			// FIXME must close the pooledconnection, not the wrapped connection
-			return JDBCUtilities.wrapConnection(pooledConnection.getConnection());
+			// closing the wrapper closes the pooled connection, which returns it to the
+			// pool
+			return JDBCUtilities.wrapConnection(pool.getConnection());
 		} catch (SQLException e) {
 			throw new KlabStorageException(e);
 		}
 	}
 
+	/**
+	 * Return a connection obtained with {@link #getConnection()} to the pool. The
+	 * preallocated connection, if any, stays open.
+	 * 
+	 * @param connection
+	 */
+	public void releaseConnection(Connection connection) {
+		if (connection != null && connection != this.connection) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				throw new KlabStorageException(e);
+			}
+		}
+	}
+
 	public void execute(String sql) {
 
 		if (sql == null) {
@@ -341,22 +366,37 @@ public class H2Database {
 
 //		System.out.println(sql);
 
-		Connection connection = null;
-		try {
-			connection = getConnection();
-			connection.createStatement().execute(sql);
+		Connection connection = getConnection();
+		try (Statement statement = connection.createStatement()) {
+			statement.execute(sql);
 			connection.commit();
-			// connection.close();
 		} catch (Throwable e) {
 			throw new KlabStorageException(e);
 		} finally {
-			try {
-				if (connection != null) {
-					// connection.close();
-				}
-			} catch (Exception e) {
-				throw new KlabStorageException(e);
-			}
+			releaseConnection(connection);
+		}
+	}
+
+	/**
+	 * Run an update as a prepared statement, binding the passed parameters to its
+	 * placeholders in order.
+	 * 
+	 * @param sql
+	 * @param parameters
+	 * @return the number of rows affected
+	 */
+	public int execute(String sql, List<?> parameters) {
+
+		Connection connection = getConnection();
+		try (PreparedStatement statement = connection.prepareStatement(sql)) {
+			SQL.bind(statement, parameters);
+			int ret = statement.executeUpdate();
+			connection.commit();
+			return ret;
+		} catch (SQLException e) {
+			throw new KlabStorageException(e);
+		} finally {
+			releaseConnection(connection);
 		}
 	}
 
@@ -370,8 +410,8 @@ public class H2Database {
 
 //		System.out.println(sql);
 
-		try {
-			connection.createStatement().execute(sql);
+		try (Statement statement = connection.createStatement()) {
+			statement.execute(sql);
 		} catch (SQLException e) {
 			throw new KlabStorageException(e);
 		}
@@ -379,13 +419,8 @@ public class H2Database {
 
 	public void query(String sql, SQL.ResultHandler handler) {
 
-		Connection connection = null;
-		Statement stmt = null;
-		ResultSet result = null;
-		try {
-			connection = getConnection();
-			stmt = connection.createStatement();
-			result = stmt.executeQuery(sql);
+		Connection connection = getConnection();
+		try (Statement stmt = connection.createStatement(); ResultSet result = stmt.executeQuery(sql)) {
 			int res = 0;
 			while (result.next()) {
 				res++;
@@ -395,32 +430,77 @@ public class H2Database {
 		} catch (SQLException e) {
 			throw new KlabStorageException(e);
 		} finally {
-			// jesus christ
-			try {
-				if (result != null) {
-					result.close();
-				}
-				if (stmt != null) {
-					stmt.close();
-				}
-				if (connection != null) {
-					// connection.close();
+			releaseConnection(connection);
+		}
+	}
+
+	/**
+	 * Run a query as a prepared statement, binding the passed parameters to its
+	 * placeholders in order.
+	 * 
+	 * @param sql
+	 * @param parameters
+	 * @param handler
+	 */
+	public void query(String sql, List<?> parameters, SQL.ResultHandler handler) {
+
+		Connection connection = getConnection();
+		try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+			SQL.bind(stmt, parameters);
+			try (ResultSet result = stmt.executeQuery()) {
+				int res = 0;
+				while (result.next()) {
+					res++;
+					handler.onRow(result);
 				}
-			} catch (Exception e) {
-				throw new KlabStorageException(e);
+				handler.nResults(res);
 			}
+		} catch (SQLException e) {
+			throw new KlabStorageException(e);
+		} finally {
+			releaseConnection(connection);
 		}
 	}
 
+	/**
+	 * Prepared version of {@link #queryIds(String)}.
+	 * 
+	 * @param query
+	 * @param parameters
+	 * @return the list of IDs resulting, or empty
+	 */
+	public List<Long> queryIds(String query, List<?> parameters) {
+
+		final List<Long> ret = new ArrayList<>();
+		query(query, parameters, new SQL.SimpleResultHandler() {
+
+			@Override
+			public void onRow(ResultSet rs) {
+				try {
+					ret.add(rs.getLong(1));
+				} catch (SQLException e) {
+				}
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * Run a query and return an iterator on its results, which must be closed to
+	 * release the connection.
+	 * 
+	 * @param sql
+	 * @return
+	 */
 	public DBIterator query(String sql) {
 
-		Connection connection = null;
+		Connection connection = getConnection();
 		Statement stmt = null;
 		try {
-			connection = getConnection();
 			stmt = connection.createStatement();
 			return new DBIterator(stmt.executeQuery(sql), stmt, connection);
 		} catch (SQLException e) {
+			releaseConnection(connection);
 			throw new KlabStorageException(e);
 		}
 	}
@@ -455,7 +535,8 @@ public class H2Database {
 					stmt = null;
 				}
 				if (connection != null) {
-					// connection.close();
+					releaseConnection(connection);
+					connection = null;
 				}
 			} catch (Exception e) {
 				throw new KlabStorageException(e);
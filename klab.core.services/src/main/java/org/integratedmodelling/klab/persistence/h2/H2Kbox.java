@@ -63,13 +63,28 @@ public abstract class H2Kbox {
 	}
 
 	public <T> List<T> querySql(String query, Class<T> cls, Channel monitor) {
+		return querySql(query, List.of(), cls, monitor);
+	}
+
+	/**
+	 * Run a query as a prepared statement with the passed parameters bound to its
+	 * placeholders, deserializing the results.
+	 * 
+	 * @param <T>
+	 * @param query
+	 * @param parameters
+	 * @param cls
+	 * @param monitor
+	 * @return
+	 */
+	public <T> List<T> querySql(String query, List<?> parameters, Class<T> cls, Channel monitor) {
 
 		Deserializer deserializer = getDeserializer(cls);
 
 		final List<T> ret = deserializer instanceof DeferredDeserializer ? new H2Result<T>(this, monitor)
 				: new ArrayList<>();
 
-		database.query(query, new SQL.ResultHandler() {
+		database.query(query, parameters, new SQL.ResultHandler() {
 
 			@SuppressWarnings("unchecked")
 			@Override
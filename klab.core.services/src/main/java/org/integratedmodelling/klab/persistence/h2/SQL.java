@@ -21,9 +21,12 @@
  *******************************************************************************/
 package org.integratedmodelling.klab.persistence.h2;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.integratedmodelling.klab.api.data.PODDataType;
@@ -77,6 +80,35 @@ public class SQL {
         return o instanceof String ? ("'" + o + "'") : (o == null ? "NULL" : o.toString());
     }
 
+    /**
+     * A list of n comma-separated placeholders, for IN clauses in prepared statements.
+     * 
+     * @param n
+     * @return
+     */
+    public static String placeholders(int n) {
+        return String.join(", ", Collections.nCopies(n, "?"));
+    }
+
+    /**
+     * Bind the passed values to the placeholders of a prepared statement in order. Shapes and
+     * geometries are bound as their WKT, so the statement should wrap their placeholders in
+     * ST_GeomFromText().
+     * 
+     * @param statement
+     * @param parameters
+     * @throws SQLException
+     */
+    public static void bind(PreparedStatement statement, List<?> parameters) throws SQLException {
+        for (int i = 0; i < parameters.size(); i++) {
+            Object o = parameters.get(i);
+            if (o instanceof SpaceImpl) {
+                o = ((ShapeImpl) ((SpaceImpl) o).getGeometricShape()).getStandardizedGeometry();
+            }
+            statement.setObject(i + 1, o instanceof Geometry ? o.toString() : o);
+        }
+    }
+
     /**
      * Passed to some SQL kboxes' query() to ease handling of statements and connections.
      * 
@@ -0,0 +1,97 @@
+package org.integratedmodelling.klab.runtime.language;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.integratedmodelling.klab.api.exceptions.KlabInternalErrorException;
+import org.integratedmodelling.klab.api.knowledge.Expression;
+import org.integratedmodelling.klab.api.scope.Scope;
+
+/**
+ * A scalar expression compiled by {@link ScalarExpressionCompiler} into a method handle tree over a
+ * <code>double[]</code> of input slots, one per identifier in {@link #getInputs()} order. Booleans
+ * are represented as 1 and 0 and NaN is nodata, propagated by every operator. Instances are
+ * immutable and can be shared by any number of threads, each passing its own slot array.
+ *
+ * <p>The handle is a per-instance value, so {@link #evaluate(double[])} cannot be constant-folded
+ * or inlined by the JIT, and each evaluation is a call into the compiled handle tree.
+ */
+public class CompiledExpression implements Expression {
+
+  private final String code;
+  private final List<String> inputs;
+  private final transient MethodHandle handle;
+
+  CompiledExpression(String code, List<String> inputs, MethodHandle handle) {
+    this.code = code;
+    this.inputs = inputs;
+    this.handle = handle;
+  }
+
+  /**
+   * The identifiers used in the expression, in the order of their slots.
+   *
+   * @return
+   */
+  public List<String> getInputs() {
+    return inputs;
+  }
+
+  public String getCode() {
+    return code;
+  }
+
+  /**
+   * Evaluate over the passed input values, one per input in {@link #getInputs()} order.
+   *
+   * @param slots
+   * @return the value, NaN for nodata
+   */
+  public double evaluate(double[] slots) {
+    try {
+      return (double) handle.invokeExact(slots);
+    } catch (Throwable t) {
+      throw new KlabInternalErrorException(t);
+    }
+  }
+
+  /**
+   * Boxed evaluation for generic callers. Inputs are taken from the parameter pairs and maps passed
+   * as additional parameters; missing or non-numeric inputs are nodata.
+   */
+  @Override
+  public Object eval(Scope scope, Object... additionalParameters) {
+    var slots = new double[inputs.size()];
+    Arrays.fill(slots, Double.NaN);
+    if (additionalParameters != null) {
+      for (int i = 0; i < additionalParameters.length; i++) {
+        if (additionalParameters[i] instanceof Map<?, ?> map) {
+          for (var entry : map.entrySet()) {
+            setInput(slots, entry.getKey(), entry.getValue());
+          }
+        } else if (i + 1 < additionalParameters.length) {
+          setInput(slots, additionalParameters[i], additionalParameters[++i]);
+        }
+      }
+    }
+    return evaluate(slots);
+  }
+
+  private void setInput(double[] slots, Object identifier, Object value) {
+    int slot = inputs.indexOf(String.valueOf(identifier));
+    if (slot >= 0) {
+      slots[slot] =
+          switch (value) {
+            case Number number -> number.doubleValue();
+            case Boolean bool -> bool ? 1 : 0;
+            case null, default -> Double.NaN;
+          };
+    }
+  }
+
+  @Override
+  public String toString() {
+    return code;
+  }
+}
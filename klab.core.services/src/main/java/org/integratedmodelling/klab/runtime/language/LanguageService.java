@@ -22,7 +22,6 @@ import org.integratedmodelling.klab.api.services.runtime.extension.Extensions;
 import org.integratedmodelling.klab.components.ComponentRegistry;
 import org.integratedmodelling.klab.services.scopes.ServiceUserScope;
 
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -39,7 +38,10 @@ public class LanguageService implements Language {
 
   @Override
   public Expression compile(String expression, String language, CompilerOption... options) {
-    // TODO Auto-generated method stub
+    // TODO other languages and the non-scalar subset of the default one
+    if (language == null || DEFAULT_EXPRESSION_LANGUAGE.equals(language)) {
+      return ScalarExpressionCompiler.compile(expression, null);
+    }
     return null;
   }
 
@@ -85,13 +87,8 @@ public class LanguageService implements Language {
           return (T)
               componentRegistry
                   .implementation(descriptor)
-                  .method
-                  .invoke(
-                      descriptor.staticMethod
-                          ? null
-                          : componentRegistry.implementation(descriptor).mainClassInstance,
-                      getParameters(descriptor, call, scope, false));
-        } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+                  .invoke(getParameters(descriptor, call, scope, false));
+        } catch (Throwable e) {
           scope.error("runtime error when invoking function " + call.getUrn());
           return null;
         }
@@ -0,0 +1,457 @@
+package org.integratedmodelling.klab.runtime.language;
+
+import static java.lang.invoke.MethodType.methodType;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.integratedmodelling.klab.api.exceptions.KlabInternalErrorException;
+import org.integratedmodelling.klab.api.exceptions.KlabValidationException;
+
+/**
+ * Compiles scalar expressions into a {@link CompiledExpression}: the expression is parsed once and
+ * turned into a tree of method handles over a <code>double[]</code> of input slots, so that
+ * per-cell evaluation involves no parsing, tree walking, boxing or reflection. Subexpressions that
+ * use no inputs are folded into constants at compilation. The handle of each expression is held in
+ * an instance rather than in a constant, so the JIT does not inline the tree into its caller: each
+ * evaluation is a call into the compiled handle tree.
+ *
+ * <p>The syntax is the arithmetic and logical subset of the k.LAB expression language: numbers,
+ * identifiers, parentheses, <code>+ - * / %</code>, <code>**</code> for power, comparisons, <code>
+ * && || !</code> or <code>and or not</code>, the conditional <code>c ? a : b</code>, the constants
+ * <code>true false PI E</code> and the functions in {@link #FUNCTIONS}. Booleans are 1 and 0; NaN
+ * is nodata and propagates through every operator.
+ */
+public class ScalarExpressionCompiler {
+
+  private static final MethodType NODE = methodType(double.class, double[].class);
+  private static final MethodType UNARY = methodType(double.class, double.class);
+  private static final MethodType BINARY = methodType(double.class, double.class, double.class);
+  private static final MethodType TERNARY =
+      methodType(double.class, double.class, double.class, double.class);
+
+  /** Functions callable in expressions, by name. */
+  private static final Map<String, MethodHandle> FUNCTIONS = new HashMap<>();
+
+  private static final Map<String, MethodHandle> OPERATORS = new HashMap<>();
+  private static final MethodHandle CHOOSE;
+  private static final MethodHandle SLOT = MethodHandles.arrayElementGetter(double[].class);
+  private static final double[] NO_INPUTS = new double[0];
+
+  static {
+    var lookup = MethodHandles.lookup();
+    try {
+      for (var name :
+          new String[] {
+            "abs", "sqrt", "cbrt", "exp", "log", "log10", "sin", "cos", "tan", "asin", "acos",
+            "atan", "floor", "ceil", "signum"
+          }) {
+        FUNCTIONS.put(name, lookup.findStatic(Math.class, name, UNARY));
+      }
+      FUNCTIONS.put("round", lookup.findStatic(ScalarExpressionCompiler.class, "round", UNARY));
+      for (var name : new String[] {"min", "max", "pow", "atan2", "hypot"}) {
+        FUNCTIONS.put(name, lookup.findStatic(Math.class, name, BINARY));
+      }
+      for (var name :
+          new String[] {
+            "add", "sub", "mul", "div", "mod", "pow", "and", "or", "eq", "ne", "lt", "le", "gt",
+            "ge"
+          }) {
+        OPERATORS.put(name, lookup.findStatic(ScalarExpressionCompiler.class, name, BINARY));
+      }
+      OPERATORS.put("neg", lookup.findStatic(ScalarExpressionCompiler.class, "neg", UNARY));
+      OPERATORS.put("not", lookup.findStatic(ScalarExpressionCompiler.class, "not", UNARY));
+      CHOOSE = lookup.findStatic(ScalarExpressionCompiler.class, "choose", TERNARY);
+    } catch (ReflectiveOperationException e) {
+      throw new KlabInternalErrorException(e);
+    }
+  }
+
+  /** A compiled subexpression of type {@link #NODE}, flagged if it does not depend on inputs. */
+  private record Node(MethodHandle handle, boolean constant) {}
+
+  private final String code;
+  private final Collection<String> knownIdentifiers;
+  private final List<String> inputs = new ArrayList<>();
+  private int position;
+
+  private ScalarExpressionCompiler(String code, Collection<String> knownIdentifiers) {
+    this.code = code;
+    this.knownIdentifiers = knownIdentifiers;
+  }
+
+  /**
+   * Compile an expression.
+   *
+   * @param code the expression source
+   * @param knownIdentifiers the identifiers that can be used as inputs, or null to accept any
+   * @return the compiled expression, with one input per identifier used
+   * @throws KlabValidationException if the expression cannot be parsed or uses unknown identifiers
+   */
+  public static CompiledExpression compile(String code, Collection<String> knownIdentifiers) {
+    var compiler = new ScalarExpressionCompiler(code, knownIdentifiers);
+    var node = compiler.conditional();
+    compiler.skipWhitespace();
+    if (compiler.position < code.length()) {
+      throw compiler.error("unexpected input");
+    }
+    return new CompiledExpression(code, List.copyOf(compiler.inputs), node.handle());
+  }
+
+  private Node conditional() {
+    var condition = or();
+    if (accept("?")) {
+      var ifTrue = conditional();
+      expect(":");
+      var ifFalse = conditional();
+      return apply(CHOOSE, condition, ifTrue, ifFalse);
+    }
+    return condition;
+  }
+
+  private Node or() {
+    var ret = and();
+    while (accept("||") || acceptWord("or")) {
+      ret = apply(OPERATORS.get("or"), ret, and());
+    }
+    return ret;
+  }
+
+  private Node and() {
+    var ret = equality();
+    while (accept("&&") || acceptWord("and")) {
+      ret = apply(OPERATORS.get("and"), ret, equality());
+    }
+    return ret;
+  }
+
+  private Node equality() {
+    var ret = comparison();
+    while (true) {
+      if (accept("==")) {
+        ret = apply(OPERATORS.get("eq"), ret, comparison());
+      } else if (accept("!=")) {
+        ret = apply(OPERATORS.get("ne"), ret, comparison());
+      } else {
+        return ret;
+      }
+    }
+  }
+
+  private Node comparison() {
+    var ret = additive();
+    while (true) {
+      if (accept("<=")) {
+        ret = apply(OPERATORS.get("le"), ret, additive());
+      } else if (accept(">=")) {
+        ret = apply(OPERATORS.get("ge"), ret, additive());
+      } else if (accept("<")) {
+        ret = apply(OPERATORS.get("lt"), ret, additive());
+      } else if (accept(">")) {
+        ret = apply(OPERATORS.get("gt"), ret, additive());
+      } else {
+        return ret;
+      }
+    }
+  }
+
+  private Node additive() {
+    var ret = multiplicative();
+    while (true) {
+      if (accept("+")) {
+        ret = apply(OPERATORS.get("add"), ret, multiplicative());
+      } else if (accept("-")) {
+        ret = apply(OPERATORS.get("sub"), ret, multiplicative());
+      } else {
+        return ret;
+      }
+    }
+  }
+
+  private Node multiplicative() {
+    var ret = unary();
+    while (true) {
+      if (accept("*")) {
+        ret = apply(OPERATORS.get("mul"), ret, unary());
+      } else if (accept("/")) {
+        ret = apply(OPERATORS.get("div"), ret, unary());
+      } else if (accept("%")) {
+        ret = apply(OPERATORS.get("mod"), ret, unary());
+      } else {
+        return ret;
+      }
+    }
+  }
+
+  private Node unary() {
+    if (accept("-")) {
+      return apply(OPERATORS.get("neg"), unary());
+    } else if (accept("+")) {
+      return unary();
+    } else if ((!peek("!=") && accept("!")) || acceptWord("not")) {
+      return apply(OPERATORS.get("not"), unary());
+    }
+    return power();
+  }
+
+  private Node power() {
+    var base = primary();
+    if (accept("**")) {
+      // right-associative, binding tighter than unary minus on the left
+      return apply(OPERATORS.get("pow"), base, unary());
+    }
+    return base;
+  }
+
+  private Node primary() {
+    skipWhitespace();
+    if (accept("(")) {
+      var ret = conditional();
+      expect(")");
+      return ret;
+    }
+    if (position < code.length()
+        && (Character.isDigit(code.charAt(position)) || code.charAt(position) == '.')) {
+      return number();
+    }
+    if (position < code.length() && Character.isJavaIdentifierStart(code.charAt(position))) {
+      var identifier = identifier();
+      if (accept("(")) {
+        return call(identifier);
+      }
+      return switch (identifier) {
+        case "true" -> constant(1);
+        case "false" -> constant(0);
+        case "PI" -> constant(Math.PI);
+        case "E" -> constant(Math.E);
+        default -> input(identifier);
+      };
+    }
+    throw error(position < code.length() ? "unexpected character" : "unexpected end");
+  }
+
+  private Node call(String function) {
+    var handle = FUNCTIONS.get(function);
+    if (handle == null) {
+      throw error("unknown function " + function);
+    }
+    var arguments = new ArrayList<Node>();
+    if (!accept(")")) {
+      do {
+        arguments.add(conditional());
+      } while (accept(","));
+      expect(")");
+    }
+    if (arguments.size() != handle.type().parameterCount()) {
+      throw error(
+          "function "
+              + function
+              + " takes "
+              + handle.type().parameterCount()
+              + " arguments, "
+              + arguments.size()
+              + " given");
+    }
+    return apply(handle, arguments.toArray(new Node[0]));
+  }
+
+  private Node number() {
+    int start = position;
+    while (position < code.length()
+        && (Character.isDigit(code.charAt(position)) || code.charAt(position) == '.')) {
+      position++;
+    }
+    if (position < code.length()
+        && (code.charAt(position) == 'e' || code.charAt(position) == 'E')) {
+      position++;
+      if (position < code.length()
+          && (code.charAt(position) == '+' || code.charAt(position) == '-')) {
+        position++;
+      }
+      while (position < code.length() && Character.isDigit(code.charAt(position))) {
+        position++;
+      }
+    }
+    try {
+      return constant(Double.parseDouble(code.substring(start, position)));
+    } catch (NumberFormatException e) {
+      position = start;
+      throw error("invalid number");
+    }
+  }
+
+  private String identifier() {
+    int start = position;
+    while (position < code.length() && Character.isJavaIdentifierPart(code.charAt(position))) {
+      position++;
+    }
+    return code.substring(start, position);
+  }
+
+  private Node input(String identifier) {
+    if (knownIdentifiers != null && !knownIdentifiers.contains(identifier)) {
+      throw error("unknown identifier " + identifier);
+    }
+    int slot = inputs.indexOf(identifier);
+    if (slot < 0) {
+      slot = inputs.size();
+      inputs.add(identifier);
+    }
+    return new Node(MethodHandles.insertArguments(SLOT, 1, slot), false);
+  }
+
+  private static Node constant(double value) {
+    return new Node(
+        MethodHandles.dropArguments(
+            MethodHandles.constant(double.class, value), 0, double[].class),
+        true);
+  }
+
+  /**
+   * Feed the results of the argument nodes to the passed operator, collapsing the slot arrays of
+   * the arguments into the single one of the result. Constant arguments fold to a constant.
+   */
+  private static Node apply(MethodHandle operator, Node... arguments) {
+    var handles = new MethodHandle[arguments.length];
+    boolean constant = true;
+    for (int i = 0; i < arguments.length; i++) {
+      handles[i] = arguments[i].handle();
+      constant &= arguments[i].constant();
+    }
+    var handle = MethodHandles.filterArguments(operator, 0, handles);
+    if (arguments.length > 1) {
+      handle = MethodHandles.permuteArguments(handle, NODE, new int[arguments.length]);
+    }
+    if (constant) {
+      try {
+        return constant((double) handle.invokeExact(NO_INPUTS));
+      } catch (Throwable t) {
+        throw new KlabInternalErrorException(t);
+      }
+    }
+    return new Node(handle, false);
+  }
+
+  private void skipWhitespace() {
+    while (position < code.length() && Character.isWhitespace(code.charAt(position))) {
+      position++;
+    }
+  }
+
+  private boolean peek(String token) {
+    skipWhitespace();
+    return code.startsWith(token, position);
+  }
+
+  private boolean accept(String token) {
+    if (peek(token)) {
+      position += token.length();
+      return true;
+    }
+    return false;
+  }
+
+  private boolean acceptWord(String word) {
+    if (peek(word)
+        && (position + word.length() == code.length()
+            || !Character.isJavaIdentifierPart(code.charAt(position + word.length())))) {
+      position += word.length();
+      return true;
+    }
+    return false;
+  }
+
+  private void expect(String token) {
+    if (!accept(token)) {
+      throw error("expected '" + token + "'");
+    }
+  }
+
+  private KlabValidationException error(String message) {
+    return new KlabValidationException(
+        "Error compiling expression '" + code + "' at position " + position + ": " + message);
+  }
+
+  /*
+   * Operators. Arithmetic propagates NaN by itself; logic and comparisons must do it explicitly.
+   */
+
+  private static double add(double a, double b) {
+    return a + b;
+  }
+
+  private static double sub(double a, double b) {
+    return a - b;
+  }
+
+  private static double mul(double a, double b) {
+    return a * b;
+  }
+
+  private static double div(double a, double b) {
+    return a / b;
+  }
+
+  private static double mod(double a, double b) {
+    return a % b;
+  }
+
+  private static double pow(double a, double b) {
+    return Math.pow(a, b);
+  }
+
+  private static double neg(double a) {
+    return -a;
+  }
+
+  private static double not(double a) {
+    return Double.isNaN(a) ? Double.NaN : (a == 0 ? 1 : 0);
+  }
+
+  private static double and(double a, double b) {
+    return Double.isNaN(a) || Double.isNaN(b) ? Double.NaN : (a != 0 && b != 0 ? 1 : 0);
+  }
+
+  private static double or(double a, double b) {
+    return Double.isNaN(a) || Double.isNaN(b) ? Double.NaN : (a != 0 || b != 0 ? 1 : 0);
+  }
+
+  private static double eq(double a, double b) {
+    return Double.isNaN(a) || Double.isNaN(b) ? Double.NaN : (a == b ? 1 : 0);
+  }
+
+  private static double ne(double a, double b) {
+    return Double.isNaN(a) || Double.isNaN(b) ? Double.NaN : (a != b ? 1 : 0);
+  }
+
+  private static double lt(double a, double b) {
+    return Double.isNaN(a) || Double.isNaN(b) ? Double.NaN : (a < b ? 1 : 0);
+  }
+
+  private static double le(double a, double b) {
+    return Double.isNaN(a) || Double.isNaN(b) ? Double.NaN : (a <= b ? 1 : 0);
+  }
+
+  private static double gt(double a, double b) {
+    return Double.isNaN(a) || Double.isNaN(b) ? Double.NaN : (a > b ? 1 : 0);
+  }
+
+  private static double ge(double a, double b) {
+    return Double.isNaN(a) || Double.isNaN(b) ? Double.NaN : (a >= b ? 1 : 0);
+  }
+
+  /** Halves are rounded up, as by {@link Math#round(double)}, keeping NaN and large values. */
+  private static double round(double a) {
+    // beyond 2^52 every double is an integer, and Math.round would clamp it to the long range
+    return Math.abs(a) < 0x1p52 ? Math.round(a) : a;
+  }
+
+  private static double choose(double condition, double ifTrue, double ifFalse) {
+    return Double.isNaN(condition) ? Double.NaN : (condition != 0 ? ifTrue : ifFalse);
+  }
+}
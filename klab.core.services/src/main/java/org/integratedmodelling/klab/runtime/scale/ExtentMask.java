@@ -2,5 +2,5 @@ package org.integratedmodelling.klab.runtime.scale;
 
 public abstract class ExtentMask {
 
-	abstract boolean covers(long offset);
+	public abstract boolean covers(long offset);
 }
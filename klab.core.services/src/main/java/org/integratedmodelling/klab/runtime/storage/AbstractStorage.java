@@ -1,16 +1,24 @@
 package org.integratedmodelling.klab.runtime.storage;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongToDoubleFunction;
+import java.util.stream.LongStream;
 import org.integratedmodelling.klab.api.data.Data;
 import org.integratedmodelling.klab.api.data.Histogram;
 import org.integratedmodelling.klab.api.data.Storage;
+import org.integratedmodelling.klab.api.exceptions.KlabIllegalStateException;
 import org.integratedmodelling.klab.api.geometry.Geometry;
 import org.integratedmodelling.klab.api.knowledge.observation.Observation;
 import org.integratedmodelling.klab.api.scope.Persistence;
-import org.integratedmodelling.klab.data.histogram.SPDTHistogram;
+import org.integratedmodelling.klab.data.histogram.DoubleHistogram;
 import org.integratedmodelling.klab.services.scopes.ServiceContextScope;
 import org.integratedmodelling.klab.utilities.Utils;
+import org.ojalgo.array.BufferArray;
 
 /**
  * Abstract storage class providing geometry and buffer indexing, histograms, merging and splitting.
@@ -24,6 +32,7 @@ public abstract class AbstractStorage<B extends AbstractStorage.AbstractBuffer>
   protected final Geometry geometry;
   protected final ServiceContextScope contextScope;
   List<AbstractBuffer> buffers = new ArrayList<>();
+  private DoubleHistogram mergedHistogram;
 
   protected AbstractStorage(
       Type type,
@@ -38,24 +47,129 @@ public abstract class AbstractStorage<B extends AbstractStorage.AbstractBuffer>
   }
 
   /**
-   * Retrieve the merged histogram. TODO we should cache if the owning state is finalized.
+   * Retrieve the histogram merged from those of all buffers, covering the filler ranges completed so
+   * far. Once all buffers are finalized the merged histogram is cached until a buffer is added or
+   * released. The result is always a new histogram that callers can modify.
    *
    * @return
    */
-  public SPDTHistogram<?> histogram() {
-    if (buffers.size() == 1) {
-      return buffers.getFirst().histogram;
-    } else if (buffers.size() > 1) {
-      SPDTHistogram ret = new SPDTHistogram<>(20);
-      for (var buffer : buffers) {
+  public synchronized DoubleHistogram histogram() {
+    if (mergedHistogram != null) {
+      return new DoubleHistogram().merge(mergedHistogram);
+    }
+    var ret = new DoubleHistogram();
+    boolean finalized = !buffers.isEmpty();
+    for (var buffer : buffers) {
+      // fillers merge into the buffer histogram under the buffer's lock
+      synchronized (buffer) {
         if (buffer.histogram != null) {
           ret.merge(buffer.histogram);
         }
       }
-      // TODO cache if storage is finalized
-      return ret;
+      finalized &= buffer.finalized;
+    }
+    if (finalized) {
+      mergedHistogram = ret;
+      return new DoubleHistogram().merge(ret);
     }
-    return new SPDTHistogram<>(20);
+    return ret;
+  }
+
+  /**
+   * Return a function giving the value at each offset of the geometry, nodata as NaN. Reads from a
+   * buffer covering the whole geometry, whose data is indexed by geometry offset whatever its fill
+   * curve, as fillers write each value at the offset given by the curve's cursor. Storages filled
+   * by tiles are read from the tile buffers, indexed by the offset of their first cell, as long as
+   * they cover the geometry without gaps.
+   *
+   * @return
+   * @throws KlabIllegalStateException if no buffer or set of tiles covers the whole geometry
+   */
+  public synchronized LongToDoubleFunction reader() {
+    var tiles = new TreeMap<Long, AbstractBuffer>();
+    for (var buffer : buffers) {
+      if (buffer.data == null) {
+        continue;
+      }
+      if (buffer.size == geometry.size()) {
+        return buffer.data::doubleValue;
+      }
+      tiles.put(firstCell(buffer.offsets), buffer);
+    }
+
+    long covered = 0;
+    for (var tile : tiles.entrySet()) {
+      if (tile.getKey() != covered) {
+        break;
+      }
+      covered += tile.getValue().size;
+    }
+    if (tiles.isEmpty() || covered != geometry.size()) {
+      throw new KlabIllegalStateException("No readable data in storage for " + observation);
+    }
+
+    var starts = tiles.keySet().stream().mapToLong(Long::longValue).toArray();
+    var data = tiles.values().stream().map(tile -> tile.data).toArray(BufferArray[]::new);
+    return offset -> {
+      int tile = Arrays.binarySearch(starts, offset);
+      if (tile < 0) {
+        tile = -tile - 2;
+      }
+      return data[tile].doubleValue(offset - starts[tile]);
+    };
+  }
+
+  /**
+   * Return a buffer covering the whole geometry along the passed fill curve, ready for the storage
+   * to be computed again, e.g. at each time step. The existing full buffer with that curve is
+   * emptied and reused, so that each computation does not add a buffer that {@link #reader()} would
+   * never see; all other buffers are released.
+   *
+   * @param fillCurve
+   * @param offsets
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized B refill(Data.FillCurve fillCurve, long[] offsets) {
+    AbstractBuffer reused = null;
+    for (var buffer : buffers) {
+      if (reused == null
+          && buffer.data != null
+          && buffer.size == geometry.size()
+          && buffer.fillCurve == fillCurve) {
+        reused = buffer;
+      } else {
+        buffer.release();
+      }
+    }
+    buffers.clear();
+    mergedHistogram = null;
+    if (reused == null) {
+      return buffer(geometry.size(), fillCurve, offsets);
+    }
+    reused.reset();
+    buffers.add(reused);
+    return (B) reused;
+  }
+
+  /**
+   * The offset in the geometry of the first cell of a buffer, from the offsets of the tile it was
+   * created for within each dimension.
+   *
+   * @param offsets
+   * @return
+   */
+  private long firstCell(long[] offsets) {
+    long ret = 0;
+    long stride = 1;
+    var dimensions = geometry.getDimensions();
+    for (int i = dimensions.size() - 1; i >= 0; i--) {
+      if (offsets != null && i < offsets.length) {
+        ret += offsets[i] * stride;
+      }
+      stride *= Math.max(1, dimensions.get(i).size());
+    }
+    return ret;
   }
 
   /** Base buffer provides the histogram and the geometry indexing/merging */
@@ -67,7 +181,11 @@ public abstract class AbstractStorage<B extends AbstractStorage.AbstractBuffer>
     private final long[] offsets;
     private final long id;
     private long internalId;
-    private SPDTHistogram<?> histogram;
+    private DoubleHistogram histogram;
+    private SlabAllocator.Slab slab;
+    private BufferArray data;
+    private final AtomicLong filled = new AtomicLong();
+    private volatile boolean finalized;
 
     protected AbstractBuffer(long size, Data.FillCurve fillCurve, long[] offsets) {
       this.id = stateStorage.nextBufferId();
@@ -76,7 +194,334 @@ public abstract class AbstractStorage<B extends AbstractStorage.AbstractBuffer>
       this.offsets = offsets;
       this.fillCurve = fillCurve;
       if (stateStorage.isRecordHistogram()) {
-        this.histogram = new SPDTHistogram<>(stateStorage.getHistogramBinSize());
+        this.histogram = new DoubleHistogram();
+      }
+    }
+
+    /**
+     * Allocate the off-heap slab backing this buffer, sized to the cells it covers rather than to
+     * the whole geometry.
+     *
+     * @return
+     */
+    protected BufferArray allocateData() {
+      this.slab = stateStorage.allocate(type, size);
+      this.data = slab.data();
+      return data;
+    }
+
+    /**
+     * The offsets in the backing data visited by a filler. A buffer covering the whole geometry is
+     * indexed through the fill curve cursor over it; a partial buffer is laid out along its own
+     * fill curve, so the offset is the position in the iteration.
+     *
+     * @return
+     */
+    protected PrimitiveIterator.OfLong cursor() {
+      return size == geometry.size()
+          ? fillCurve.cursor(geometry)
+          : LongStream.range(0, size).iterator();
+    }
+
+    /**
+     * Empty the buffer so that fillers can write all its cells again. The data keeps the old values
+     * until they are overwritten.
+     */
+    private synchronized void reset() {
+      filled.set(0);
+      finalized = false;
+      if (histogram != null) {
+        histogram = new DoubleHistogram();
+      }
+    }
+
+    /** Return the backing slab, if any, to the state storage for reuse. */
+    void release() {
+      if (slab != null) {
+        stateStorage.release(slab);
+        slab = null;
+        data = null;
+      }
+    }
+
+    /**
+     * True if the offsets visited by a filler are the positions along the fill curve, so that
+     * consecutive values can be written as contiguous runs without consulting the cursor. This
+     * holds for partial buffers and for the linear curves, whose cursors scan the data in order.
+     *
+     * @return
+     */
+    protected boolean isContiguous() {
+      return size != geometry.size()
+          || switch (fillCurve) {
+            case D1_LINEAR, DN_LINEAR, DN_InvLINEAR, D2_XY -> true;
+            default -> false;
+          };
+    }
+
+    /**
+     * Called by a filler when its range has been written. Merges the histogram of the range into
+     * the buffer's and finalizes the buffer once all its cells are filled. The buffer histogram is
+     * only accessed under the buffer's lock, so readers never see it while it's being merged.
+     *
+     * @param rangeHistogram
+     * @param cells
+     */
+    private void rangeFilled(DoubleHistogram rangeHistogram, long cells) {
+      if (rangeHistogram != null) {
+        synchronized (this) {
+          histogram.merge(rangeHistogram);
+        }
+      }
+      if (filled.addAndGet(cells) == size) {
+        finalizeStorage();
+      }
+    }
+
+    /**
+     * Return the filler for the numeric data in the passed off-heap array, or throw an exception if
+     * the filler class is not numeric.
+     *
+     * @param fillerClass
+     * @param data
+     * @return
+     * @param <T>
+     */
+    protected <T extends Data.Filler> T numericFiller(Class<T> fillerClass, BufferArray data) {
+      if (fillerClass == Data.DoubleFiller.class
+          || fillerClass == Data.IntFiller.class
+          || fillerClass == Data.LongFiller.class
+          || fillerClass == Data.FloatFiller.class) {
+        return (T) new NumericFiller(data, 0, size);
+      }
+      throw new KlabIllegalStateException("Unexpected filler type requested for buffer");
+    }
+
+    /**
+     * Return a numeric filler for the <code>length</code> cells starting at position <code>from
+     * </code> along the fill curve. Fillers over disjoint ranges can be used concurrently: each
+     * keeps its own histogram, which is merged into the buffer's when the range is full, and the
+     * buffer is finalized when all its cells have been written.
+     *
+     * @param fillerClass
+     * @param from
+     * @param length
+     * @return
+     * @param <T>
+     */
+    public <T extends Data.Filler> T filler(Class<T> fillerClass, long from, long length) {
+      if (data == null) {
+        throw new KlabIllegalStateException("Buffer has no numeric data to fill");
+      }
+      if (from < 0 || length < 0 || from + length > size) {
+        throw new KlabIllegalStateException(
+            "Filler range " + from + "+" + length + " exceeds buffer size " + size);
+      }
+      if (fillerClass == Data.DoubleFiller.class
+          || fillerClass == Data.IntFiller.class
+          || fillerClass == Data.LongFiller.class
+          || fillerClass == Data.FloatFiller.class) {
+        return (T) new NumericFiller(data, from, length);
+      }
+      throw new KlabIllegalStateException("Unexpected filler type requested for buffer");
+    }
+
+    /**
+     * Filler implementing all the numeric filler interfaces over the off-heap data. Contiguous
+     * buffers write bulk input as tight indexed runs and record the histogram once per run; the
+     * others advance the cursor for each value.
+     */
+    protected class NumericFiller
+        implements Data.DoubleFiller, Data.FloatFiller, Data.IntFiller, Data.LongFiller {
+
+      /** Size of the scratch array used to convert and stage bulk input. */
+      private static final int CHUNK = 4096;
+
+      private final BufferArray data;
+      private final PrimitiveIterator.OfLong iterator;
+      private final long start;
+      private final long end;
+      private final DoubleHistogram recorder;
+      private long position;
+      private double[] scratch;
+
+      protected NumericFiller(BufferArray data, long from, long length) {
+        this.data = data;
+        this.start = from;
+        this.position = from;
+        this.end = from + length;
+        // each filler records privately and merges into the buffer histogram when complete
+        this.recorder = histogram == null ? null : new DoubleHistogram();
+        if (isContiguous()) {
+          this.iterator = null;
+        } else {
+          this.iterator = cursor();
+          for (long i = 0; i < from; i++) {
+            iterator.nextLong();
+          }
+        }
+      }
+
+      private long next() {
+        if (position >= end) {
+          throw new KlabIllegalStateException("Buffer overflow: buffer was already filled");
+        }
+        long ret = iterator == null ? position : iterator.nextLong();
+        position++;
+        return ret;
+      }
+
+      private void advanced(long count) {
+        position += count;
+        if (position == end) {
+          rangeFilled(recorder, end - start);
+        }
+      }
+
+      private void single(double value) {
+        if (recorder != null) {
+          recorder.insert(value);
+        }
+        if (position == end) {
+          rangeFilled(recorder, end - start);
+        }
+      }
+
+      private double[] scratch() {
+        if (scratch == null) {
+          scratch = new double[CHUNK];
+        }
+        return scratch;
+      }
+
+      @Override
+      public void add(double value) {
+        data.set(next(), value);
+        single(value);
+      }
+
+      @Override
+      public void add(float value) {
+        data.set(next(), value);
+        single(value);
+      }
+
+      @Override
+      public void add(int value) {
+        data.set(next(), value);
+        single(value);
+      }
+
+      @Override
+      public void add(long value) {
+        data.set(next(), value);
+        single(value);
+      }
+
+      @Override
+      public void add(double[] values, int from, int len) {
+        if (iterator != null) {
+          Data.DoubleFiller.super.add(values, from, len);
+          return;
+        }
+        if (position + len > end) {
+          throw new KlabIllegalStateException("Buffer overflow: too many values for buffer");
+        }
+        for (int i = 0; i < len; i++) {
+          data.set(position + i, values[from + i]);
+        }
+        if (recorder != null) {
+          recorder.insert(values, from, len);
+        }
+        advanced(len);
+      }
+
+      @Override
+      public void add(float[] values, int from, int len) {
+        var run = scratch();
+        for (int done = 0; done < len; done += CHUNK) {
+          int n = Math.min(CHUNK, len - done);
+          for (int i = 0; i < n; i++) {
+            run[i] = values[from + done + i];
+          }
+          add(run, 0, n);
+        }
+      }
+
+      @Override
+      public void add(int[] values, int from, int len) {
+        var run = scratch();
+        for (int done = 0; done < len; done += CHUNK) {
+          int n = Math.min(CHUNK, len - done);
+          for (int i = 0; i < n; i++) {
+            run[i] = values[from + done + i];
+          }
+          add(run, 0, n);
+        }
+      }
+
+      @Override
+      public void add(long[] values, int from, int len) {
+        var run = scratch();
+        for (int done = 0; done < len; done += CHUNK) {
+          int n = Math.min(CHUNK, len - done);
+          for (int i = 0; i < n; i++) {
+            run[i] = values[from + done + i];
+          }
+          add(run, 0, n);
+        }
+      }
+
+      @Override
+      public void fill(java.nio.DoubleBuffer buffer) {
+        if (buffer.hasArray()) {
+          int len = buffer.remaining();
+          add(buffer.array(), buffer.arrayOffset() + buffer.position(), len);
+          buffer.position(buffer.position() + len);
+          return;
+        }
+        var run = scratch();
+        while (buffer.hasRemaining()) {
+          int n = Math.min(CHUNK, buffer.remaining());
+          buffer.get(run, 0, n);
+          add(run, 0, n);
+        }
+      }
+
+      @Override
+      public void fill(java.nio.FloatBuffer buffer) {
+        var run = scratch();
+        while (buffer.hasRemaining()) {
+          int n = Math.min(CHUNK, buffer.remaining());
+          for (int i = 0; i < n; i++) {
+            run[i] = buffer.get();
+          }
+          add(run, 0, n);
+        }
+      }
+
+      @Override
+      public void fill(java.nio.IntBuffer buffer) {
+        var run = scratch();
+        while (buffer.hasRemaining()) {
+          int n = Math.min(CHUNK, buffer.remaining());
+          for (int i = 0; i < n; i++) {
+            run[i] = buffer.get();
+          }
+          add(run, 0, n);
+        }
+      }
+
+      @Override
+      public void fill(java.nio.LongBuffer buffer) {
+        var run = scratch();
+        while (buffer.hasRemaining()) {
+          int n = Math.min(CHUNK, buffer.remaining());
+          for (int i = 0; i < n; i++) {
+            run[i] = buffer.get();
+          }
+          add(run, 0, n);
+        }
       }
     }
 
@@ -117,26 +562,38 @@ public abstract class AbstractStorage<B extends AbstractStorage.AbstractBuffer>
       this.internalId = internalId;
     }
 
-    public SPDTHistogram<?> getHistogram() {
+    public synchronized DoubleHistogram getHistogram() {
       return histogram;
     }
 
-    public void setHistogram(SPDTHistogram<?> histogram) {
+    public synchronized void setHistogram(DoubleHistogram histogram) {
       this.histogram = histogram;
     }
 
+    /**
+     * True once the last value has been added through a filler. The buffer is immutable after
+     * that.
+     *
+     * @return
+     */
+    public boolean isFinalized() {
+      return finalized;
+    }
+
     @Override
     public Persistence persistence() {
       return persistence;
     }
 
-    public Histogram histogram() {
-      return this.histogram.asHistogram();
+    public synchronized Histogram histogram() {
+      return (this.histogram == null ? new DoubleHistogram() : this.histogram)
+          .asHistogram(stateStorage.getHistogramBinSize());
     }
 
     protected void finalizeStorage() {
-      // TODO doing nothing at the moment. Should create images, statistics etc. within the storage
-      //  manager based on the fill curve.
+      this.finalized = true;
+      // TODO should create images, statistics etc. within the storage manager based on the fill
+      //  curve.
     }
 
     @Override
@@ -154,18 +611,31 @@ public abstract class AbstractStorage<B extends AbstractStorage.AbstractBuffer>
           + id
           + '\''
           + ", histogram="
-          + Utils.Json.asString(histogram.asHistogram())
+          + Utils.Json.asString(histogram())
           + '}';
     }
   }
 
-  protected void registerBuffer(AbstractBuffer buffer) {
+  /**
+   * Release the data of all buffers to the state storage. The storage is empty after this is
+   * called.
+   */
+  synchronized void release() {
+    for (var buffer : buffers) {
+      buffer.release();
+    }
+    buffers.clear();
+    mergedHistogram = null;
+  }
+
+  protected synchronized void registerBuffer(AbstractBuffer buffer) {
     // TODO index geometries, validate
     buffers.add(buffer);
+    mergedHistogram = null;
   }
 
   @Override
-  public List<Storage.Buffer> buffers() {
+  public synchronized List<Storage.Buffer> buffers() {
     // hope this gets optimized
     return buffers.stream().map(b -> (Storage.Buffer) b).toList();
   }
@@ -182,7 +652,7 @@ public abstract class AbstractStorage<B extends AbstractStorage.AbstractBuffer>
 
   @Override
   public Histogram getHistogram() {
-    return histogram().asHistogram();
+    return histogram().asHistogram(stateStorage.getHistogramBinSize());
   }
 
   @Override
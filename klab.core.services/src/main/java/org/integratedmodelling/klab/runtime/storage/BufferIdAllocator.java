@@ -0,0 +1,118 @@
+package org.integratedmodelling.klab.runtime.storage;
+
+import org.integratedmodelling.klab.api.exceptions.KlabIOException;
+import org.integratedmodelling.klab.configuration.ServiceConfiguration;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates the buffer IDs for all the {@link StateStorageImpl}s in the runtime. IDs are reserved in
+ * blocks: the upper bound of the current block is written to the property file before any ID in it
+ * is handed out, so that IDs stay unique across reboots and crashes while only one in {@link
+ * #BLOCK_SIZE} allocations touches the filesystem. Unused IDs in a block are lost on restart.
+ */
+class BufferIdAllocator {
+
+  private static final String NEXT_ID_PROPERTY = "storage.mmap.nextid";
+
+  /** Number of IDs reserved with each write of the property file. */
+  static final long BLOCK_SIZE = 4096;
+
+  private static BufferIdAllocator instance;
+
+  private final File propertyFile;
+  private final AtomicLong nextId = new AtomicLong(0);
+  private volatile long reservedLimit;
+
+  /**
+   * Use {@link #getInstance()} except to read a separate property file.
+   *
+   * @param propertyFile holding the limit of the last reserved block
+   */
+  BufferIdAllocator(File propertyFile) {
+    this.propertyFile = propertyFile;
+    readConfiguration();
+  }
+
+  /**
+   * The allocator is shared because the property file is the same for every storage in the
+   * runtime.
+   *
+   * @return
+   */
+  static synchronized BufferIdAllocator getInstance() {
+    if (instance == null) {
+      instance =
+          new BufferIdAllocator(
+              ServiceConfiguration.INSTANCE.getFileWithTemplate(
+                  "storage.properties", NEXT_ID_PROPERTY + "=0"));
+    }
+    return instance;
+  }
+
+  /**
+   * Return a new unique ID. Lock-free unless the ID falls outside the reserved block.
+   *
+   * @return
+   */
+  long nextId() {
+    long ret = nextId.incrementAndGet();
+    if (ret > reservedLimit) {
+      reserve(ret);
+    }
+    return ret;
+  }
+
+  private synchronized void reserve(long id) {
+    if (id <= reservedLimit) {
+      // another thread has reserved the block while we waited
+      return;
+    }
+    long limit = (id / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    writeConfiguration(limit);
+    reservedLimit = limit;
+  }
+
+  private void readConfiguration() {
+    Properties properties = new Properties();
+    try (InputStream input = new FileInputStream(propertyFile)) {
+      properties.load(input);
+      long persisted = Long.parseLong(properties.getProperty(NEXT_ID_PROPERTY));
+      // anything up to the persisted limit may have been handed out before a shutdown or crash
+      this.nextId.set(persisted);
+      this.reservedLimit = persisted;
+    } catch (Exception e) {
+      throw new KlabIOException("cannot read configuration properties");
+    }
+  }
+
+  /**
+   * Write the new limit to a temporary file, sync it and atomically move it over the property file,
+   * so that a crash leaves either the old or the new limit and never a truncated file.
+   */
+  private void writeConfiguration(long limit) {
+    Properties p = new Properties();
+    p.setProperty(NEXT_ID_PROPERTY, limit + "");
+    File temp = new File(propertyFile.getPath() + ".tmp");
+    try {
+      try (var output = new FileOutputStream(temp)) {
+        p.store(output, null);
+        output.getFD().sync();
+      }
+      Files.move(
+          temp.toPath(),
+          propertyFile.toPath(),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (Exception e) {
+      throw new KlabIOException(e);
+    }
+  }
+}
@@ -1,9 +1,7 @@
 package org.integratedmodelling.klab.runtime.storage;
 
-import java.util.PrimitiveIterator;
 
 import org.integratedmodelling.klab.api.data.Data;
-import org.integratedmodelling.klab.api.exceptions.KlabIllegalStateException;
 import org.integratedmodelling.klab.api.geometry.Geometry;
 import org.integratedmodelling.klab.api.knowledge.observation.Observation;
 import org.integratedmodelling.klab.services.scopes.ServiceContextScope;
@@ -23,77 +21,12 @@ public class LongStorage extends AbstractStorage<LongStorage.LongBuffer> {
 
     protected LongBuffer(long size, Data.FillCurve fillCurve, long[] offsets) {
         super(size, fillCurve, offsets);
-      this.data = stateStorage.getLongBuffer(geometry.size());
+      this.data = allocateData();
     }
 
     @Override
     public <T extends Data.Filler> T filler(Class<T> fillerClass) {
-
-      final PrimitiveIterator.OfLong iterator = fillCurve().cursor(geometry);
-
-      if (fillerClass == Data.DoubleFiller.class) {
-        return (T)
-            new Data.DoubleFiller() {
-
-              @Override
-              public void add(double value) {
-                data.add(iterator.nextLong(), value);
-                  if (getHistogram() != null) {
-                      getHistogram().insert((double)value);
-                  }
-                if (!iterator.hasNext()) {
-                  finalizeStorage();
-                }
-              }
-            };
-      } else if (fillerClass == Data.IntFiller.class) {
-        return (T)
-            new Data.IntFiller() {
-
-              @Override
-              public void add(int value) {
-                data.add(iterator.nextLong(), (double) value);
-                  if (getHistogram() != null) {
-                      getHistogram().insert((double)value);
-                  }
-                if (!iterator.hasNext()) {
-                  finalizeStorage();
-                }
-              }
-            };
-      } else if (fillerClass == Data.LongFiller.class) {
-        return (T)
-            new Data.LongFiller() {
-
-              @Override
-              public void add(long value) {
-                data.add(iterator.nextLong(), (double) value);
-                  if (getHistogram() != null) {
-                      getHistogram().insert((double)value);
-                  }
-                if (!iterator.hasNext()) {
-                  finalizeStorage();
-                }
-              }
-            };
-      } else if (fillerClass == Data.FloatFiller.class) {
-        return (T)
-            new Data.FloatFiller() {
-
-              @Override
-              public void add(float value) {
-                data.add(iterator.nextLong(), value);
-                  if (getHistogram() != null) {
-                      getHistogram().insert((double)value);
-                  }
-                if (!iterator.hasNext()) {
-                  finalizeStorage();
-                }
-              }
-            };
-      }
-
-      throw new KlabIllegalStateException("Unexpected filler type requested for buffer");
+      return numericFiller(fillerClass, data);
     }
   }
 
@@ -0,0 +1,297 @@
+package org.integratedmodelling.klab.runtime.storage;
+
+import org.integratedmodelling.klab.api.data.Storage;
+import org.integratedmodelling.klab.api.exceptions.KlabStorageException;
+import org.integratedmodelling.klab.api.exceptions.KlabUnimplementedException;
+import org.integratedmodelling.klab.utilities.Utils;
+import org.ojalgo.array.BufferArray;
+
+import java.io.File;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Slab allocator for the memory-mapped buffers of one {@link StateStorageImpl}. Each slab is a
+ * separate segment file in the storage workspace, sized to the cells of the buffer it backs and
+ * rounded up to {@link #GRANULE} so that released slabs can be handed to later buffers of similar
+ * size. The total mapped size is bounded by an off-heap budget: free slabs are discarded before an
+ * allocation that would exceed it is refused.
+ *
+ * <p>Java offers no way to unmap a file explicitly: a mapping goes away when its buffer is
+ * collected. Discarded slabs are therefore tracked until their data has been collected, and only
+ * then stop counting against the budget. When the budget is short, the allocator asks for a
+ * collection and waits briefly for discarded mappings to go, as the JDK does for direct buffers.
+ */
+class SlabAllocator {
+
+  /** Allocation granule in cells. Slab capacities are always a multiple of this. */
+  static final long GRANULE = 4096;
+
+  /** Released slabs more than this many times larger than a request are not reused for it. */
+  private static final long MAX_REUSE_WASTE = 2;
+
+  /** Times to wait for discarded mappings to be collected before refusing an allocation. */
+  private static final int MAX_UNMAP_WAITS = 8;
+
+  enum Kind {
+    DOUBLE("d", 8, BufferArray.R064::newMapped),
+    FLOAT("f", 4, BufferArray.R032::newMapped),
+    LONG("l", 4, BufferArray.Z032::newMapped),
+    INT("i", 2, BufferArray.Z016::newMapped),
+    BOOLEAN("b", 1, BufferArray.Z008::newMapped);
+
+    final String prefix;
+    final int bytesPerCell;
+    final Function<File, BufferArray.MappedFileFactory> factory;
+
+    Kind(String prefix, int bytesPerCell, Function<File, BufferArray.MappedFileFactory> factory) {
+      this.prefix = prefix;
+      this.bytesPerCell = bytesPerCell;
+      this.factory = factory;
+    }
+
+    static Kind forType(Storage.Type type) {
+      return switch (type) {
+        case DOUBLE -> DOUBLE;
+        case FLOAT -> FLOAT;
+        case LONG -> LONG;
+        case INTEGER -> INT;
+        case BOOLEAN -> BOOLEAN;
+        default -> throw new KlabUnimplementedException("no off-heap storage for type " + type);
+      };
+    }
+  }
+
+  /** Tracks the mapping of a slab until its data has been collected and the file unmapped. */
+  private static final class Mapping extends PhantomReference<BufferArray> {
+
+    private final long bytes;
+    private boolean discarded;
+
+    private Mapping(BufferArray data, long bytes, ReferenceQueue<BufferArray> queue) {
+      super(data, queue);
+      this.bytes = bytes;
+    }
+  }
+
+  /** A mapped segment file backing one buffer at a time. */
+  static final class Slab {
+
+    private final Kind kind;
+    private final File file;
+    private final long capacity;
+    private final BufferArray data;
+    private Mapping mapping;
+
+    private Slab(Kind kind, File file, long capacity, BufferArray data) {
+      this.kind = kind;
+      this.file = file;
+      this.capacity = capacity;
+      this.data = data;
+    }
+
+    BufferArray data() {
+      return data;
+    }
+
+    long capacity() {
+      return capacity;
+    }
+
+    long bytes() {
+      return capacity * kind.bytesPerCell;
+    }
+  }
+
+  private final File workspace;
+  private final long budget;
+  private final Map<Kind, TreeMap<Long, Deque<Slab>>> free = new EnumMap<>(Kind.class);
+  // strongly held so that the references are enqueued when the data is collected
+  private final Set<Mapping> mappings = new HashSet<>();
+  private final ReferenceQueue<BufferArray> unmapped = new ReferenceQueue<>();
+  private long mappedBytes;
+  // the part of the above held by discarded slabs that have not been collected yet
+  private long discardedBytes;
+  private long nextSegment;
+
+  /**
+   * @param workspace the directory for the segment files, private to the owning storage
+   * @param budget maximum number of bytes mapped at any time, free slabs included
+   */
+  SlabAllocator(File workspace, long budget) {
+    this.workspace = workspace;
+    this.budget = budget;
+    for (var kind : Kind.values()) {
+      free.put(kind, new TreeMap<>());
+    }
+  }
+
+  /**
+   * Obtain a zeroed slab able to hold <code>size</code> cells of the passed type, reusing a
+   * released one when one of acceptable capacity exists.
+   *
+   * @param type
+   * @param size
+   * @return
+   * @throws KlabStorageException if the off-heap budget does not allow the allocation
+   */
+  synchronized Slab allocate(Storage.Type type, long size) {
+
+    var kind = Kind.forType(type);
+    long capacity = Math.max(1, (size + GRANULE - 1) / GRANULE) * GRANULE;
+
+    var candidates = free.get(kind).ceilingEntry(capacity);
+    if (candidates != null && candidates.getKey() <= capacity * MAX_REUSE_WASTE) {
+      var ret = candidates.getValue().pop();
+      if (candidates.getValue().isEmpty()) {
+        free.get(kind).remove(candidates.getKey());
+      }
+      ret.data.fillAll(0.0);
+      return ret;
+    }
+
+    long bytes = capacity * kind.bytesPerCell;
+    reclaim();
+    if (mappedBytes + bytes > budget) {
+      evict(mappedBytes + bytes - budget);
+      awaitUnmapped(bytes);
+      if (mappedBytes + bytes > budget) {
+        throw new KlabStorageException(
+            "off-heap storage budget of "
+                + budget
+                + " bytes exceeded allocating "
+                + size
+                + " "
+                + type
+                + " cells");
+      }
+    }
+
+    var file = new File(workspace + File.separator + kind.prefix + (nextSegment++) + ".bin");
+    var ret = new Slab(kind, file, capacity, kind.factory.apply(file).make(capacity));
+    ret.mapping = new Mapping(ret.data, bytes, unmapped);
+    mappings.add(ret.mapping);
+    mappedBytes += bytes;
+    return ret;
+  }
+
+  /**
+   * Return a slab to the free pool. The segment file is kept mapped for reuse until the budget
+   * requires its space or the allocator is closed.
+   *
+   * @param slab
+   */
+  synchronized void release(Slab slab) {
+    free.get(slab.kind).computeIfAbsent(slab.capacity, c -> new ArrayDeque<>()).push(slab);
+  }
+
+  /**
+   * Bytes currently mapped, including the free slabs and the discarded ones whose data has not been
+   * collected yet.
+   */
+  synchronized long getMappedBytes() {
+    reclaim();
+    return mappedBytes;
+  }
+
+  /**
+   * Discard all free slabs and delete every segment file in the workspace. Slabs should be released
+   * before this is called; the mappings go away as their data is collected.
+   */
+  synchronized void close() {
+    for (var pool : free.values()) {
+      for (var slabs : pool.values()) {
+        slabs.forEach(this::discard);
+      }
+      pool.clear();
+    }
+    reclaim();
+    var files = workspace.listFiles();
+    if (files != null) {
+      for (var file : files) {
+        Utils.Files.deleteQuietly(file);
+      }
+    }
+  }
+
+  /**
+   * Discard free slabs, largest first, until at least <code>bytes</code> have been discarded. Their
+   * space is reclaimed once the mappings have been collected.
+   */
+  private void evict(long bytes) {
+    long evicted = 0;
+    for (var pool : free.values()) {
+      for (var capacity : new ArrayList<>(pool.descendingKeySet())) {
+        var slabs = pool.get(capacity);
+        while (!slabs.isEmpty() && evicted < bytes) {
+          var slab = slabs.pop();
+          evicted += slab.bytes();
+          discard(slab);
+        }
+        if (slabs.isEmpty()) {
+          pool.remove(capacity);
+        }
+        if (evicted >= bytes) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Delete the segment file of a slab that will not be used again. The file disappears from the
+   * workspace right away; its mapping stays until the slab's data is collected.
+   */
+  private void discard(Slab slab) {
+    slab.mapping.discarded = true;
+    discardedBytes += slab.bytes();
+    Utils.Files.deleteQuietly(slab.file);
+  }
+
+  /** Stop counting the mappings whose data has been collected. */
+  private void reclaim() {
+    Mapping mapping;
+    while ((mapping = (Mapping) unmapped.poll()) != null) {
+      unmapped(mapping);
+    }
+  }
+
+  private void unmapped(Mapping mapping) {
+    mappings.remove(mapping);
+    mappedBytes -= mapping.bytes;
+    if (mapping.discarded) {
+      discardedBytes -= mapping.bytes;
+    }
+  }
+
+  /**
+   * If the discarded mappings hold the space needed for <code>bytes</code> more, request a
+   * collection and wait a little for them to go.
+   */
+  private void awaitUnmapped(long bytes) {
+    if (mappedBytes + bytes <= budget || mappedBytes - discardedBytes + bytes > budget) {
+      return;
+    }
+    System.gc();
+    try {
+      for (int i = 0; i < MAX_UNMAP_WAITS && mappedBytes + bytes > budget; i++) {
+        var mapping = (Mapping) unmapped.remove(1L << i);
+        if (mapping != null) {
+          unmapped(mapping);
+        }
+        reclaim();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -3,7 +3,6 @@ package org.integratedmodelling.klab.runtime.storage;
 import org.integratedmodelling.klab.api.configuration.Configuration;
 import org.integratedmodelling.klab.api.data.Storage;
 import org.integratedmodelling.klab.api.digitaltwin.StateStorage;
-import org.integratedmodelling.klab.api.exceptions.KlabIOException;
 import org.integratedmodelling.klab.api.exceptions.KlabIllegalStateException;
 import org.integratedmodelling.klab.api.exceptions.KlabUnimplementedException;
 import org.integratedmodelling.klab.api.knowledge.observation.Observation;
@@ -13,17 +12,11 @@ import org.integratedmodelling.klab.api.services.KlabService;
 import org.integratedmodelling.klab.services.scopes.ServiceContextScope;
 import org.integratedmodelling.klab.utilities.Utils;
 import org.integratedmodelling.klab.configuration.ServiceConfiguration;
-import org.ojalgo.array.BufferArray;
 import org.ojalgo.concurrent.Parallelism;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Properties;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * There is one separate <code>StorageScope</code> in each {@link ContextScope}. It's built on
@@ -33,19 +26,13 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class StateStorageImpl implements StateStorage {
 
-  private static final String NEXT_ID_PROPERTY = "storage.mmap.nextid";
-
   private final ServiceContextScope contextScope;
-  private final File propertyFile;
+  private final BufferIdAllocator idAllocator;
+  private final SlabAllocator allocator;
   private File workspace;
-  private File floatBackupFile;
-  private File doubleBackupFile;
-  private File intBackupFile;
-  private File longBackupFile;
-  private File booleanBackupFile;
   private int histogramBinSize = 20;
-  private final Map<String, Storage<?>> storage = new HashMap<>();
-  private AtomicLong nextId = new AtomicLong(0);
+  // filled concurrently by the tiles of a contextualization
+  private final Map<String, Storage<?>> storage = new ConcurrentHashMap<>();
 
   public boolean isRecordHistogram() {
     return recordHistogram;
@@ -56,158 +43,45 @@ public class StateStorageImpl implements StateStorage {
   private Parallelism parallelism = Parallelism.ONE;
 
   public StateStorageImpl(KlabService service, ServiceContextScope scope) {
-    // choose the mm files, parallelism level and the floating point representation
+    // the scratch workspace is private to this storage, so the segment files are per-context
     this.workspace = ServiceConfiguration.INSTANCE.getScratchDataDirectory("ktmp");
-    this.floatBackupFile = new File(this.workspace + File.separator + "fstorage.bin");
-    this.doubleBackupFile = new File(this.workspace + File.separator + "dstorage.bin");
-    this.longBackupFile = new File(this.workspace + File.separator + "lstorage.bin");
-    this.intBackupFile = new File(this.workspace + File.separator + "istorage.bin");
-    this.booleanBackupFile = new File(this.workspace + File.separator + "bstorage.bin");
+    this.allocator =
+        new SlabAllocator(this.workspace, ServiceConfiguration.INSTANCE.getOffHeapStorageBudget());
     this.contextScope = scope;
-    this.propertyFile =
-        ServiceConfiguration.INSTANCE.getFileWithTemplate(
-            "storage.properties", NEXT_ID_PROPERTY + "=0");
+    this.idAllocator = BufferIdAllocator.getInstance();
     // TODO should have a cache of existing storages and create the storage lazy proxies for the
     //  existing ones.
-    readConfiguration();
-  }
-
-  // FIXME this is for floats; there should be factories created on demand for each type and size.
-  // Put
-  //  this in the
-  //  constructor
-  BufferArray.MappedFileFactory floatMappedArrayFactory = null;
-  BufferArray.MappedFileFactory doubleMappedArrayFactory = null;
-  BufferArray.MappedFileFactory intMappedArrayFactory = null;
-  BufferArray.MappedFileFactory longMappedArrayFactory = null;
-  BufferArray.MappedFileFactory booleanMappedArrayFactory = null;
-
-  public static void main(String[] args) throws InterruptedException {
-
-    //        for (int n = 1; n < 10; n++) {
-    //
-    //            var made = getFloatFactory().make(1000 * 1000);
-    //            AtomicInteger fatto = new AtomicInteger(0);
-    //            long start = System.currentTimeMillis();
-    //            for (int offset = 0; offset < made.size(); offset += made.size() / 10) {
-    //                int finalOffset = offset;
-    //                new Thread(() -> {
-    //                    System.out.println("Zana madonna faccio da " + finalOffset + " a " + (made
-    //                    .size() / 10 +
-    //                    finalOffset));
-    //                    for (long i = 0; i < made.size() / 10; i++) {
-    //                        made.set(i + finalOffset, (float) i);
-    //                    }
-    //                    fatto.set(fatto.get() + 1);
-    //                    System.out.println("Puta madonna fatto " + fatto.get() + " da " +
-    // finalOffset
-    //                    + " a " + (made
-    //                    .size() / 10 + finalOffset));
-    //                }).start();
-    //            }
-    //
-    //            while (fatto.get() < 10) Thread.sleep(100);
-    //            long end = System.currentTimeMillis();
-    //
-    //            System.out.println("Ci ho messo " + (end - start));
-    //
-    //            start = System.currentTimeMillis();
-    //            for (long i = 0; i < 1000 * 1000; i++) {
-    //                made.set(i, i);
-    //            }
-    //            System.out.println("Invece di " + (System.currentTimeMillis() - start));
-    //        }
-  }
-
-  private BufferArray.MappedFileFactory getFloatFactory() {
-    if (this.floatMappedArrayFactory == null) {
-      this.floatMappedArrayFactory = BufferArray.R032.newMapped(this.floatBackupFile);
-    }
-    return this.floatMappedArrayFactory;
   }
 
-  private BufferArray.MappedFileFactory getLongFactory() {
-    if (this.longMappedArrayFactory == null) {
-      this.longMappedArrayFactory = BufferArray.Z032.newMapped(this.longBackupFile);
-    }
-    return this.longMappedArrayFactory;
-  }
-
-  private BufferArray.MappedFileFactory getDoubleFactory() {
-    if (this.doubleMappedArrayFactory == null) {
-      this.doubleMappedArrayFactory = BufferArray.R064.newMapped(this.doubleBackupFile);
-    }
-    return this.doubleMappedArrayFactory;
-  }
-
-  /*
-  SHORT int. For now we use floats to encode longs
+  /**
+   * Release all storage and delete the segment files backing it. The storage cannot be used after
+   * this is called.
    */
-  private BufferArray.MappedFileFactory getIntFactory() {
-    if (this.intMappedArrayFactory == null) {
-      this.intMappedArrayFactory = BufferArray.Z016.newMapped(this.intBackupFile);
-    }
-    return this.intMappedArrayFactory;
+  public void close() {
+    clear();
+    allocator.close();
+    Utils.Files.deleteQuietly(workspace);
   }
 
   /**
-   * Bytes. Not sure we should have the overhead of packing bytes but maybe we should as bitmaps
-   * make wonderful cheap masks and they may intersect more cheaply than 2D geometries.
+   * Obtain a zeroed off-heap slab for a buffer of the passed type covering <code>size</code>
+   * cells.
    *
+   * @param type
+   * @param size
    * @return
    */
-  private BufferArray.MappedFileFactory getBooleanFactory() {
-    if (this.booleanMappedArrayFactory == null) {
-      this.booleanMappedArrayFactory = BufferArray.Z008.newMapped(this.booleanBackupFile);
-    }
-    return this.booleanMappedArrayFactory;
-  }
-
-  public void close() {
-
-    storage.clear();
-
-    // TODO this is crucial for everything, ensure it's complete
-    if (doubleMappedArrayFactory != null) {
-      doubleMappedArrayFactory = null;
-      Utils.Files.deleteQuietly(doubleBackupFile);
-    }
-    if (floatMappedArrayFactory != null) {
-      floatMappedArrayFactory = null;
-      Utils.Files.deleteQuietly(floatBackupFile);
-    }
-    if (intMappedArrayFactory != null) {
-      intMappedArrayFactory = null;
-      Utils.Files.deleteQuietly(intBackupFile);
-    }
-    if (booleanMappedArrayFactory != null) {
-      booleanMappedArrayFactory = null;
-      Utils.Files.deleteQuietly(booleanBackupFile);
-    }
-    if (longMappedArrayFactory != null) {
-      longMappedArrayFactory = null;
-      Utils.Files.deleteQuietly(longBackupFile);
-    }
+  SlabAllocator.Slab allocate(Storage.Type type, long size) {
+    return allocator.allocate(type, size);
   }
 
-  public BufferArray getIntBuffer(long sliceSize) {
-    return getIntFactory().make(sliceSize);
-  }
-
-  public BufferArray getLongBuffer(long sliceSize) {
-    return getLongFactory().make(sliceSize);
-  }
-
-  public BufferArray getFloatBuffer(long sliceSize) {
-    return getFloatFactory().make(sliceSize);
-  }
-
-  public BufferArray getBooleanBuffer(long sliceSize) {
-    return getBooleanFactory().make(sliceSize);
-  }
-
-  public BufferArray getDoubleBuffer(long sliceSize) {
-    return getDoubleFactory().make(sliceSize);
+  /**
+   * Return a slab to the allocator when the buffer it backs is discarded.
+   *
+   * @param slab
+   */
+  void release(SlabAllocator.Slab slab) {
+    allocator.release(slab);
   }
 
   public int getHistogramBinSize() {
@@ -243,30 +117,35 @@ public class StateStorageImpl implements StateStorage {
           };
     }
 
-    T ret = getExistingStorage(observation, (Class<T>) sClass);
-
-    if (ret == null) {
-      if (DoubleStorage.class.isAssignableFrom(sClass)) {
-        ret = (T) new DoubleStorage(observation, this, contextScope);
-      } else if (LongStorage.class.isAssignableFrom(sClass)) {
-        ret = (T) new LongStorage(observation, this, contextScope);
-      } else if (FloatStorage.class.isAssignableFrom(sClass)) {
-        ret = (T) new FloatStorage(observation, this, contextScope);
-      } else if (IntStorage.class.isAssignableFrom(sClass)) {
-        ret = (T) new IntStorage(observation, this, contextScope);
-      } else if (BooleanStorage.class.isAssignableFrom(sClass)) {
-        ret = (T) new BooleanStorage(observation, this, contextScope);
-      } else if (KeyedStorage.class.isAssignableFrom(sClass)) {
-        ret = (T) new KeyedStorage(observation, this, contextScope);
-      }
-    }
-
-    if (ret != null) {
-      // TODO load any pre-existing state
-      storage.put(observation.getUrn(), ret);
-      return ret;
+    final Class<?> storageType = sClass;
+    // atomic per observation, so that concurrent tiles share one storage and none of their buffers
+    // is lost
+    var ret =
+        storage.compute(
+            observation.getUrn(),
+            (urn, existing) ->
+                existing != null && storageType.isAssignableFrom(existing.getClass())
+                    ? existing
+                    : createStorage(observation, storageType));
+
+    // TODO load any pre-existing state
+    return (T) ret;
+  }
+
+  private Storage<?> createStorage(Observation observation, Class<?> sClass) {
+    if (DoubleStorage.class.isAssignableFrom(sClass)) {
+      return new DoubleStorage(observation, this, contextScope);
+    } else if (LongStorage.class.isAssignableFrom(sClass)) {
+      return new LongStorage(observation, this, contextScope);
+    } else if (FloatStorage.class.isAssignableFrom(sClass)) {
+      return new FloatStorage(observation, this, contextScope);
+    } else if (IntStorage.class.isAssignableFrom(sClass)) {
+      return new IntStorage(observation, this, contextScope);
+    } else if (BooleanStorage.class.isAssignableFrom(sClass)) {
+      return new BooleanStorage(observation, this, contextScope);
+    } else if (KeyedStorage.class.isAssignableFrom(sClass)) {
+      return new KeyedStorage(observation, this, contextScope);
     }
-
     throw new KlabUnimplementedException(
         "cannot create storage of class " + sClass.getCanonicalName());
   }
@@ -286,43 +165,28 @@ public class StateStorageImpl implements StateStorage {
     return null;
   }
 
+  /**
+   * Discard all storages, returning their slabs to the allocator so that the mapped regions are
+   * reused by any storage created afterwards. Use {@link #close()} to also unmap and delete them.
+   */
   @Override
   public void clear() {
-    // CHECK the implementation of close() is actually a clear(); close() may save state for later
-    // re-opening,
-    // depending on context persistence
-    close();
+    // CHECK close() may save state for later re-opening, depending on context persistence
+    for (var s : storage.values()) {
+      if (s instanceof AbstractStorage<?> abstractStorage) {
+        abstractStorage.release();
+      }
+    }
+    storage.clear();
   }
 
   /**
-   * Return a new unique ID for a buffer. TODO this must survive reboots.
+   * Return a new unique ID for a buffer. IDs survive reboots and are reserved in blocks by the
+   * {@link BufferIdAllocator}, so this only rarely touches the filesystem.
    *
    * @return
    */
   public long nextBufferId() {
-    long ret = nextId.incrementAndGet();
-    writeConfiguration();
-    return ret;
-  }
-
-  private void readConfiguration() {
-    Properties properties = new Properties();
-    try (InputStream input = new FileInputStream(propertyFile)) {
-      properties.load(input);
-      this.nextId.set(Long.parseLong(properties.getProperty(NEXT_ID_PROPERTY)));
-    } catch (Exception e) {
-      throw new KlabIOException("cannot read configuration properties");
-    }
-
-  }
-
-  private void writeConfiguration() {
-    Properties p = new Properties();
-    p.setProperty(NEXT_ID_PROPERTY, nextId.get()+"");
-    try {
-      p.store(new FileOutputStream(propertyFile), null);
-    } catch (Exception e) {
-      throw new KlabIOException(e);
-    }
+    return idAllocator.nextId();
   }
 }
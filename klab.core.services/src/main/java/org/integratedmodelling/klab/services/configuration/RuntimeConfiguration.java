@@ -13,6 +13,8 @@ public class RuntimeConfiguration {
     private String url = null;
     private String serviceId;
     private URI brokerURI;
+    private long tileCellBudget = 1024 * 1024;
+    private int knowledgeGraphSessions = 0;
 
     public List<String> getAllowedGroups() {
         return allowedGroups;
@@ -54,4 +56,32 @@ public class RuntimeConfiguration {
     public void setBrokerURI(URI brokerURI) {
         this.brokerURI = brokerURI;
     }
+
+    /**
+     * Maximum number of cells in each of the tiles that a large gridded observation is split into
+     * so that its contextualization can run in parallel. Zero or negative values disable tiling.
+     *
+     * @return
+     */
+    public long getTileCellBudget() {
+        return tileCellBudget;
+    }
+
+    public void setTileCellBudget(long tileCellBudget) {
+        this.tileCellBudget = tileCellBudget;
+    }
+
+    /**
+     * Maximum number of queries that can run concurrently on the knowledge graph. Zero or negative
+     * values use the number of available cores.
+     *
+     * @return
+     */
+    public int getKnowledgeGraphSessions() {
+        return knowledgeGraphSessions;
+    }
+
+    public void setKnowledgeGraphSessions(int knowledgeGraphSessions) {
+        this.knowledgeGraphSessions = knowledgeGraphSessions;
+    }
 }
@@ -6,6 +6,7 @@ import com.google.common.cache.LoadingCache;
 import java.net.URL;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 
 import org.integratedmodelling.common.utils.Utils;
@@ -31,6 +32,8 @@ import org.integratedmodelling.klab.api.services.resolver.ResolutionConstraint;
 import org.integratedmodelling.klab.api.services.runtime.Dataflow;
 import org.integratedmodelling.klab.api.services.runtime.Message;
 import org.integratedmodelling.klab.api.services.runtime.Report;
+import org.integratedmodelling.klab.runtime.language.CompiledExpression;
+import org.integratedmodelling.klab.runtime.language.ScalarExpressionCompiler;
 import org.integratedmodelling.klab.services.base.BaseService;
 import org.ojalgo.concurrent.Parallelism;
 
@@ -58,6 +61,8 @@ public class ServiceContextScope extends ServiceSessionScope implements ContextS
   protected Map<Observation, Geometry> currentlyObservedGeometries = new HashMap<>();
 
   LoadingCache<Long, Observation> observationCache;
+  // compiled expressions, shared by all the scopes of the same context
+  private Map<String, CompiledExpression> compiledExpressions;
 
   // This uses the SAME catalog, which should only be redefined when changing context or perspective
   private ServiceContextScope(ServiceContextScope parent) {
@@ -67,6 +72,7 @@ public class ServiceContextScope extends ServiceSessionScope implements ContextS
     this.contextObservation = parent.contextObservation;
     this.digitalTwin = parent.digitalTwin;
     this.observationCache = parent.observationCache;
+    this.compiledExpressions = parent.compiledExpressions;
     this.resolutionConstraints.putAll(parent.resolutionConstraints);
   }
 
@@ -116,6 +122,7 @@ public class ServiceContextScope extends ServiceSessionScope implements ContextS
                     return digitalTwin.getKnowledgeGraph().get(key, Observation.class);
                   }
                 });
+    this.compiledExpressions = new ConcurrentHashMap<>();
     /*
      * TODO choose the services if this context or user requires specific ones
      */
@@ -159,6 +166,23 @@ public class ServiceContextScope extends ServiceSessionScope implements ContextS
     }
   }
 
+  /**
+   * Return the compiled form of a scalar expression, compiling it only the first time the same
+   * code is seen with the same inputs in this context. Non-API.
+   *
+   * @param code the expression source
+   * @param inputTypes the storage type of each identifier available as input
+   * @return
+   * @throws org.integratedmodelling.klab.api.exceptions.KlabValidationException if the expression
+   *     does not compile
+   */
+  public CompiledExpression getCompiledExpression(
+      String code, Map<String, Storage.Type> inputTypes) {
+    return compiledExpressions.computeIfAbsent(
+        code + " " + new TreeMap<>(inputTypes),
+        key -> ScalarExpressionCompiler.compile(code, inputTypes.keySet()));
+  }
+
   @Override
   public Observation getObserverOf(Observation observation) {
     return null;
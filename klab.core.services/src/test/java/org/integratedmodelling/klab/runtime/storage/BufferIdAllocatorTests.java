@@ -0,0 +1,84 @@
+package org.integratedmodelling.klab.runtime.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Properties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Reservation of ID blocks in the property file and uniqueness of the IDs across restarts. */
+class BufferIdAllocatorTests {
+
+  private static final long BLOCK_SIZE = BufferIdAllocator.BLOCK_SIZE;
+
+  @TempDir File directory;
+  File propertyFile;
+
+  @BeforeEach
+  void createPropertyFile() throws Exception {
+    propertyFile = new File(directory, "storage.properties");
+    Files.writeString(propertyFile.toPath(), "storage.mmap.nextid=0");
+  }
+
+  private long persistedLimit() throws Exception {
+    var properties = new Properties();
+    try (var input = new FileInputStream(propertyFile)) {
+      properties.load(input);
+    }
+    return Long.parseLong(properties.getProperty("storage.mmap.nextid"));
+  }
+
+  @Test
+  void blockIsReservedBeforeItsFirstId() throws Exception {
+    var allocator = new BufferIdAllocator(propertyFile);
+    assertEquals(1, allocator.nextId());
+    assertEquals(BLOCK_SIZE, persistedLimit());
+    for (long i = 2; i <= BLOCK_SIZE; i++) {
+      assertEquals(i, allocator.nextId());
+    }
+    // the whole block is handed out without writing again
+    assertEquals(BLOCK_SIZE, persistedLimit());
+    assertEquals(BLOCK_SIZE + 1, allocator.nextId());
+    assertEquals(2 * BLOCK_SIZE, persistedLimit());
+    // no temporary file is left behind
+    assertEquals(1, directory.listFiles().length);
+  }
+
+  @Test
+  void idsAreUniqueAcrossRestarts() throws Exception {
+    var ids = new HashSet<Long>();
+    long last = 0;
+    // restart after a few IDs, after a whole block and right at the end of one
+    for (long handedOut : new long[] {10, BLOCK_SIZE + 5, BLOCK_SIZE - 1, 1}) {
+      var allocator = new BufferIdAllocator(propertyFile);
+      for (long i = 0; i < handedOut; i++) {
+        long id = allocator.nextId();
+        assertTrue(id > last);
+        assertTrue(ids.add(id));
+        last = id;
+      }
+      // a restart continues after the reserved limit, whatever was used of the block
+      assertTrue(persistedLimit() >= last);
+      assertEquals(0, persistedLimit() % BLOCK_SIZE);
+    }
+    assertEquals(10 + BLOCK_SIZE + 5 + BLOCK_SIZE - 1 + 1, ids.size());
+  }
+
+  @Test
+  void restartSkipsTheRestOfTheBlock() throws Exception {
+    var before = new BufferIdAllocator(propertyFile);
+    for (int i = 0; i < 10; i++) {
+      before.nextId();
+    }
+    // as after a crash: the new allocator starts past the whole reserved block
+    var after = new BufferIdAllocator(propertyFile);
+    assertEquals(BLOCK_SIZE + 1, after.nextId());
+    assertEquals(2 * BLOCK_SIZE, persistedLimit());
+  }
+}
@@ -0,0 +1,137 @@
+package org.integratedmodelling.klab.runtime.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.function.BooleanSupplier;
+import org.integratedmodelling.klab.api.data.Storage;
+import org.integratedmodelling.klab.api.exceptions.KlabStorageException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Reuse of released slabs, the off-heap budget and the tracking of discarded mappings. */
+class SlabAllocatorTests {
+
+  private static final long GRANULE = SlabAllocator.GRANULE;
+  // bytes of a one-granule slab of doubles
+  private static final long SLAB = GRANULE * 8;
+
+  @TempDir File workspace;
+
+  /** Request collections until the condition holds, as the JVM gives no guarantee on timing. */
+  private static boolean collectUntil(BooleanSupplier condition) throws InterruptedException {
+    for (int i = 0; i < 50 && !condition.getAsBoolean(); i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return condition.getAsBoolean();
+  }
+
+  @Test
+  void capacityIsRoundedToGranule() {
+    var allocator = new SlabAllocator(workspace, Long.MAX_VALUE);
+    assertEquals(GRANULE, allocator.allocate(Storage.Type.DOUBLE, 1).capacity());
+    assertEquals(GRANULE, allocator.allocate(Storage.Type.DOUBLE, GRANULE).capacity());
+    assertEquals(2 * GRANULE, allocator.allocate(Storage.Type.DOUBLE, GRANULE + 1).capacity());
+    assertEquals(4 * SLAB, allocator.getMappedBytes());
+    allocator.close();
+  }
+
+  @Test
+  void releasedSlabIsReusedZeroed() {
+    var allocator = new SlabAllocator(workspace, Long.MAX_VALUE);
+    var slab = allocator.allocate(Storage.Type.DOUBLE, 2 * GRANULE);
+    slab.data().set(10, 42.0);
+    allocator.release(slab);
+
+    var reused = allocator.allocate(Storage.Type.DOUBLE, GRANULE + 1);
+    assertSame(slab, reused);
+    assertEquals(0.0, reused.data().doubleValue(10));
+    assertEquals(2 * SLAB, allocator.getMappedBytes());
+    allocator.close();
+  }
+
+  @Test
+  void reuseIsLimitedToTwiceTheRequest() {
+    var allocator = new SlabAllocator(workspace, Long.MAX_VALUE);
+    var twoGranules = allocator.allocate(Storage.Type.DOUBLE, 2 * GRANULE);
+    var threeGranules = allocator.allocate(Storage.Type.DOUBLE, 3 * GRANULE);
+    allocator.release(threeGranules);
+    // three granules for a request of one wastes too much
+    var small = allocator.allocate(Storage.Type.DOUBLE, GRANULE);
+    assertNotSame(threeGranules, small);
+    allocator.release(twoGranules);
+    // two granules for one is acceptable, and the smallest fitting slab is chosen
+    assertSame(twoGranules, allocator.allocate(Storage.Type.DOUBLE, GRANULE));
+    assertSame(threeGranules, allocator.allocate(Storage.Type.DOUBLE, 2 * GRANULE));
+    allocator.close();
+  }
+
+  @Test
+  void slabsAreNotSharedAcrossTypes() {
+    var allocator = new SlabAllocator(workspace, Long.MAX_VALUE);
+    var doubles = allocator.allocate(Storage.Type.DOUBLE, GRANULE);
+    allocator.release(doubles);
+    assertNotSame(doubles, allocator.allocate(Storage.Type.FLOAT, GRANULE));
+    assertSame(doubles, allocator.allocate(Storage.Type.DOUBLE, GRANULE));
+    allocator.close();
+  }
+
+  @Test
+  void budgetIsEnforced() {
+    var allocator = new SlabAllocator(workspace, 2 * SLAB);
+    var first = allocator.allocate(Storage.Type.DOUBLE, GRANULE);
+    allocator.allocate(Storage.Type.DOUBLE, GRANULE);
+    // both slabs are in use, so nothing can be evicted
+    assertThrows(KlabStorageException.class, () -> allocator.allocate(Storage.Type.DOUBLE, 1));
+    assertEquals(2 * SLAB, allocator.getMappedBytes());
+    // a released slab is reused within the budget
+    allocator.release(first);
+    assertSame(first, allocator.allocate(Storage.Type.DOUBLE, 1));
+    allocator.close();
+  }
+
+  @Test
+  void freeSlabsAreEvictedToMakeRoom() throws Exception {
+    var allocator = new SlabAllocator(workspace, 2 * SLAB);
+    var slab = allocator.allocate(Storage.Type.DOUBLE, 2 * GRANULE);
+    allocator.release(slab);
+    slab = null;
+
+    // a different type can't reuse the free slab, which must be discarded and unmapped instead
+    var ints = new SlabAllocator.Slab[1];
+    assertTrue(
+        collectUntil(
+            () -> {
+              try {
+                ints[0] = allocator.allocate(Storage.Type.INTEGER, 4 * GRANULE);
+                return true;
+              } catch (KlabStorageException e) {
+                return false;
+              }
+            }));
+    assertEquals(SLAB, allocator.getMappedBytes());
+    assertEquals(1, workspace.listFiles().length);
+    allocator.close();
+  }
+
+  @Test
+  void discardedSlabsCountUntilUnmapped() throws Exception {
+    var allocator = new SlabAllocator(workspace, Long.MAX_VALUE);
+    var slab = allocator.allocate(Storage.Type.DOUBLE, GRANULE);
+    allocator.release(slab);
+    allocator.close();
+
+    // the segment file goes right away, but the mapping lasts as long as its data
+    assertEquals(0, workspace.listFiles().length);
+    assertEquals(SLAB, allocator.getMappedBytes());
+    assertEquals(GRANULE, slab.capacity());
+
+    slab = null;
+    assertTrue(collectUntil(() -> allocator.getMappedBytes() == 0));
+  }
+}
@@ -0,0 +1,110 @@
+package org.integratedmodelling.klab.tests.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.integratedmodelling.klab.data.histogram.DoubleHistogram;
+import org.junit.jupiter.api.Test;
+
+/** Accuracy of the t-digest quantiles, cdf and merging against the exact sorted values. */
+class DoubleHistogramTests {
+
+  private static final int N = 100000;
+
+  private static double[] normal(long seed) {
+    var random = new Random(seed);
+    var ret = new double[N];
+    for (int i = 0; i < N; i++) {
+      ret[i] = random.nextGaussian() * 10 + 50;
+    }
+    return ret;
+  }
+
+  private static double exactQuantile(double[] sorted, double q) {
+    return sorted[(int) Math.min(sorted.length - 1, Math.floor(q * sorted.length))];
+  }
+
+  private static double exactCdf(double[] sorted, double value) {
+    int i = Arrays.binarySearch(sorted, value);
+    return (i < 0 ? -i - 1 : i + 1) / (double) sorted.length;
+  }
+
+  @Test
+  void quantiles() {
+    var values = normal(42);
+    var histogram = new DoubleHistogram();
+    histogram.insert(values, 0, values.length);
+    Arrays.sort(values);
+
+    assertEquals(N, histogram.getCount());
+    assertEquals(values[0], histogram.quantile(0));
+    assertEquals(values[N - 1], histogram.quantile(1));
+    for (double q : new double[] {0.001, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999}) {
+      // compare in rank space, where the t-digest error is bounded
+      double estimate = histogram.quantile(q);
+      assertEquals(q, exactCdf(values, estimate), 0.005, "quantile " + q);
+    }
+    assertEquals(exactQuantile(values, 0.5), histogram.quantile(0.5), 0.1);
+  }
+
+  @Test
+  void cdf() {
+    var values = normal(7);
+    var histogram = new DoubleHistogram();
+    histogram.insert(values, 0, values.length);
+    Arrays.sort(values);
+
+    assertEquals(0, histogram.cdf(values[0] - 1));
+    assertEquals(1, histogram.cdf(values[N - 1]));
+    for (double value : new double[] {20, 35, 45, 50, 55, 65, 80}) {
+      assertEquals(exactCdf(values, value), histogram.cdf(value), 0.005, "cdf at " + value);
+    }
+  }
+
+  @Test
+  void merge() {
+    var values = normal(3);
+    var whole = new DoubleHistogram();
+    whole.insert(values, 0, values.length);
+
+    // uneven parts, including an empty one, as filled by concurrent fillers
+    var merged = new DoubleHistogram();
+    int[] cuts = {0, 1, 777, 30000, 30000, 64001, N};
+    for (int i = 1; i < cuts.length; i++) {
+      var part = new DoubleHistogram();
+      part.insert(values, cuts[i - 1], cuts[i] - cuts[i - 1]);
+      merged.merge(part);
+    }
+
+    assertEquals(whole.getCount(), merged.getCount());
+    assertEquals(whole.getMinimum(), merged.getMinimum());
+    assertEquals(whole.getMaximum(), merged.getMaximum());
+    Arrays.sort(values);
+    for (double q : new double[] {0.01, 0.1, 0.5, 0.9, 0.99}) {
+      assertEquals(q, exactCdf(values, merged.quantile(q)), 0.005, "merged quantile " + q);
+    }
+  }
+
+  @Test
+  void nodataAndEmpty() {
+    var histogram = new DoubleHistogram();
+    assertTrue(histogram.isEmpty());
+    assertTrue(Double.isNaN(histogram.quantile(0.5)));
+    assertTrue(Double.isNaN(histogram.cdf(0)));
+
+    histogram.insert(Double.NaN);
+    histogram.insertMissing(2);
+    histogram.insert(5);
+    assertEquals(1, histogram.getCount());
+    assertEquals(3, histogram.getMissingCount());
+    assertEquals(5, histogram.quantile(0.5));
+
+    var other = new DoubleHistogram();
+    other.insert(Double.NaN);
+    histogram.merge(other);
+    assertEquals(4, histogram.getMissingCount());
+    assertEquals(1, histogram.getCount());
+  }
+}
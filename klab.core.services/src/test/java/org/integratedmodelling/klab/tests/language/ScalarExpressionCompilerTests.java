@@ -0,0 +1,137 @@
+package org.integratedmodelling.klab.tests.language;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import org.integratedmodelling.klab.api.exceptions.KlabValidationException;
+import org.integratedmodelling.klab.runtime.language.ScalarExpressionCompiler;
+import org.junit.jupiter.api.Test;
+
+/** Parsing, precedence, constant folding and nodata propagation of compiled scalar expressions. */
+class ScalarExpressionCompilerTests {
+
+  private static double eval(String code, double... inputs) {
+    return ScalarExpressionCompiler.compile(code, null).evaluate(inputs);
+  }
+
+  @Test
+  void precedence() {
+    assertEquals(7, eval("1 + 2 * 3"));
+    assertEquals(9, eval("(1 + 2) * 3"));
+    assertEquals(3, eval("10 - 4 - 3"));
+    assertEquals(2, eval("12 / 3 / 2"));
+    assertEquals(2, eval("2 * 3 % 4"));
+    assertEquals(1, eval("1 + 2 < 4 && 2 * 2 == 4"));
+    assertEquals(1, eval("1 < 2 == 1"));
+    assertEquals(1, eval("true || false && false"));
+    assertEquals(0, eval("(true || false) && false"));
+    assertEquals(-4, eval("-2 * 2"));
+  }
+
+  @Test
+  void conditional() {
+    var sign = ScalarExpressionCompiler.compile("x > 0 ? 1 : x < 0 ? -1 : 0", null);
+    assertEquals(1, sign.evaluate(new double[] {5}));
+    assertEquals(-1, sign.evaluate(new double[] {-5}));
+    assertEquals(0, sign.evaluate(new double[] {0}));
+    assertEquals(5, eval("1 ? 2 + 3 : 4"));
+  }
+
+  @Test
+  void powerIsRightAssociative() {
+    assertEquals(512, eval("2 ** 3 ** 2"));
+    assertEquals(64, eval("(2 ** 3) ** 2"));
+    assertEquals(-4, eval("-2 ** 2"));
+    assertEquals(0.5, eval("2 ** -1"));
+    assertEquals(18, eval("2 * 3 ** 2"));
+  }
+
+  @Test
+  void notAndNotEquals() {
+    assertEquals(1, eval("!0"));
+    assertEquals(0, eval("!x", 2));
+    assertEquals(1, eval("x != 1", 2));
+    assertEquals(1, eval("x!=1", 2));
+    assertEquals(1, eval("!x != 1", 2));
+    assertEquals(1, eval("!(x != 2)", 2));
+    assertEquals(1, eval("!!x", 2));
+  }
+
+  @Test
+  void logicalKeywords() {
+    assertEquals(1, eval("x > 1 and y > 1", 2, 2));
+    assertEquals(0, eval("x > 1 and y > 1", 2, 0));
+    assertEquals(1, eval("x > 1 or y > 1", 0, 2));
+    assertEquals(0, eval("not x", 1));
+    assertEquals(1, eval("not x and not y", 0, 0));
+    // identifiers starting with a keyword are not split
+    var expression = ScalarExpressionCompiler.compile("order or notes and android", null);
+    assertEquals(List.of("order", "notes", "android"), expression.getInputs());
+    assertEquals(1, expression.evaluate(new double[] {1, 0, 0}));
+  }
+
+  @Test
+  void inputsInOrderOfFirstUse() {
+    var expression = ScalarExpressionCompiler.compile("b + a * b", null);
+    assertEquals(List.of("b", "a"), expression.getInputs());
+    assertEquals(8, expression.evaluate(new double[] {2, 3}));
+  }
+
+  @Test
+  void constantFolding() {
+    var constant = ScalarExpressionCompiler.compile("sqrt(16) * (1 + 2) - max(2, 5) + PI", null);
+    assertTrue(constant.getInputs().isEmpty());
+    assertEquals(7 + Math.PI, constant.evaluate(new double[0]));
+    // constant subexpressions next to inputs
+    assertEquals(11, eval("x + 2 ** 3", 3));
+    assertEquals(6, eval("x * (true ? 2 : 3)", 3));
+    // a folded nodata propagates like any other
+    assertTrue(Double.isNaN(eval("0 / 0 + x", 1)));
+  }
+
+  @Test
+  void nodataPropagates() {
+    for (var code :
+        List.of(
+            "x + 1",
+            "-x",
+            "x ** 2",
+            "x > 1",
+            "x == x",
+            "x != 1",
+            "not x",
+            "x and 0",
+            "0 or x",
+            "x ? 1 : 2",
+            "max(x, 1)",
+            "round(x)")) {
+      assertTrue(Double.isNaN(eval(code, Double.NaN)), code);
+    }
+    // only the chosen branch matters
+    assertEquals(1, eval("true ? 1 : x", Double.NaN));
+  }
+
+  @Test
+  void roundHalfUp() {
+    assertEquals(3, eval("round(2.5)"));
+    assertEquals(4, eval("round(3.5)"));
+    assertEquals(2, eval("round(2.4)"));
+    assertEquals(-2, eval("round(-2.5)"));
+    assertEquals(-3, eval("round(-2.6)"));
+    assertEquals(1e300, eval("round(1e300)"));
+    assertEquals(Double.POSITIVE_INFINITY, eval("round(1 / 0)"));
+  }
+
+  @Test
+  void errors() {
+    for (var code : List.of("1 +", "(1", "1 2", "sqrt(1, 2)", "nope(1)", "x + y")) {
+      assertThrows(
+          KlabValidationException.class,
+          () -> ScalarExpressionCompiler.compile(code, Set.of("x")),
+          code);
+    }
+  }
+}
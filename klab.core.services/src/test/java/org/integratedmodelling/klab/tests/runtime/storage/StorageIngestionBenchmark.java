@@ -0,0 +1,85 @@
+package org.integratedmodelling.klab.tests.runtime.storage;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.integratedmodelling.klab.api.data.Data;
+import org.integratedmodelling.klab.api.geometry.Geometry;
+import org.integratedmodelling.klab.api.knowledge.observation.impl.ObservationImpl;
+import org.integratedmodelling.klab.runtime.storage.DoubleStorage;
+import org.integratedmodelling.klab.runtime.storage.StateStorageImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares cell-at-a-time and bulk ingestion of a 10^7-cell grid into a {@link DoubleStorage}
+ * buffer. Run with the main method or through the JMH runner on the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StorageIngestionBenchmark {
+
+  private static final String GRID = "S2(4000,2500)";
+
+  private StateStorageImpl stateStorage;
+  private ObservationImpl observation;
+  private double[] values;
+  private DoubleStorage.DoubleBuffer buffer;
+
+  @Setup(Level.Trial)
+  public void setupTrial() {
+    this.observation = new ObservationImpl();
+    this.observation.setUrn("benchmark");
+    this.observation.setGeometry(Geometry.create(GRID));
+    this.stateStorage = new StateStorageImpl(null, null);
+    this.values = new Random(42).doubles(observation.getGeometry().size()).toArray();
+  }
+
+  @Setup(Level.Invocation)
+  public void setupInvocation() {
+    // clearing returns the slab to the allocator, so each invocation reuses the same mapped region
+    stateStorage.clear();
+    var storage = stateStorage.getOrCreateStorage(observation, DoubleStorage.class);
+    this.buffer = storage.buffer(values.length, Data.FillCurve.D2_XY, new long[2]);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    stateStorage.close();
+  }
+
+  @Benchmark
+  public void cellAtATime() {
+    var filler = buffer.filler(Data.DoubleFiller.class);
+    for (double value : values) {
+      filler.add(value);
+    }
+  }
+
+  @Benchmark
+  public void bulk() {
+    buffer.filler(Data.DoubleFiller.class).add(values, 0, values.length);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder().include(StorageIngestionBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
@@ -1,5 +1,7 @@
 package org.integratedmodelling.klab.services.reasoner;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Sets;
 import org.integratedmodelling.common.lang.ContextualizableImpl;
 import org.integratedmodelling.common.lang.ServiceCallImpl;
@@ -21,6 +23,7 @@ import org.integratedmodelling.klab.configuration.ServiceConfiguration;
 import org.integratedmodelling.klab.utilities.Utils;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Specialized functions to infer observation strategies. Kept separately for clarity as this is a
@@ -29,6 +32,7 @@ import java.util.*;
 public class ObservationReasoner {
 
   private static Set<String> defaultVariables = Set.of("this", "context");
+  private static final int MAX_CACHED_MATCHES = 4096;
 
   private ReasonerService reasoner;
   private List<KimObservationStrategy> observationStrategies = new ArrayList<>();
@@ -43,6 +47,8 @@ public class ObservationReasoner {
     public boolean collectiveConstraints;
     public boolean collectiveOnly;
     public boolean nonCollectiveOnly;
+    // functions may depend on anything in the scope, so their results are never cached
+    public boolean usesFunctions;
 
     /**
      * Quick match to quickly weed out the non-matching classes and minimize the need for inference
@@ -81,6 +87,43 @@ public class ObservationReasoner {
    */
   private Map<String, QuickSemanticFilter> quickFilters = new HashMap<>();
 
+  /**
+   * Positions of the strategies, in rank order, that may match each semantic type according to
+   * their quick filters. Strategies whose filters don't name any type may match anything.
+   */
+  private record StrategyIndex(
+      List<KimObservationStrategy> strategies,
+      Map<SemanticType, BitSet> byType,
+      BitSet unrestricted) {
+
+    BitSet candidates(Observable observable) {
+      var ret = (BitSet) unrestricted.clone();
+      for (var type : observable.getSemantics().getType()) {
+        var positions = byType.get(type);
+        if (positions != null) {
+          ret.or(positions);
+        }
+      }
+      return ret;
+    }
+  }
+
+  /**
+   * A strategy that passed all the filters that can be evaluated once for the observable and
+   * scope, with its contextualized form if it needs no further matching, or null if its functions
+   * must run on each request.
+   */
+  private record Candidate(KimObservationStrategy definition, ObservationStrategy strategy) {}
+
+  // rebuilt on demand after the strategies change
+  private volatile StrategyIndex strategyIndex;
+  // incremented by invalidate(), so that results computed before it are not cached after it
+  private final AtomicLong generation = new AtomicLong();
+
+  // observable, description type and context observable -> candidates in rank order
+  private final Cache<String, List<Candidate>> matches =
+      CacheBuilder.newBuilder().maximumSize(MAX_CACHED_MATCHES).build();
+
   public ObservationReasoner(ReasonerService reasonerService) {
     this.reasoner = reasonerService;
     // ensure the core functor library is read. Plugins may add more.
@@ -93,6 +136,10 @@ public class ObservationReasoner {
    * Compile and return a list of matching, contextualized observation strategies that match the
    * observable and scope, in order of rank and cost, for the resolver to resolve.
    *
+   * <p>Matching only depends on the observable, its description type and the context observable,
+   * except for strategies that call functions, so the matches are cached by those until the
+   * strategies or the knowledge change. Function-based filters are evaluated again at each call.
+   *
    * @param observation
    * @param scope
    * @return
@@ -101,88 +148,151 @@ public class ObservationReasoner {
       Observation observation, ContextScope scope) {
 
     var observable = observation.getObservable();
+    var key =
+        observable.getUrn()
+            + "|"
+            + observable.getDescriptionType()
+            + "|"
+            + (scope.getContextObservation() == null
+                ? ""
+                : scope.getContextObservation().getObservable().getUrn());
+
+    var candidates = matches.getIfPresent(key);
+    if (candidates == null) {
+      long generation = this.generation.get();
+      candidates = new ArrayList<>();
+      var index = strategyIndex;
+      if (index == null) {
+        strategyIndex = index = indexStrategies();
+        if (this.generation.get() != generation) {
+          strategyIndex = null;
+        }
+      }
+      var positions = index.candidates(observable);
+      for (int i = positions.nextSetBit(0); i >= 0; i = positions.nextSetBit(i + 1)) {
+        var strategy = index.strategies().get(i);
+        QuickSemanticFilter filter = quickFilters.get(strategy.getUrn());
+        if (filter.fixedVariablesUsed.contains("context")
+            && scope.getContextObservation() == null) {
+          continue;
+        }
+        if (!filter.match(observable, scope)) {
+          continue;
+        }
+        if (filter.usesFunctions) {
+          candidates.add(new Candidate(strategy, null));
+        } else {
+          var matched = matchStrategy(strategy, filter, observation, scope);
+          if (matched != null) {
+            candidates.add(new Candidate(strategy, matched));
+          }
+        }
+      }
+      // checked after putting: an invalidate() after the check clears the entry anyway
+      matches.put(key, candidates);
+      if (this.generation.get() != generation) {
+        matches.invalidate(key);
+      }
+    }
+
     List<ObservationStrategy> ret = new ArrayList<>();
+    for (var candidate : candidates) {
+      var strategy =
+          candidate.strategy() == null
+              ? matchStrategy(
+                  candidate.definition(),
+                  quickFilters.get(candidate.definition().getUrn()),
+                  observation,
+                  scope)
+              : candidate.strategy();
+      if (strategy != null) {
+        ret.add(strategy);
+      }
+    }
 
-    for (var strategy : observationStrategies) {
+    return ret;
+  }
 
-      QuickSemanticFilter filter = quickFilters.get(strategy.getUrn());
+  /**
+   * Instantiate the pattern variables of a strategy that passed its quick filter and run its
+   * filters, returning the strategy contextualized to the observable if any filter matches.
+   *
+   * @return the contextualized strategy or null if the strategy does not apply
+   */
+  private ObservationStrategy matchStrategy(
+      KimObservationStrategy strategy,
+      QuickSemanticFilter filter,
+      Observation observation,
+      ContextScope scope) {
 
-      if (filter.fixedVariablesUsed.contains("context") && scope.getContextObservation() == null) {
-        continue;
-      }
+    var observable = observation.getObservable();
 
-      if (filter.match(observable, scope)) {
-
-        Map<String, Object> patternVariableValues = new HashMap<>();
-        for (var variable : filter.fixedVariablesUsed) {
-          patternVariableValues.put(
-              variable,
-              switch (variable) {
-                case "this" -> observable;
-                case "context" -> scope.getContextObservation().getObservable();
-                default ->
-                    throw new KlabUnimplementedException("predefined pattern variable " + variable);
-              });
-        }
+    Map<String, Object> patternVariableValues = new HashMap<>();
+    for (var variable : filter.fixedVariablesUsed) {
+      patternVariableValues.put(
+          variable,
+          switch (variable) {
+            case "this" -> observable;
+            case "context" -> scope.getContextObservation().getObservable();
+            default ->
+                throw new KlabUnimplementedException("predefined pattern variable " + variable);
+          });
+    }
 
-        for (var variable : strategy.getMacroVariables().keySet()) {
-          var functor = strategy.getMacroVariables().get(variable);
-          if (functor.getLiteral() != null) {
-            patternVariableValues.put(variable, Utils.Data.asString(functor.getLiteral()));
-          } else if (functor.getMatch() != null) {
-            // can't happen for now, parser won't accept. Should be a pattern to be useful.
-          } else if (!functor.getFunctions().isEmpty()) {
-            for (var function : functor.getFunctions()) {
-              var value =
-                  matchFunction(function, observable, scope, Object.class, patternVariableValues);
-              String[] varNames = variable.split(",");
-              if (value instanceof Collection<?> collection) {
-                // must be string with same amount of return values
-                if (varNames.length != collection.size()) {
-                  scope.error("wrong number of return values from " + function);
-                }
-                int i = 0;
-                for (var o : collection) {
-                  patternVariableValues.put(varNames[i++], o);
-                }
-              } else {
-                // set pattern var
-                if (varNames.length != 1) {
-                  scope.error("wrong number of return values from " + function);
-                }
-                patternVariableValues.put(variable, value);
-              }
+    for (var variable : strategy.getMacroVariables().keySet()) {
+      var functor = strategy.getMacroVariables().get(variable);
+      if (functor.getLiteral() != null) {
+        patternVariableValues.put(variable, Utils.Data.asString(functor.getLiteral()));
+      } else if (functor.getMatch() != null) {
+        // can't happen for now, parser won't accept. Should be a pattern to be useful.
+      } else if (!functor.getFunctions().isEmpty()) {
+        for (var function : functor.getFunctions()) {
+          var value =
+              matchFunction(function, observable, scope, Object.class, patternVariableValues);
+          String[] varNames = variable.split(",");
+          if (value instanceof Collection<?> collection) {
+            // must be string with same amount of return values
+            if (varNames.length != collection.size()) {
+              scope.error("wrong number of return values from " + function);
             }
-          }
-        }
-
-        // at least a matching filter is necessary
-        boolean match = false;
-        for (var filterList : strategy.getFilters()) {
-          for (var matching : filterList) {
-            if (matchFilter(matching, observation, scope, patternVariableValues)) {
-              match = true;
-              break;
+            int i = 0;
+            for (var o : collection) {
+              patternVariableValues.put(varNames[i++], o);
             }
-          }
-          if (match) {
-            break;
+          } else {
+            // set pattern var
+            if (varNames.length != 1) {
+              scope.error("wrong number of return values from " + function);
+            }
+            patternVariableValues.put(variable, value);
           }
         }
+      }
+    }
 
-        if (!match) {
-          continue;
+    // at least a matching filter is necessary
+    boolean match = false;
+    for (var filterList : strategy.getFilters()) {
+      for (var matching : filterList) {
+        if (matchFilter(matching, observation, scope, patternVariableValues)) {
+          match = true;
+          break;
         }
-
-        /*
-          if we get here, the strategy definition is a match: compile the observation strategy
-          operations for the observable and scope
-        */
-        ret.add(contextualizeStrategy(strategy, patternVariableValues));
+      }
+      if (match) {
+        break;
       }
     }
 
-    return ret;
+    if (!match) {
+      return null;
+    }
+
+    /*
+      if we get here, the strategy definition is a match: compile the observation strategy
+      operations for the observable and scope
+    */
+    return contextualizeStrategy(strategy, patternVariableValues);
   }
 
   private ObservationStrategy contextualizeStrategy(
@@ -289,12 +399,14 @@ public class ObservationReasoner {
             .toList();
     observationStrategies.clear();
     observationStrategies.addAll(filtered);
+    invalidate();
   }
 
   /** Add a new strategy or substitute the existing version of the same. */
   public void registerStrategy(KimObservationStrategy observationStrategy) {
     observationStrategies.add(observationStrategy);
     quickFilters.put(observationStrategy.getUrn(), computeInfo(observationStrategy));
+    invalidate();
   }
 
   public void initializeStrategies() {
@@ -305,6 +417,34 @@ public class ObservationReasoner {
             return Integer.compare(o1.getRank(), o2.getRank());
           }
         });
+    invalidate();
+  }
+
+  /**
+   * Drop the cached matches and the strategy index. Called when strategies change, and by the
+   * reasoner when the knowledge they are matched with does.
+   */
+  public void invalidate() {
+    generation.incrementAndGet();
+    strategyIndex = null;
+    matches.invalidateAll();
+  }
+
+  private StrategyIndex indexStrategies() {
+    var strategies = List.copyOf(observationStrategies);
+    Map<SemanticType, BitSet> byType = new EnumMap<>(SemanticType.class);
+    BitSet unrestricted = new BitSet();
+    for (int i = 0; i < strategies.size(); i++) {
+      var filter = quickFilters.get(strategies.get(i).getUrn());
+      if (filter.semanticTypesWhitelist.isEmpty()) {
+        unrestricted.set(i);
+      } else {
+        for (var type : filter.semanticTypesWhitelist) {
+          byType.computeIfAbsent(type, t -> new BitSet()).set(i);
+        }
+      }
+    }
+    return new StrategyIndex(strategies, byType, unrestricted);
   }
 
   private QuickSemanticFilter computeInfo(KimObservationStrategy observationStrategy) {
@@ -317,6 +457,9 @@ public class ObservationReasoner {
 
     for (var filter : observationStrategy.getFilters()) {
       for (var match : filter) {
+        if (!match.getFunctions().isEmpty()) {
+          ret.usesFunctions = true;
+        }
         // TODO negation is much more complicated
         if (match.getMatch() != null) {
           if (match.isNegated()) {
@@ -342,6 +485,12 @@ public class ObservationReasoner {
       }
     }
 
+    for (var functor : observationStrategy.getMacroVariables().values()) {
+      if (!functor.getFunctions().isEmpty()) {
+        ret.usesFunctions = true;
+      }
+    }
+
     if ((nCollective == 0 && nNoncollective > 0) || (nCollective > 0 && nNoncollective == 0)) {
       ret.collectiveConstraints = true;
       ret.collectiveOnly = nCollective > 0;
@@ -148,6 +148,11 @@ public class ReasonerService extends BaseService implements Reasoner, Reasoner.A
   private Cache<Integer, SemanticExpression> semanticExpressions =
       CacheBuilder.newBuilder().expireAfterAccess(10, TimeUnit.MINUTES).build();
 
+  /**
+   * Subsumption closure and semantic distances, replaced as a whole whenever the knowledge changes.
+   */
+  private volatile SubsumptionIndex subsumption = new SubsumptionIndex(this::parents);
+
   private final OWL owl;
   private final String hardwareSignature = Utils.Names.getHardwareId();
   static Pattern internalConceptPattern = Pattern.compile("[A-Z]+_[0-9]+");
@@ -610,17 +615,16 @@ public class ReasonerService extends BaseService implements Reasoner, Reasoner.A
 
   @Override
   public int semanticDistance(Semantics target, Semantics other) {
-    return semanticDistance(target.asConcept(), other.asConcept(), null, true, null);
+    return semanticDistance(target, other, null);
   }
 
   @Override
   public int semanticDistance(Semantics target, Semantics other, Semantics context) {
-    return semanticDistance(
-        target.asConcept(),
-        other.asConcept(),
-        context == null ? null : context.asConcept(),
-        true,
-        null);
+    var from = target.asConcept();
+    var to = other.asConcept();
+    var inContext = context == null ? null : context.asConcept();
+    return subsumption.semanticDistance(
+        from, to, inContext, () -> semanticDistance(from, to, inContext, true, null));
   }
 
   /**
@@ -1455,7 +1459,8 @@ public class ReasonerService extends BaseService implements Reasoner, Reasoner.A
       }
       this.owl.registerWithReasoner(ontology);
     }
-    this.owl.flushReasoner();
+    this.owl.classify();
+    this.subsumption = new SubsumptionIndex(this::parents);
     for (var strategyDocument : worldview.getObservationStrategies()) {
       for (var strategy : strategyDocument.getStatements()) {
         observationReasoner.registerStrategy(strategy);
@@ -1480,6 +1485,8 @@ public class ReasonerService extends BaseService implements Reasoner, Reasoner.A
     // delete caches
     this.concepts.invalidateAll();
     this.observables.invalidateAll();
+    this.subsumption = new SubsumptionIndex(this::parents);
+    this.observationReasoner.invalidate();
 
     boolean inconsistent = false;
 
@@ -1553,9 +1560,26 @@ public class ReasonerService extends BaseService implements Reasoner, Reasoner.A
       inconsistent = true;
       scope.send(Notification.error(t));
     } finally {
+      // drop anything indexed while the ontologies were being reloaded
+      this.subsumption = new SubsumptionIndex(this::parents);
       serviceScope().setMaintenanceMode(false);
     }
 
+    if (!changes.getOntologies().isEmpty()) {
+      // only the changed ontologies and those depending on them are classified again, out of
+      // maintenance so that concepts are served by the reasoner until the taxonomy is replaced
+      try {
+        this.owl.reclassify(
+            changes.getOntologies().stream().map(ResourceSet.Resource::getResourceUrn).toList());
+      } catch (Throwable t) {
+        inconsistent = true;
+        scope.send(Notification.error(t));
+      } finally {
+        // drop anything indexed against the previous taxonomy while reclassifying
+        this.subsumption = new SubsumptionIndex(this::parents);
+      }
+    }
+
     if (inconsistent) {
       this.consistent.set(false);
     }
@@ -1597,11 +1621,6 @@ public class ReasonerService extends BaseService implements Reasoner, Reasoner.A
       }
     }
 
-    /*
-     * TODO this would be a good point to insert caching logics. It should also go
-     * in all remote clients.
-     */
-
     /*
      * Speed up checking for logical expressions without forcing the reasoner to
      * compute complex logics.
@@ -1623,10 +1642,12 @@ public class ReasonerService extends BaseService implements Reasoner, Reasoner.A
       }
       return true;
 
-    } else {
+    } else if (other instanceof Concept otherConcept) {
       /*
-       * use the semantic closure. We may want to cache this eventually.
+       * use the semantic closure, indexed until the knowledge changes
        */
+      return subsumption.is(concept.asConcept(), otherConcept);
+    } else {
       Collection<Concept> collection = allParents(concept);
       collection.add(concept.asConcept());
       return collection.contains(other);
@@ -0,0 +1,119 @@
+package org.integratedmodelling.klab.services.reasoner;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import org.integratedmodelling.klab.api.knowledge.Concept;
+
+/**
+ * The subsumption closure of the concepts seen by the reasoner, computed on demand and kept until
+ * the knowledge changes. Each concept gets a dense integer ID and a bitset with the IDs of itself
+ * and all its ancestors, so that once a concept has been indexed, checking whether it is another is
+ * a bit test. Semantic distances only depend on the concepts compared, so they are memoized here as
+ * well.
+ *
+ * <p>Nothing is ever removed: the reasoner replaces the whole index when ontologies are loaded or
+ * updated, so that no reader sees a mix of old and new knowledge.
+ */
+class SubsumptionIndex {
+
+  private static final int MAX_CACHED_DISTANCES = 100000;
+
+  private final Function<Concept, Collection<Concept>> parents;
+  private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+  private final AtomicInteger nextId = new AtomicInteger();
+  // closures are immutable once published
+  private final Map<String, BitSet> closures = new ConcurrentHashMap<>();
+  private final Cache<String, Integer> distances =
+      CacheBuilder.newBuilder().maximumSize(MAX_CACHED_DISTANCES).build();
+
+  /**
+   * @param parents the direct parents of a concept, as asserted or inferred by the reasoner
+   */
+  SubsumptionIndex(Function<Concept, Collection<Concept>> parents) {
+    this.parents = parents;
+  }
+
+  /**
+   * True if the concept is the other or has it among its ancestors.
+   *
+   * @param concept
+   * @param other
+   * @return
+   */
+  boolean is(Concept concept, Concept other) {
+    var closure = closure(concept);
+    // indexing the concept assigns IDs to all its ancestors, so an unknown ID is not one of them
+    var id = ids.get(other.getUrn());
+    return id != null && closure.get(id);
+  }
+
+  /**
+   * Return the memoized semantic distance between the two concepts in the passed context, computing
+   * it if not seen before.
+   *
+   * @param from
+   * @param to
+   * @param context may be null
+   * @param distance computes the distance when it's not cached
+   * @return
+   */
+  int semanticDistance(Concept from, Concept to, Concept context, IntSupplier distance) {
+    var key = from.getUrn() + "|" + to.getUrn() + "|" + (context == null ? "" : context.getUrn());
+    var ret = distances.getIfPresent(key);
+    if (ret == null) {
+      // computed outside the cache's lock, as distances recurse into other distances
+      ret = distance.getAsInt();
+      distances.put(key, ret);
+    }
+    return ret;
+  }
+
+  private BitSet closure(Concept concept) {
+    var ret = closures.get(concept.getUrn());
+    return ret == null ? closure(concept, new HashSet<>(), new int[1]) : ret;
+  }
+
+  /**
+   * Compute the closure of a concept. A parent that is already being computed up the stack
+   * (possible with equivalent classes) is skipped, leaving the closures computed below it
+   * incomplete: those are returned to the caller, which completes its own, but not published.
+   */
+  private BitSet closure(Concept concept, Set<String> visiting, int[] truncations) {
+
+    var urn = concept.getUrn();
+    var ret = closures.get(urn);
+    if (ret != null) {
+      return ret;
+    }
+
+    ret = new BitSet();
+    ret.set(ids.computeIfAbsent(urn, k -> nextId.getAndIncrement()));
+    if (!visiting.add(urn)) {
+      truncations[0]++;
+      return ret;
+    }
+
+    int truncated = truncations[0];
+    for (var parent : parents.apply(concept)) {
+      ret.or(closure(parent, visiting, truncations));
+    }
+    visiting.remove(urn);
+
+    if (truncations[0] == truncated || visiting.isEmpty()) {
+      var previous = closures.putIfAbsent(urn, ret);
+      if (previous != null) {
+        return previous;
+      }
+    }
+    return ret;
+  }
+}
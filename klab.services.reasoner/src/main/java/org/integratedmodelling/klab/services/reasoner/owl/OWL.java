@@ -66,7 +66,9 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * Import concepts and properties from OWL ontologies.
@@ -89,10 +91,24 @@ public class OWL {
   private AtomicLong classId = new AtomicLong(1L);
   private Scope scope;
 
+  /*
+   * Concepts already derived through a semantic operator, read without locking. Only misses go
+   * through the OWL instance's monitor to declare the new axioms.
+   */
+  private record Derivation(UnarySemanticOperator operator, String concept, String comparison) {}
+
+  private final Map<Derivation, Concept> derivedConcepts = new ConcurrentHashMap<>();
+
   private boolean reasonerActive;
   private boolean reasonerSynchronizing = false;
   private Ontology mergedReasonerOntology;
   private OWLReasoner reasoner;
+  // inferred hierarchy of everything classified so far, replaced as a whole on reclassification
+  private volatile Taxonomy taxonomy = Taxonomy.EMPTY;
+  // classes created since the taxonomy was computed, added to it at the next subsumption query
+  private final Set<OWLClass> unclassified = ConcurrentHashMap.newKeySet();
+  // held while the unclassified classes are asked to the reasoner, one thread at a time
+  private final Object extending = new Object();
 
   // this is the ontology that imports all concepts including the worldview, on which the OWL
   // reasoner operates
@@ -134,6 +150,9 @@ public class OWL {
   private long registerOwlClass(OWLClass cls) {
     long ret = classId.getAndIncrement();
     owlClasses.put(ret, cls);
+    if (taxonomy != Taxonomy.EMPTY) {
+      unclassified.add(cls);
+    }
     return ret;
   }
 
@@ -314,6 +333,9 @@ public class OWL {
   //    }
   public void initialize(KimOntology rootDomain) {
 
+    derivedConcepts.clear();
+    taxonomy = Taxonomy.EMPTY;
+    unclassified.clear();
     manager = OWLManager.createOWLOntologyManager();
     // this.loadPath = loadPath;
     coreOntology = new CoreOntology(ServiceConfiguration.INSTANCE.getDataPath("knowledge"), this);
@@ -820,6 +842,9 @@ public class OWL {
 
   public void releaseOntology(Ontology ontology) {
 
+    // derived concepts may live in, or be defined from, the ontology being released
+    this.derivedConcepts.clear();
+
     this.namespaces.remove(ontology.getName());
     var onto = ontologies.remove(ontology.getName());
     for (var concept : onto.getConcepts()) {
@@ -1484,6 +1509,42 @@ public class OWL {
         relationship, hasTarget, LogicalConnector.UNION, Collections.singleton(target), ontology);
   }
 
+  /**
+   * Return the concept obtained by applying a semantic operator to another, optionally with a
+   * comparison concept. Concepts that have been derived already are returned without locking, so
+   * that concurrent resolutions only wait for each other when new axioms must be declared. The
+   * declaration runs while holding the monitor of this OWL instance, like every other change to
+   * the ontologies, and its result is published for everyone after that.
+   *
+   * @param operator
+   * @param concept
+   * @param comparison may be null
+   * @param declaration declares the derived concept or retrieves it from its ontology
+   * @return the derived concept, or null if the operator does not apply to the concept
+   */
+  private Concept derived(
+      UnarySemanticOperator operator,
+      Concept concept,
+      Concept comparison,
+      Supplier<Concept> declaration) {
+
+    var key =
+        new Derivation(operator, concept.getUrn(), comparison == null ? null : comparison.getUrn());
+    var ret = derivedConcepts.get(key);
+    if (ret == null) {
+      synchronized (this) {
+        ret = derivedConcepts.get(key);
+        if (ret == null) {
+          ret = declaration.get();
+          if (ret != null) {
+            derivedConcepts.put(key, ret);
+          }
+        }
+      }
+    }
+    return ret;
+  }
+
   /**
    * Analyze an observable concept and return the main observable with all the original identities
    * and realms but no attributes; separately, return the list of the attributes that were removed.
@@ -1536,6 +1597,10 @@ public class OWL {
   }
 
   public Concept makeNegation(Concept attribute) {
+    return derived(UnarySemanticOperator.NOT, attribute, null, () -> declareNegation(attribute));
+  }
+
+  private Concept declareNegation(Concept attribute) {
 
     var reas = scope.getService(org.integratedmodelling.klab.api.services.Reasoner.class);
 
@@ -1666,7 +1731,11 @@ public class OWL {
    * @param concept the untransformed concept
    * @return the transformed concept
    */
-  public synchronized Concept makeChange(Concept concept) {
+  public Concept makeChange(Concept concept) {
+    return derived(UnarySemanticOperator.CHANGE, concept, null, () -> declareChange(concept));
+  }
+
+  private Concept declareChange(Concept concept) {
 
     if (concept.is(SemanticType.CHANGE)) {
       return concept;
@@ -1729,7 +1798,11 @@ public class OWL {
    * @param concept the untransformed concept
    * @return the transformed concept
    */
-  public synchronized Concept makeRate(Concept concept) {
+  public Concept makeRate(Concept concept) {
+    return derived(UnarySemanticOperator.RATE, concept, null, () -> declareRate(concept));
+  }
+
+  private Concept declareRate(Concept concept) {
 
     if (concept.is(SemanticType.RATE)) {
       return concept;
@@ -1793,7 +1866,11 @@ public class OWL {
    * @param concept the untransformed concept
    * @return the transformed concept
    */
-  public synchronized Concept makeChanged(Concept concept) {
+  public Concept makeChanged(Concept concept) {
+    return derived(UnarySemanticOperator.CHANGED, concept, null, () -> declareChanged(concept));
+  }
+
+  private Concept declareChanged(Concept concept) {
 
     if (concept.is(SemanticType.CHANGED)) {
       return concept;
@@ -1856,7 +1933,11 @@ public class OWL {
    * @param concept the untransformed concept
    * @return the transformed concept
    */
-  public synchronized Concept makeCount(Concept concept) {
+  public Concept makeCount(Concept concept) {
+    return derived(UnarySemanticOperator.COUNT, concept, null, () -> declareCount(concept));
+  }
+
+  private Concept declareCount(Concept concept) {
 
     if (concept.is(SemanticType.NUMEROSITY)) {
       return concept;
@@ -1914,7 +1995,11 @@ public class OWL {
    * @param concept the untransformed concept
    * @return the transformed concept
    */
-  public synchronized Concept makeDistance(Concept concept) {
+  public Concept makeDistance(Concept concept) {
+    return derived(UnarySemanticOperator.DISTANCE, concept, null, () -> declareDistance(concept));
+  }
+
+  private Concept declareDistance(Concept concept) {
 
     if (concept.is(SemanticType.DISTANCE)) {
       return concept;
@@ -1967,7 +2052,11 @@ public class OWL {
    * @param concept the untransformed concept
    * @return the transformed concept
    */
-  public synchronized Concept makePresence(Concept concept) {
+  public Concept makePresence(Concept concept) {
+    return derived(UnarySemanticOperator.PRESENCE, concept, null, () -> declarePresence(concept));
+  }
+
+  private Concept declarePresence(Concept concept) {
 
     if (concept.is(SemanticType.PRESENCE)) {
       return concept;
@@ -2022,7 +2111,12 @@ public class OWL {
    * @param concept the untransformed concept. Must be a direct observable.
    * @return the transformed concept
    */
-  public synchronized Concept makeOccurrence(Concept concept) {
+  public Concept makeOccurrence(Concept concept) {
+    return derived(
+        UnarySemanticOperator.OCCURRENCE, concept, null, () -> declareOccurrence(concept));
+  }
+
+  private Concept declareOccurrence(Concept concept) {
 
     if (concept.is(SemanticType.OCCURRENCE)) {
       return concept;
@@ -2076,7 +2170,11 @@ public class OWL {
    * @param concept the untransformed concept. Must be an event.
    * @return the transformed concept
    */
-  public synchronized Concept makeMagnitude(Concept concept) {
+  public Concept makeMagnitude(Concept concept) {
+    return derived(UnarySemanticOperator.MAGNITUDE, concept, null, () -> declareMagnitude(concept));
+  }
+
+  private Concept declareMagnitude(Concept concept) {
 
     if (concept.is(SemanticType.MAGNITUDE)) {
       return concept;
@@ -2129,7 +2227,11 @@ public class OWL {
    * @param concept the untransformed concept. Must be an event.
    * @return the transformed concept
    */
-  public synchronized Concept makeLevel(Concept concept) {
+  public Concept makeLevel(Concept concept) {
+    return derived(UnarySemanticOperator.LEVEL, concept, null, () -> declareLevel(concept));
+  }
+
+  private Concept declareLevel(Concept concept) {
 
     if (concept.is(SemanticType.ORDERING)) {
       return concept;
@@ -2182,7 +2284,12 @@ public class OWL {
    * @param concept the untransformed concept. Must be an event.
    * @return the transformed concept
    */
-  public synchronized Concept makeProbability(Concept concept) {
+  public Concept makeProbability(Concept concept) {
+    return derived(
+        UnarySemanticOperator.PROBABILITY, concept, null, () -> declareProbability(concept));
+  }
+
+  private Concept declareProbability(Concept concept) {
 
     if (concept.is(SemanticType.PROBABILITY)) {
       return concept;
@@ -2234,7 +2341,12 @@ public class OWL {
    * @param concept the untransformed concept.
    * @return the transformed concept
    */
-  public synchronized Concept makeUncertainty(Concept concept) {
+  public Concept makeUncertainty(Concept concept) {
+    return derived(
+        UnarySemanticOperator.UNCERTAINTY, concept, null, () -> declareUncertainty(concept));
+  }
+
+  private Concept declareUncertainty(Concept concept) {
 
     if (concept.is(SemanticType.UNCERTAINTY)) {
       return concept;
@@ -2273,8 +2385,15 @@ public class OWL {
     return ontology.getConcept(conceptId);
   }
 
-  public synchronized Concept makeProportion(
-      Concept concept, Concept comparison, boolean isPercentage) {
+  public Concept makeProportion(Concept concept, Concept comparison, boolean isPercentage) {
+    return derived(
+        isPercentage ? UnarySemanticOperator.PERCENTAGE : UnarySemanticOperator.PROPORTION,
+        concept,
+        comparison,
+        () -> declareProportion(concept, comparison, isPercentage));
+  }
+
+  private Concept declareProportion(Concept concept, Concept comparison, boolean isPercentage) {
 
     if (concept.is(SemanticType.PROPORTION) || concept.is(SemanticType.PERCENTAGE)) {
       return concept;
@@ -2352,7 +2471,12 @@ public class OWL {
     return ontology.getConcept(conceptId);
   }
 
-  public synchronized Concept makeRatio(Concept concept, Concept comparison) {
+  public Concept makeRatio(Concept concept, Concept comparison) {
+    return derived(
+        UnarySemanticOperator.RATIO, concept, comparison, () -> declareRatio(concept, comparison));
+  }
+
+  private Concept declareRatio(Concept concept, Concept comparison) {
 
     if (concept.is(SemanticType.RATIO)) {
       return concept;
@@ -2431,7 +2555,15 @@ public class OWL {
     return ontology.getConcept(conceptId);
   }
 
-  public synchronized Concept makeValue(Concept concept, Concept comparison, boolean monetary) {
+  public Concept makeValue(Concept concept, Concept comparison, boolean monetary) {
+    return derived(
+        monetary ? UnarySemanticOperator.MONETARY_VALUE : UnarySemanticOperator.VALUE,
+        concept,
+        comparison,
+        () -> declareValue(concept, comparison, monetary));
+  }
+
+  private Concept declareValue(Concept concept, Concept comparison, boolean monetary) {
 
     if (concept.is(SemanticType.VALUE) || concept.is(SemanticType.MONETARY_VALUE)) {
       return concept;
@@ -2510,7 +2642,11 @@ public class OWL {
    * @param classified
    * @return
    */
-  public synchronized Concept makeType(Concept classified) {
+  public Concept makeType(Concept classified) {
+    return derived(UnarySemanticOperator.TYPE, classified, null, () -> declareType(classified));
+  }
+
+  private Concept declareType(Concept classified) {
 
     if (classified.is(SemanticType.CLASS)) {
       return classified;
@@ -2578,6 +2714,247 @@ public class OWL {
     }
   }
 
+  /**
+   * The taxonomy to answer subsumption queries, after adding any classes created since it was
+   * computed. These are asked once to the shared reasoner, so that the cost of each query does
+   * not grow with the number of concepts derived after classification.
+   */
+  private Taxonomy taxonomy() {
+    if (unclassified.isEmpty()) {
+      return taxonomy;
+    }
+    List<OWLClass> pending;
+    Map<String, Set<OWLClass>> added = new HashMap<>();
+    Map<OWLClass, Set<OWLClass>> ancestors = new HashMap<>();
+    Map<OWLClass, Set<OWLClass>> descendants = new HashMap<>();
+    Set<OWLClass> unsatisfiable = new HashSet<>();
+    synchronized (extending) {
+      pending = List.copyOf(unclassified);
+      if (pending.isEmpty()) {
+        return taxonomy;
+      }
+      // the shared reasoner buffers changes, so it doesn't know the new classes until flushed
+      flushReasoner();
+      var classified = taxonomy;
+      for (var cls : pending) {
+        if (classified.covers(cls)) {
+          continue;
+        }
+        added.computeIfAbsent(getConceptSpace(cls.getIRI()), n -> new HashSet<>()).add(cls);
+        ancestors.put(cls, hierarchy(cls, getSuperClasses(cls, false)));
+        descendants.put(cls, hierarchy(cls, getSubClasses(cls, false)));
+        if (!isSatisfiable(cls)) {
+          unsatisfiable.add(cls);
+        }
+      }
+    }
+    // not nested in the lock above, as callers may already hold the monitor. The
+    // taxonomy may have been extended or reclassified meanwhile, but the classes it already
+    // covers are skipped.
+    synchronized (this) {
+      taxonomy = taxonomy.extend(added, ancestors, descendants, unsatisfiable);
+      pending.forEach(unclassified::remove);
+      return taxonomy;
+    }
+  }
+
+  /** The classes in the reasoner's answer, except the passed one, owl:Thing and owl:Nothing. */
+  private static Set<OWLClass> hierarchy(OWLClass cls, NodeSet<OWLClass> classes) {
+    Set<OWLClass> ret = new HashSet<>();
+    for (var other : classes.getFlattened()) {
+      if (!(other.isTopEntity() || other.isBottomEntity() || other.equals(cls))) {
+        ret.add(other);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Classify all the ontologies loaded so far and make their taxonomy the one used to answer
+   * subsumption queries. Called once the worldview is loaded.
+   */
+  public synchronized void classify() {
+    if (reasoner != null) {
+      flushReasoner();
+      taxonomy = Taxonomy.classify(reasoner, declaredClasses(ontologies.keySet()));
+      unclassified.clear();
+    }
+  }
+
+  /**
+   * Reclassify the passed namespaces after their ontologies have been reloaded, along with those
+   * that refer to their concepts, directly or indirectly, and those whose classes may fall under
+   * their defined classes. The classification uses a separate reasoner on these ontologies and
+   * those they refer to, so ontologies unrelated to the changes are not reprocessed and their
+   * taxonomy is kept. The shared reasoner is left alone. Only loading the ontologies into the new
+   * reasoner holds the monitor of this instance: classifying them does not, so that concepts can
+   * be derived meanwhile. Queries keep using the previous taxonomy until the new one is complete
+   * and replaces it.
+   *
+   * @param changed the namespaces whose ontologies have been reloaded
+   * @return the namespaces that have been reclassified
+   */
+  public Set<String> reclassify(Collection<String> changed) {
+
+    if (reasoner == null) {
+      return Set.of();
+    }
+
+    Set<String> affected;
+    Map<String, Set<OWLClass>> classes;
+    OWLOntology merged;
+    OWLReasoner classifier;
+
+    synchronized (this) {
+
+      Map<String, Set<String>> references = new HashMap<>();
+      for (var namespace : ontologies.keySet()) {
+        references.put(namespace, referencedNamespaces(ontologies.get(namespace)));
+      }
+
+      affected = new HashSet<>(changed);
+      // classes anywhere may be inferred under the defined classes of the changed ontologies, or
+      // have been under their previous version
+      Set<String> defining = new HashSet<>();
+      for (var namespace : changed) {
+        defining.addAll(definitionNamespaces(ontologies.get(namespace)));
+      }
+      for (var entry : references.entrySet()) {
+        if (defining.contains(entry.getKey())
+            || !Collections.disjoint(entry.getValue(), defining)) {
+          affected.add(entry.getKey());
+        }
+      }
+      affected.addAll(taxonomy.dependents(changed));
+
+      boolean grown = true;
+      while (grown) {
+        grown = false;
+        for (var entry : references.entrySet()) {
+          if (!affected.contains(entry.getKey())
+              && !Collections.disjoint(entry.getValue(), affected)
+              && affected.add(entry.getKey())) {
+            grown = true;
+          }
+        }
+      }
+
+      Set<String> module = new HashSet<>();
+      var queue = new ArrayDeque<>(affected);
+      while (!queue.isEmpty()) {
+        var namespace = queue.poll();
+        if (module.add(namespace)) {
+          queue.addAll(references.getOrDefault(namespace, Set.of()));
+        }
+      }
+
+      Logging.INSTANCE.info(
+          "Reclassifying "
+              + affected.size()
+              + " of "
+              + ontologies.size()
+              + " namespaces using "
+              + module.size()
+              + " ontologies");
+
+      classes = declaredClasses(affected);
+      try {
+        merged = manager.createOntology();
+      } catch (OWLOntologyCreationException e) {
+        throw new KlabInternalErrorException(e);
+      }
+      try {
+        for (var namespace : module) {
+          var ontology = ontologies.get(namespace);
+          if (ontology != null && ontology != mergedReasonerOntology) {
+            manager.applyChange(
+                new AddImport(
+                    merged,
+                    manager
+                        .getOWLDataFactory()
+                        .getOWLImportsDeclaration(
+                            ontology.getOWLOntology().getOntologyID().getOntologyIRI())));
+          }
+        }
+        // HermiT reads the axioms when it is created, after which it works on its own copy
+        classifier = new Reasoner.ReasonerFactory().createReasoner(merged);
+      } catch (RuntimeException e) {
+        manager.removeOntology(merged);
+        throw e;
+      }
+    }
+
+    Taxonomy classified = null;
+    try {
+      classified = Taxonomy.classify(classifier, classes);
+    } finally {
+      classifier.dispose();
+      synchronized (this) {
+        manager.removeOntology(merged);
+        // if classification failed, leave the affected concepts to the shared reasoner rather
+        // than to an outdated taxonomy
+        taxonomy = taxonomy.replace(affected, classified == null ? Taxonomy.EMPTY : classified);
+        unclassified.removeIf(taxonomy::covers);
+      }
+    }
+
+    return affected;
+  }
+
+  /**
+   * The known namespaces of the classes that appear in the equivalence axioms of the ontology,
+   * whose classes may be inferred under its defined classes.
+   */
+  private Set<String> definitionNamespaces(Ontology ontology) {
+    Set<String> ret = new HashSet<>();
+    if (ontology != null) {
+      for (var axiom : ontology.getOWLOntology().getAxioms(AxiomType.EQUIVALENT_CLASSES)) {
+        for (var cls : axiom.getClassesInSignature()) {
+          if (!cls.isBuiltIn()) {
+            var namespace = getConceptSpace(cls.getIRI());
+            if (ontologies.containsKey(namespace)) {
+              ret.add(namespace);
+            }
+          }
+        }
+      }
+    }
+    return ret;
+  }
+
+  /** The classes declared by each of the passed namespaces, i.e. those in their concept space. */
+  private Map<String, Set<OWLClass>> declaredClasses(Collection<String> namespaces) {
+    Map<String, Set<OWLClass>> ret = new HashMap<>();
+    for (var namespace : namespaces) {
+      var ontology = ontologies.get(namespace);
+      if (ontology == null) {
+        continue;
+      }
+      Set<OWLClass> classes = new HashSet<>();
+      for (var cls : ontology.getOWLOntology().getClassesInSignature()) {
+        if (!cls.isBuiltIn() && namespace.equals(getConceptSpace(cls.getIRI()))) {
+          classes.add(cls);
+        }
+      }
+      ret.put(namespace, classes);
+    }
+    return ret;
+  }
+
+  /** The other known namespaces whose classes appear in the axioms of the ontology. */
+  private Set<String> referencedNamespaces(Ontology ontology) {
+    Set<String> ret = new HashSet<>();
+    for (var cls : ontology.getOWLOntology().getClassesInSignature()) {
+      if (!cls.isBuiltIn()) {
+        var namespace = getConceptSpace(cls.getIRI());
+        if (!ontology.getName().equals(namespace) && ontologies.containsKey(namespace)) {
+          ret.add(namespace);
+        }
+      }
+    }
+    return ret;
+  }
+
   public boolean isOn() {
     return reasonerActive;
   }
@@ -2607,8 +2984,12 @@ public class OWL {
       if (reasoner == null) {
         return reas.is(c1, c2);
       }
-      return getSubClasses(getOWLClass(c2.asConcept()), false)
-          .containsEntity(getOWLClass(c1.asConcept()));
+      var cls = getOWLClass(c1.asConcept());
+      var classified = taxonomy();
+      if (classified.covers(cls)) {
+        return classified.ancestors(cls).contains(getOWLClass(c2.asConcept()));
+      }
+      return getSubClasses(getOWLClass(c2.asConcept()), false).containsEntity(cls);
 
     } else if (c1 instanceof Property && c2 instanceof Property) {
 
@@ -2635,7 +3016,12 @@ public class OWL {
    * @return true if concept is consistent.
    */
   public boolean isSatisfiable(Semantics c) {
-    return reasoner == null || isSatisfiable(getOWLClass(c.asConcept()));
+    if (reasoner == null) {
+      return true;
+    }
+    var cls = getOWLClass(c.asConcept());
+    var classified = taxonomy();
+    return classified.covers(cls) ? classified.isSatisfiable(cls) : isSatisfiable(cls);
   }
 
   /**
@@ -2652,7 +3038,12 @@ public class OWL {
 
     Set<Concept> ret = new HashSet<>();
     if (reasoner != null) {
-      for (OWLClass cls : getSuperClasses(getOWLClass(main.asConcept()), false).getFlattened()) {
+      var owlClass = getOWLClass(main.asConcept());
+      var classified = taxonomy();
+      for (OWLClass cls :
+          classified.covers(owlClass)
+              ? classified.ancestors(owlClass)
+              : getSuperClasses(owlClass, false).getFlattened()) {
         if (cls.isBottomEntity() || cls.isTopEntity()) {
           continue;
         }
@@ -2679,7 +3070,12 @@ public class OWL {
 
     if (reasoner != null) {
       Set<Concept> ret = new HashSet<>();
-      for (OWLClass cls : getSubClasses(getOWLClass(main.asConcept()), false).getFlattened()) {
+      var owlClass = getOWLClass(main.asConcept());
+      var classified = taxonomy();
+      for (OWLClass cls :
+          classified.covers(owlClass)
+              ? classified.descendants(owlClass)
+              : getSubClasses(owlClass, false).getFlattened()) {
         if (cls.isBottomEntity() || cls.isTopEntity()) {
           continue;
         }
@@ -0,0 +1,233 @@
+package org.integratedmodelling.klab.services.reasoner.owl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.reasoner.InferenceType;
+import org.semanticweb.owlapi.reasoner.OWLReasoner;
+
+/**
+ * Immutable snapshot of the class hierarchy inferred by the reasoner, organized by the namespace
+ * declaring each class. Reclassifying some ontologies produces a new snapshot that replaces their
+ * namespaces and keeps everything else, so the taxonomy of untouched concepts survives knowledge
+ * updates and readers never see a partially classified worldview.
+ *
+ * <p>Classes created after the snapshot was taken are not covered until they are {@link
+ * #extend(Map, Map, Map, Set) added} to a new one, and are missing from the descendants of the
+ * covered classes until then.
+ */
+final class Taxonomy {
+
+  static final Taxonomy EMPTY = new Taxonomy(Map.of(), Map.of(), Set.of());
+
+  // namespace -> classes it declares
+  private final Map<String, Set<OWLClass>> namespaces;
+  // class -> all its inferred superclasses, except itself, owl:Thing and owl:Nothing
+  private final Map<OWLClass, Set<OWLClass>> ancestors;
+  // class -> all its inferred subclasses among those covered, the inverse of the above
+  private final Map<OWLClass, Set<OWLClass>> descendants;
+  private final Set<OWLClass> unsatisfiable;
+
+  private Taxonomy(
+      Map<String, Set<OWLClass>> namespaces,
+      Map<OWLClass, Set<OWLClass>> ancestors,
+      Set<OWLClass> unsatisfiable) {
+    this(namespaces, ancestors, new HashMap<>(), unsatisfiable);
+    for (var entry : ancestors.entrySet()) {
+      for (var ancestor : entry.getValue()) {
+        descendants.computeIfAbsent(ancestor, c -> new HashSet<>()).add(entry.getKey());
+      }
+    }
+  }
+
+  private Taxonomy(
+      Map<String, Set<OWLClass>> namespaces,
+      Map<OWLClass, Set<OWLClass>> ancestors,
+      Map<OWLClass, Set<OWLClass>> descendants,
+      Set<OWLClass> unsatisfiable) {
+    this.namespaces = namespaces;
+    this.ancestors = ancestors;
+    this.descendants = descendants;
+    this.unsatisfiable = unsatisfiable;
+  }
+
+  /**
+   * Classify the passed classes with a reasoner whose ontologies include all their axioms and the
+   * axioms of everything they refer to.
+   *
+   * @param reasoner
+   * @param namespaces the classes to classify, by declaring namespace
+   * @return a taxonomy covering exactly the passed classes
+   */
+  static Taxonomy classify(OWLReasoner reasoner, Map<String, Set<OWLClass>> namespaces) {
+
+    reasoner.precomputeInferences(InferenceType.CLASS_HIERARCHY);
+
+    Map<OWLClass, Set<OWLClass>> ancestors = new HashMap<>();
+    Set<OWLClass> unsatisfiable = new HashSet<>();
+    var bottom = reasoner.getUnsatisfiableClasses().getEntitiesMinusBottom();
+    for (var classes : namespaces.values()) {
+      for (var cls : classes) {
+        Set<OWLClass> parents = new HashSet<>();
+        for (var parent : reasoner.getSuperClasses(cls, false).getFlattened()) {
+          if (!(parent.isTopEntity() || parent.isBottomEntity() || parent.equals(cls))) {
+            parents.add(parent);
+          }
+        }
+        ancestors.put(cls, parents);
+        if (bottom.contains(cls)) {
+          unsatisfiable.add(cls);
+        }
+      }
+    }
+
+    return new Taxonomy(Map.copyOf(namespaces), ancestors, unsatisfiable);
+  }
+
+  /**
+   * Return a new taxonomy where the classes of the passed namespaces are those in the other
+   * taxonomy, and everything else is as in this one.
+   *
+   * @param replaced the namespaces that have been reclassified
+   * @param classified their new taxonomy; namespaces missing from it are dropped
+   * @return
+   */
+  Taxonomy replace(Collection<String> replaced, Taxonomy classified) {
+
+    Map<String, Set<OWLClass>> namespaces = new HashMap<>(this.namespaces);
+    Map<OWLClass, Set<OWLClass>> ancestors = new HashMap<>(this.ancestors);
+    Set<OWLClass> unsatisfiable = new HashSet<>(this.unsatisfiable);
+    for (var namespace : replaced) {
+      var classes = namespaces.remove(namespace);
+      if (classes != null) {
+        ancestors.keySet().removeAll(classes);
+        unsatisfiable.removeAll(classes);
+      }
+    }
+
+    namespaces.putAll(classified.namespaces);
+    ancestors.putAll(classified.ancestors);
+    unsatisfiable.addAll(classified.unsatisfiable);
+
+    return new Taxonomy(namespaces, ancestors, unsatisfiable);
+  }
+
+  /**
+   * Return a new taxonomy that also covers classes created after this one was computed, as
+   * inferred by a reasoner that knows about them. Only the entries touched by the new classes are
+   * copied, so this is cheap compared to a classification. Classes that are already covered are
+   * left as they are.
+   *
+   * @param added the new classes, by declaring namespace
+   * @param ancestors all the inferred superclasses of each new class, as in {@link
+   *     #ancestors(OWLClass)}
+   * @param descendants all the inferred subclasses of each new class
+   * @param unsatisfiable the new classes that are not satisfiable
+   * @return
+   */
+  Taxonomy extend(
+      Map<String, Set<OWLClass>> added,
+      Map<OWLClass, Set<OWLClass>> ancestors,
+      Map<OWLClass, Set<OWLClass>> descendants,
+      Set<OWLClass> unsatisfiable) {
+
+    Map<String, Set<OWLClass>> namespaces = new HashMap<>(this.namespaces);
+    Map<OWLClass, Set<OWLClass>> allAncestors = new HashMap<>(this.ancestors);
+    Map<OWLClass, Set<OWLClass>> allDescendants = new HashMap<>(this.descendants);
+    Set<OWLClass> allUnsatisfiable = new HashSet<>(this.unsatisfiable);
+    // the sets of the original taxonomy are shared, so each one is copied before changing it
+    Set<OWLClass> copied = new HashSet<>();
+    Set<OWLClass> extended = new HashSet<>();
+
+    for (var entry : added.entrySet()) {
+      Set<OWLClass> declared = new HashSet<>(namespaces.getOrDefault(entry.getKey(), Set.of()));
+      for (var cls : entry.getValue()) {
+        if (allAncestors.containsKey(cls)) {
+          continue;
+        }
+        declared.add(cls);
+        allAncestors.put(cls, ancestors.getOrDefault(cls, Set.of()));
+        if (unsatisfiable.contains(cls)) {
+          allUnsatisfiable.add(cls);
+        }
+        for (var ancestor : ancestors.getOrDefault(cls, Set.of())) {
+          if (copied.add(ancestor)) {
+            allDescendants.put(
+                ancestor, new HashSet<>(allDescendants.getOrDefault(ancestor, Set.of())));
+          }
+          allDescendants.get(ancestor).add(cls);
+        }
+        Set<OWLClass> subclasses = new HashSet<>(allDescendants.getOrDefault(cls, Set.of()));
+        for (var descendant : descendants.getOrDefault(cls, Set.of())) {
+          var known = allAncestors.get(descendant);
+          if (known != null && !known.contains(cls)) {
+            if (extended.add(descendant)) {
+              known = new HashSet<>(known);
+              allAncestors.put(descendant, known);
+            }
+            known.add(cls);
+            subclasses.add(descendant);
+          }
+        }
+        allDescendants.put(cls, subclasses);
+        copied.add(cls);
+      }
+      namespaces.put(entry.getKey(), declared);
+    }
+
+    return new Taxonomy(namespaces, allAncestors, allDescendants, allUnsatisfiable);
+  }
+
+  boolean covers(OWLClass cls) {
+    return ancestors.containsKey(cls);
+  }
+
+  /**
+   * @param namespaces
+   * @return the namespaces declaring classes that are inferred under those of the passed ones
+   */
+  Set<String> dependents(Collection<String> namespaces) {
+    Set<OWLClass> classes = new HashSet<>();
+    for (var namespace : namespaces) {
+      classes.addAll(this.namespaces.getOrDefault(namespace, Set.of()));
+    }
+    Set<String> ret = new HashSet<>();
+    for (var entry : this.namespaces.entrySet()) {
+      for (var cls : entry.getValue()) {
+        if (!Collections.disjoint(ancestors(cls), classes)) {
+          ret.add(entry.getKey());
+          break;
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @param cls a class that is {@link #covers(OWLClass) covered}
+   * @return
+   */
+  Set<OWLClass> ancestors(OWLClass cls) {
+    return ancestors.getOrDefault(cls, Set.of());
+  }
+
+  /**
+   * @param cls a class that is {@link #covers(OWLClass) covered}
+   * @return
+   */
+  Set<OWLClass> descendants(OWLClass cls) {
+    return descendants.getOrDefault(cls, Set.of());
+  }
+
+  /**
+   * @param cls a class that is {@link #covers(OWLClass) covered}
+   * @return
+   */
+  boolean isSatisfiable(OWLClass cls) {
+    return !unsatisfiable.contains(cls);
+  }
+}
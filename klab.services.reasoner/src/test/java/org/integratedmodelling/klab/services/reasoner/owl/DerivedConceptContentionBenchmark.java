@@ -0,0 +1,118 @@
+package org.integratedmodelling.klab.services.reasoner.owl;
+
+import java.lang.reflect.Proxy;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.integratedmodelling.common.lang.Axiom;
+import org.integratedmodelling.common.lang.kim.KimOntologyImpl;
+import org.integratedmodelling.klab.api.knowledge.Concept;
+import org.integratedmodelling.klab.api.knowledge.SemanticType;
+import org.integratedmodelling.klab.api.services.Reasoner;
+import org.integratedmodelling.klab.services.reasoner.internal.CoreOntology.NS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Looks up already derived concepts from 32 threads at once, as concurrent resolutions building
+ * the same observables do, comparing the lock-free lookup against the same calls serialized on the
+ * OWL instance as all the builders used to be. The operands are qualities defined in their own
+ * ontology over the core ontology, and their changes are declared with all their axioms and
+ * restrictions once during setup, so the measurement covers the lookup of concepts that took real
+ * derivation. Run with the main method or through the JMH runner on the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(32)
+@Fork(1)
+public class DerivedConceptContentionBenchmark {
+
+  private static final int CONCEPTS = 1000;
+
+  private OWL owl;
+  private Concept[] concepts;
+
+  @Setup(Level.Trial)
+  public void setup() {
+
+    this.owl = new OWL(scope());
+    this.owl.initialize(new KimOntologyImpl());
+
+    var ontology = owl.requireOntology("benchmark");
+    this.concepts = new Concept[CONCEPTS];
+    for (int i = 0; i < CONCEPTS; i++) {
+      var id = "Quality" + i;
+      ontology.define(
+          List.of(
+              Axiom.ClassAssertion(id, EnumSet.of(SemanticType.QUALITY, SemanticType.QUANTITY)),
+              Axiom.SubClass(NS.CORE_QUANTITY, id),
+              Axiom.AnnotationAssertion(id, NS.REFERENCE_NAME_PROPERTY, "benchmark_quality" + i)));
+      concepts[i] = ontology.getConcept(id);
+    }
+
+    // warm-up: declare every change in the ontology so that the benchmarks only look them up
+    for (var concept : concepts) {
+      if (owl.makeChange(concept) == null) {
+        throw new IllegalStateException("Change of " + concept.getUrn() + " was not derived");
+      }
+    }
+  }
+
+  /** The scope the OWL instance uses to find the reasoner, which reports no inherency. */
+  private static org.integratedmodelling.klab.api.scope.Scope scope() {
+    var reasoner = stub(Reasoner.class, null);
+    return stub(org.integratedmodelling.klab.api.scope.Scope.class, reasoner);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T stub(Class<T> type, Reasoner reasoner) {
+    return (T)
+        Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> {
+              if (method.getName().equals("getService")) {
+                return reasoner;
+              }
+              return method.getReturnType() == boolean.class ? false : null;
+            });
+  }
+
+  @Benchmark
+  public Concept lockFree() {
+    return owl.makeChange(concepts[ThreadLocalRandom.current().nextInt(CONCEPTS)]);
+  }
+
+  @Benchmark
+  public Concept serialized() {
+    var concept = concepts[ThreadLocalRandom.current().nextInt(CONCEPTS)];
+    synchronized (owl) {
+      return owl.makeChange(concept);
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(DerivedConceptContentionBenchmark.class.getSimpleName())
+                .build())
+        .run();
+  }
+}
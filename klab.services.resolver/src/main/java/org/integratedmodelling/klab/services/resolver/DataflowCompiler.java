@@ -227,7 +227,11 @@ public class DataflowCompiler {
     } else if (contextualizer.getLookupTable() != null) {
       ret = new ServiceCallImpl(RuntimeService.CoreFunctor.LUT_RESOLVER.getServiceCall());
     } else if (contextualizer.getExpression() != null) {
-      ret = new ServiceCallImpl(RuntimeService.CoreFunctor.EXPRESSION_RESOLVER.getServiceCall());
+      ret =
+          new ServiceCallImpl(
+              RuntimeService.CoreFunctor.EXPRESSION_RESOLVER.getServiceCall(),
+              "expression",
+              contextualizer.getExpression().getCode());
       //    } else if (contextualizer.getObservationStrategy() != null) {
       //      ret = new
       // ServiceCallImpl(RuntimeService.CoreFunctor.DEFER_RESOLUTION.getServiceCall());
@@ -1,5 +1,6 @@
 package org.integratedmodelling.klab.services.resolver;
 
+import org.integratedmodelling.common.logging.Logging;
 import org.integratedmodelling.klab.api.collections.Pair;
 import org.integratedmodelling.klab.api.digitaltwin.DigitalTwin;
 import org.integratedmodelling.klab.api.geometry.Geometry;
@@ -7,6 +8,7 @@ import org.integratedmodelling.klab.api.knowledge.*;
 import org.integratedmodelling.klab.api.knowledge.observation.Observation;
 import org.integratedmodelling.klab.api.knowledge.observation.scale.Scale;
 import org.integratedmodelling.klab.api.lang.LogicalConnector;
+import org.integratedmodelling.klab.api.lang.kim.KimObservationStrategy;
 import org.integratedmodelling.klab.api.provenance.Agent;
 import org.integratedmodelling.klab.api.provenance.impl.AgentImpl;
 import org.integratedmodelling.klab.api.scope.ContextScope;
@@ -18,14 +20,50 @@ import org.integratedmodelling.klab.api.services.resolver.ResolutionConstraint;
 import org.integratedmodelling.klab.api.services.resources.ResourceSet;
 import org.integratedmodelling.klab.api.utils.Utils;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-/** Obviously a placeholder for the resolver 2.0 */
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Obviously a placeholder for the resolver 2.0
+ *
+ * <p>Resolving creates observations in the digital twin and installs the components that models
+ * need, so alternatives (observation strategies, candidate models) and model dependencies are
+ * resolved in their original order and only as far as needed. Only the model queries, which have
+ * no side effects, are started speculatively on virtual threads for all the strategies of an
+ * observation; those still running are cancelled once the outcome is known, and the models found
+ * are ingested only when their strategy is reached. Model queries go to all the resources services
+ * in the scope at once. Observables needed more than once in the same conditions are resolved once
+ * per resolution through a {@link ResolutionTable}.
+ */
 public class ResolutionCompiler {
 
   private final ResolverService resolver;
   private double MINIMUM_WORTHWHILE_CONTRIBUTION = 0.15;
+  private Duration MODEL_QUERY_TIMEOUT = Duration.ofSeconds(30);
+
+  private static final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  // observations are created on demand by concurrent resolutions in the same context, so creation
+  // is serialized per observable and context to avoid duplicates. Locks are dropped when unused.
+  private final Map<String, ObservationLock> observationLocks = new ConcurrentHashMap<>();
+
+  private static final class ObservationLock {
+    // only changed within the map's atomic compute operations
+    int users;
+  }
 
   public ResolutionCompiler(ResolverService service) {
     this.resolver = service;
@@ -39,11 +77,14 @@ public class ResolutionCompiler {
    * @return
    */
   public ResolutionGraph resolve(Observation observation, ContextScope scope) {
-    return resolve(observation, scope, ResolverService.getResolutionGraph(scope));
+    return resolve(observation, scope, ResolverService.getResolutionGraph(scope), null);
   }
 
   private ResolutionGraph resolve(
-      Observation observation, ContextScope scope, ResolutionGraph parentGraph) {
+      Observation observation,
+      ContextScope scope,
+      ResolutionGraph parentGraph,
+      String resolutionKey) {
 
     var resolutionGeometry = scope.getObservationGeometry(observation);
     if (resolutionGeometry == null || resolutionGeometry.isEmpty()) {
@@ -67,7 +108,7 @@ public class ResolutionCompiler {
       return parentGraph;
     }
 
-    ResolutionGraph ret = parentGraph.createChild(observation, scale);
+    ResolutionGraph ret = parentGraph.createChild(observation, scale, resolutionKey);
     boolean complete = false;
 
     scope =
@@ -76,19 +117,24 @@ public class ResolutionCompiler {
                 ResolutionConstraint.Type.Provenance, Agent.create(AgentImpl.KLAB_AGENT_NAME)));
 
     List<ResolutionGraph> strategyGraphs = new ArrayList<>();
-    for (ObservationStrategy strategy :
-        scope.getService(Reasoner.class).computeObservationStrategies(observation, scope)) {
-
-      var strategyResolution = resolve(strategy, scale, ret, scope);
-      var cov = strategyResolution.checkCoverage(strategyResolution);
-      if (!cov.isRelevant()) {
-        continue;
-      }
-      strategyGraphs.add(strategyResolution);
-      if (cov.isComplete()) {
-        complete = true;
-        break;
+    var strategies =
+        scope.getService(Reasoner.class).computeObservationStrategies(observation, scope);
+    var models = queryModels(strategies, scale, ret, scope);
+    try {
+      for (var strategy : strategies) {
+        var strategyResolution = resolve(strategy, scale, ret, scope, models);
+        var cov = strategyResolution.checkCoverage(strategyResolution);
+        if (!cov.isRelevant()) {
+          continue;
+        }
+        strategyGraphs.add(strategyResolution);
+        if (cov.isComplete()) {
+          complete = true;
+          break;
+        }
       }
+    } finally {
+      cancel(models.values());
     }
 
     if (complete) {
@@ -101,11 +147,41 @@ public class ResolutionCompiler {
     return ResolutionGraph.empty();
   }
 
+  /**
+   * Start the model queries for the observe operations of all the passed strategies, which only
+   * depend on the operation's observable and the scope of the observation.
+   *
+   * @return the pending queries by operation, to be cancelled with {@link #cancel(Collection)}
+   */
+  private Map<ObservationStrategy.Operation, ModelQuery> queryModels(
+      List<ObservationStrategy> strategies,
+      Scale scaleToCover,
+      ResolutionGraph graph,
+      ContextScope scope) {
+    Map<ObservationStrategy.Operation, ModelQuery> ret = new HashMap<>();
+    for (var strategy : strategies) {
+      for (var operation : strategy.getOperations()) {
+        if (operation.getType() != KimObservationStrategy.Operation.Type.OBSERVE) {
+          continue;
+        }
+        var contextualizedScope =
+            contextualize(scope, operation.getObservable(), scaleToCover, graph);
+        if (contextualizedScope != null) {
+          ret.put(
+              operation,
+              startModelQuery(operation.getObservable(), contextualizedScope.getFirst()));
+        }
+      }
+    }
+    return ret;
+  }
+
   private ResolutionGraph resolve(
       ObservationStrategy observationStrategy,
       Scale scaleToCover,
       ResolutionGraph graph,
-      ContextScope scope) {
+      ContextScope scope,
+      Map<ObservationStrategy.Operation, ModelQuery> queries) {
 
     var ret = graph.createChild(observationStrategy, scaleToCover);
 
@@ -142,12 +218,16 @@ public class ResolutionCompiler {
             return ResolutionGraph.empty();
           }
 
-          for (Model model :
-              queryModels(
-                  operation.getObservable(),
-                  contextualizedScope.getFirst(),
-                  contextualizedScope.getSecond())) {
-
+          var query = queries.get(operation);
+          var models =
+              query == null
+                  ? queryModels(
+                      operation.getObservable(),
+                      contextualizedScope.getFirst(),
+                      contextualizedScope.getSecond())
+                  : collectModels(
+                      query, contextualizedScope.getFirst(), contextualizedScope.getSecond());
+          for (var model : models) {
             var modelResolution = resolve(model, scaleToCover, ret, scope);
             var cov = ret.checkCoverage(modelResolution);
             if (!cov.isRelevant()) {
@@ -186,7 +266,8 @@ public class ResolutionCompiler {
             return ResolutionGraph.empty();
           }
 
-          ret.setDependencies(Utils.Resources.merge(ret.getDependencies(), requirements));
+          ret.mergeDependencies(
+              dependencies -> Utils.Resources.merge(dependencies, requirements));
         }
       }
 
@@ -212,22 +293,21 @@ public class ResolutionCompiler {
             ResolutionConstraint.of(
                 ResolutionConstraint.Type.ResolutionProject, model.getProjectName()));
 
-    // check that all contextualizers are supported
-    var runtime = scope.getService(RuntimeService.class);
-    ResourceSet requirements = runtime.resolveContextualizables(model.getComputation(), scope);
-
+    // this may install the components the model needs, so it is only done for the models tried
+    var requirements =
+        scope
+            .getService(RuntimeService.class)
+            .resolveContextualizables(model.getComputation(), scope);
     if (requirements.isEmpty()) {
       return ResolutionGraph.empty();
     }
-    ret.setDependencies(Utils.Resources.merge(requirements, ret.getDependencies()));
+    ret.mergeDependencies(dependencies -> Utils.Resources.merge(requirements, dependencies));
 
     /*
     resolve all dependencies
      */
-    boolean complete = model.getDependencies().isEmpty();
     List<Pair<ResolutionGraph, String>> modelGraphs = new ArrayList<>();
     for (var dependency : model.getDependencies()) {
-
       var dependencyResolution = resolve(dependency, scaleToCover, ret, scope);
       var cov = ret.checkCoverage(dependencyResolution);
       if (!cov.isRelevant()) {
@@ -252,6 +332,21 @@ public class ResolutionCompiler {
       Observable observable,
       Scale originalScale,
       ResolutionGraph resolutionSoFar) {
+    var ret = contextualize(originalScope, observable, originalScale, resolutionSoFar);
+    if (ret == null) {
+      originalScope.error(
+          "Cannot resolve a dependent without a context substantial observation: "
+              + observable.getUrn());
+    }
+    return ret;
+  }
+
+  /** Same as {@link #contextualizeScope} but without reporting the error. */
+  private Pair<ContextScope, Scale> contextualize(
+      ContextScope originalScope,
+      Observable observable,
+      Scale originalScale,
+      ResolutionGraph resolutionSoFar) {
     Scale scale = originalScale;
     ContextScope scope = originalScope;
     if (observable.getSemantics().isCollective()) {
@@ -267,9 +362,6 @@ public class ResolutionCompiler {
        */
       Observation context = resolutionSoFar.getContextObservation();
       if (context == null) {
-        scope.error(
-            "Cannot resolve a dependent without a context substantial observation: "
-                + observable.getUrn());
         return null;
       }
       scope = scope.within(context);
@@ -285,6 +377,9 @@ public class ResolutionCompiler {
       Observable observable, Scale scaleToCover, ResolutionGraph graph, ContextScope scope) {
 
     var contextualizedScope = contextualizeScope(scope, observable, scaleToCover, graph);
+    if (contextualizedScope == null) {
+      return ResolutionGraph.empty();
+    }
 
     //  create the observation in unresolved state
     var observation =
@@ -297,8 +392,58 @@ public class ResolutionCompiler {
       return ResolutionGraph.empty();
     }
 
-    // resolve the observation in the scope
-    return resolve(observation, contextualizedScope.getFirst(), graph);
+    /*
+    resolve the observation in the scope unless the same sub-problem has been resolved already
+    within this resolution, in which case its graph is merged again where needed
+     */
+    var key =
+        resolutionKey(observable, contextualizedScope.getSecond(), contextualizedScope.getFirst());
+    var ret =
+        graph
+            .getResolutionTable()
+            .resolve(
+                key,
+                graph.getResolutionKey(),
+                () -> resolve(observation, contextualizedScope.getFirst(), graph, key));
+
+    if (ret == null) {
+      scope.warn(
+          "Circular dependency on "
+              + observable.getUrn()
+              + ": the resolution is attempted without it");
+      return ResolutionGraph.empty();
+    }
+
+    return ret;
+  }
+
+  /**
+   * The identity of a sub-resolution: observable, scale, context observation and the constraints
+   * that affect model choice. Provenance constraints only record where the request comes from.
+   */
+  private String resolutionKey(Observable observable, Scale scale, ContextScope scope) {
+
+    var ret = new StringBuilder(observable.getUrn());
+    ret.append('|').append(scale.encode());
+    ret.append('|')
+        .append(scope.getContextObservation() == null ? "" : scope.getContextObservation().getId());
+
+    List<String> constraints = new ArrayList<>();
+    for (var constraint : scope.getResolutionConstraints()) {
+      if (constraint.empty() || constraint.getType() == ResolutionConstraint.Type.Provenance) {
+        continue;
+      }
+      var encoded = new StringBuilder(constraint.getType().name());
+      for (var payload : constraint.payload(constraint.getType().dataClass)) {
+        encoded
+            .append(',')
+            .append(payload instanceof Geometry geometry ? geometry.encode() : payload);
+      }
+      constraints.add(encoded.toString());
+    }
+    constraints.sort(null);
+
+    return ret.append('|').append(String.join(";", constraints)).toString();
   }
 
   /**
@@ -311,21 +456,77 @@ public class ResolutionCompiler {
    * @return
    */
   public List<Model> queryModels(Observable observable, ContextScope scope, Scale scale) {
+    return collectModels(startModelQuery(observable, scope), scope, scale);
+  }
 
-    var prioritizer = new PrioritizerImpl(scope, scale);
+  /**
+   * Send the model query to all the resource servers available in the scope. Nothing is ingested
+   * until {@link #collectModels(ModelQuery, ContextScope, Scale)} is called, so a query that is
+   * not needed can be {@link #cancel(Collection) cancelled} without consequences.
+   */
+  private ModelQuery startModelQuery(Observable observable, ContextScope scope) {
 
     System.out.println("QUERYING MODELS FOR " + observable);
 
-    // FIXME use virtual threads & join() to obtain a synchronized list of ResourceSet, then
-    //  use a merging strategy to get models one by one in their latest release
+    List<Future<ResourceSet>> results = new ArrayList<>();
+    for (var resources : scope.getServices(ResourcesService.class)) {
+      results.add(executor.submit(() -> resources.resolveModels(observable, scope)));
+    }
+    return new ModelQuery(
+        observable, results, System.currentTimeMillis() + MODEL_QUERY_TIMEOUT.toMillis());
+  }
+
+  /** Wait for the results of the query, up to its deadline, and ingest the models found. */
+  private List<Model> collectModels(ModelQuery query, ContextScope scope, Scale scale) {
+
+    var prioritizer = new PrioritizerImpl(scope, scale);
+    var observable = query.observable();
+
+    // ingestion is sequential; models from more than one service are taken from the first
+    Map<String, Model> models = new LinkedHashMap<>();
+    for (var result : query.results()) {
+      try {
+        // unfinished queries are cancelled at the deadline
+        var resourceSet =
+            result.get(
+                Math.max(0, query.deadline() - System.currentTimeMillis()),
+                TimeUnit.MILLISECONDS);
+        if (resourceSet != null) {
+          for (var model : resolver.ingestResources(resourceSet, scope, Model.class)) {
+            models.putIfAbsent(model.getUrn(), model);
+          }
+        }
+      } catch (TimeoutException | CancellationException e) {
+        result.cancel(true);
+        Logging.INSTANCE.warn(
+            "Model query for " + observable.getUrn() + " timed out in a resources service");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        cancel(List.of(query));
+        break;
+      } catch (ExecutionException e) {
+        Logging.INSTANCE.warn(
+            "Model query for " + observable.getUrn() + " failed: " + e.getCause().getMessage());
+      }
+    }
 
-    var resources = scope.getService(ResourcesService.class);
-    ResourceSet models = resources.resolveModels(observable, scope);
-    var ret = new ArrayList<Model>(resolver.ingestResources(models, scope, Model.class));
+    var ret = new ArrayList<>(models.values());
     ret.sort(prioritizer);
     return ret;
   }
 
+  private void cancel(Collection<ModelQuery> queries) {
+    for (var query : queries) {
+      for (var result : query.results()) {
+        result.cancel(true);
+      }
+    }
+  }
+
+  /** The pending results of a model query to each resources service in the scope. */
+  private record ModelQuery(
+      Observable observable, List<Future<ResourceSet>> results, long deadline) {}
+
   /**
    * If the runtime contains the observation, return it (in resolved or unresolved status but with a
    * valid ID). Otherwise create one in the geometry that the scope implies, with the unresolved ID,
@@ -337,14 +538,30 @@ public class ResolutionCompiler {
    */
   private Observation requireObservation(
       Observable observable, ContextScope scope, Geometry geometry) {
-    var ret = scope.query(Observation.class, observable);
-    if (ret.isEmpty()) {
-
-      var newObs = DigitalTwin.createObservation(scope, observable, geometry);
-      var id = scope.getService(RuntimeService.class).submit(newObs, scope);
-      if (id >= 0) {
+    List<Observation> ret;
+    var key = scope.getId() + "|" + observable.getUrn();
+    var lock =
+        observationLocks.compute(
+            key,
+            (k, l) -> {
+              var locked = l == null ? new ObservationLock() : l;
+              locked.users++;
+              return locked;
+            });
+    try {
+      synchronized (lock) {
         ret = scope.query(Observation.class, observable);
+        if (ret.isEmpty()) {
+
+          var newObs = DigitalTwin.createObservation(scope, observable, geometry);
+          var id = scope.getService(RuntimeService.class).submit(newObs, scope);
+          if (id >= 0) {
+            ret = scope.query(Observation.class, observable);
+          }
+        }
       }
+    } finally {
+      observationLocks.computeIfPresent(key, (k, l) -> --l.users == 0 ? null : l);
     }
 
     /* TODO this should also happen if the inherency is incompatible with the semantics for dependent
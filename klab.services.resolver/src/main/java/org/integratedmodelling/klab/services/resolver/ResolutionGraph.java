@@ -20,6 +20,7 @@ import org.jgrapht.graph.DefaultEdge;
 import org.w3.xlink.XlinkFactory;
 
 import java.util.*;
+import java.util.function.UnaryOperator;
 
 /**
  * Next-gen Resolution graph, to substitute Resolution/ResolutionImpl.
@@ -65,6 +66,11 @@ public class ResolutionGraph {
 
   private boolean empty;
 
+  // shared by all the graphs within one resolution of a root observation
+  private ResolutionTable resolutionTable;
+  // the sub-resolution this graph is part of, null within the root observation's
+  private String resolutionKey;
+
   private ResolutionGraph(ContextScope rootScope) {
     this.rootScope = rootScope;
   }
@@ -98,6 +104,8 @@ public class ResolutionGraph {
 
     this.rootScope = parent.rootScope;
     this.resolutionCatalog.putAll(parent.resolutionCatalog);
+    this.resolutionTable = parent.parent == null ? new ResolutionTable() : parent.resolutionTable;
+    this.resolutionKey = parent.resolutionKey;
   }
 
   private Scale getCoverage(Resolvable target) {
@@ -219,6 +227,43 @@ public class ResolutionGraph {
     return new ResolutionGraph(target, scaleToCover, this);
   }
 
+  /**
+   * Spawn the graph that resolves the sub-problem identified by the passed key in the resolution
+   * table. All graphs created from it are part of the same sub-resolution.
+   *
+   * @param target
+   * @param scaleToCover
+   * @param resolutionKey
+   * @return
+   */
+  ResolutionGraph createChild(Resolvable target, Scale scaleToCover, String resolutionKey) {
+    var ret = new ResolutionGraph(target, scaleToCover, this);
+    if (resolutionKey != null) {
+      ret.resolutionKey = resolutionKey;
+    }
+    return ret;
+  }
+
+  /**
+   * The memo table for the sub-resolutions of the root observation being resolved, null in the
+   * root graph of the context.
+   *
+   * @return
+   */
+  ResolutionTable getResolutionTable() {
+    return resolutionTable;
+  }
+
+  /**
+   * The key of the sub-resolution this graph belongs to in the {@link #getResolutionTable()
+   * resolution table}, or null if it is part of the root observation's resolution.
+   *
+   * @return
+   */
+  String getResolutionKey() {
+    return resolutionKey;
+  }
+
   /**
    * Return any known resolvable (already present in the graph) that can resolve the passed
    * observable, paired with the result of intersecting its native coverage with the passed scale.
@@ -242,6 +287,19 @@ public class ResolutionGraph {
     rootGraph().dependencies = dependencies;
   }
 
+  /**
+   * Replace the dependencies with the result of the passed merge, atomically w.r.t. concurrent
+   * resolutions sharing the same root graph.
+   *
+   * @param merger
+   */
+  public void mergeDependencies(UnaryOperator<ResourceSet> merger) {
+    var root = rootGraph();
+    synchronized (root) {
+      root.dependencies = merger.apply(root.dependencies);
+    }
+  }
+
   public List<Resolvable> rootNodes() {
     List<Resolvable> ret = new ArrayList<>();
     for (Resolvable l : graph().vertexSet()) {
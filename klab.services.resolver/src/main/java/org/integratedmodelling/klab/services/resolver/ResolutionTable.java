@@ -0,0 +1,125 @@
+package org.integratedmodelling.klab.services.resolver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import org.integratedmodelling.klab.api.exceptions.KlabInternalErrorException;
+
+/**
+ * Memo table for the sub-resolutions of one resolution. Each observable resolved in the same scale,
+ * context and constraints is resolved once and its graph merged wherever else it is needed, so that
+ * dependencies shared by many models and strategies don't multiply the work. Branches run
+ * concurrently, so a sub-resolution requested while another branch is computing it waits for that
+ * result.
+ *
+ * <p>The table also records which sub-resolution each one in progress is computing or waiting for.
+ * A request that would close a loop in those is a circular dependency, and is reported to the
+ * caller instead of waiting forever.
+ */
+class ResolutionTable {
+
+  private final Map<String, CompletableFuture<ResolutionGraph>> resolutions =
+      new ConcurrentHashMap<>();
+
+  // sub-resolution key -> keys of the sub-resolutions it is currently waiting for (with repeats)
+  private final Map<String, List<String>> waiting = new HashMap<>();
+
+  /**
+   * Return the resolution for the passed key, computing it if nobody has done so yet.
+   *
+   * @param key the sub-problem to resolve
+   * @param dependent the key of the sub-resolution requesting it, or null at the root
+   * @param resolution computes the resolution if it is not in the table
+   * @return the resolution graph, or null if resolving the key depends on the dependent itself
+   */
+  ResolutionGraph resolve(String key, String dependent, Supplier<ResolutionGraph> resolution) {
+
+    var done = resolutions.get(key);
+    if (done != null && done.isDone() && !done.isCompletedExceptionally()) {
+      return done.join();
+    }
+
+    while (true) {
+
+      CompletableFuture<ResolutionGraph> pending;
+      boolean owner = false;
+      synchronized (waiting) {
+        if (dependent != null && (dependent.equals(key) || reaches(key, dependent))) {
+          return null;
+        }
+        pending = resolutions.get(key);
+        if (pending == null) {
+          pending = new CompletableFuture<>();
+          resolutions.put(key, pending);
+          owner = true;
+        }
+        if (dependent != null) {
+          waiting.computeIfAbsent(dependent, k -> new ArrayList<>()).add(key);
+        }
+      }
+
+      try {
+        if (owner) {
+          try {
+            var ret = resolution.get();
+            pending.complete(ret);
+            return ret;
+          } catch (Throwable t) {
+            // let anyone waiting compute it again rather than inherit our failure
+            resolutions.remove(key, pending);
+            pending.completeExceptionally(t);
+            throw t;
+          }
+        }
+        try {
+          return pending.get();
+        } catch (ExecutionException e) {
+          // the branch computing it failed or was cancelled: try again
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new KlabInternalErrorException(e);
+      } finally {
+        if (dependent != null) {
+          synchronized (waiting) {
+            var keys = waiting.get(dependent);
+            keys.remove(key);
+            if (keys.isEmpty()) {
+              waiting.remove(dependent);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * True if the sub-resolution for {@code from} is waiting for {@code to}, directly or through
+   * others.
+   */
+  private boolean reaches(String from, String to) {
+    Set<String> seen = new HashSet<>();
+    var queue = new ArrayDeque<String>();
+    queue.add(from);
+    while (!queue.isEmpty()) {
+      var key = queue.poll();
+      if (seen.add(key)) {
+        for (var next : waiting.getOrDefault(key, List.of())) {
+          if (next.equals(to)) {
+            return true;
+          }
+          queue.add(next);
+        }
+      }
+    }
+    return false;
+  }
+}
@@ -1,5 +1,7 @@
 package org.integratedmodelling.klab.services.resources.persistence;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.h2gis.utilities.SpatialResultSet;
 import org.integratedmodelling.klab.api.data.Metadata;
 import org.integratedmodelling.klab.api.exceptions.KlabException;
@@ -27,7 +29,6 @@ import org.integratedmodelling.klab.api.services.ResourcesService;
 import org.integratedmodelling.klab.api.services.resolver.Coverage;
 import org.integratedmodelling.klab.api.services.resolver.ResolutionConstraint;
 import org.integratedmodelling.klab.api.services.runtime.Channel;
-import org.integratedmodelling.klab.api.utils.Utils;
 import org.integratedmodelling.klab.persistence.h2.SQL;
 import org.integratedmodelling.klab.runtime.scale.space.ShapeImpl;
 import org.integratedmodelling.klab.services.resources.persistence.ModelReference.Mediation;
@@ -39,9 +40,19 @@ import java.util.*;
 
 public class ModelKbox extends ObservableKbox {
 
+  private static final int MAX_CACHED_MODELS = 4096;
+
   // private boolean workRemotely = !Configuration.INSTANCE.isOffline();
   private boolean initialized = false;
 
+  /*
+   * models by OID. Entries are removed when the model is deleted, which is how clearNamespace()
+   * and removeIfOlder() remove them, so a cached OID is always current. The references are shared
+   * and must not be modified.
+   */
+  private final Cache<Long, ModelReference> models =
+      CacheBuilder.newBuilder().maximumSize(MAX_CACHED_MODELS).build();
+
   /**
    * Create a kbox with the passed name. If the kbox exists, open it and return it.
    *
@@ -273,6 +284,7 @@ public class ModelKbox extends ObservableKbox {
 
     var scale = Scale.create(geometry);
     String query = "SELECT model.oid FROM model WHERE ";
+    List<Object> parameters = new ArrayList<>();
     Concept contextObservable =
         context.getContextObservation() == null
             ? null
@@ -283,10 +295,10 @@ public class ModelKbox extends ObservableKbox {
       return ret;
     }
 
-    query += "(" + scopeQuery(context, observable) + ")";
+    query += "(" + scopeQuery(context, observable, parameters) + ")";
     query += " AND (" + typequery + ")";
     if (scale.getSpace() != null) {
-      String sq = spaceQuery(scale.getSpace());
+      String sq = spaceQuery(scale.getSpace(), parameters);
       if (!sq.isEmpty()) {
         query += " AND (" + sq + ")";
       }
@@ -294,29 +306,26 @@ public class ModelKbox extends ObservableKbox {
 
     String tquery = timeQuery(scale.getTime());
     if (!tquery.isEmpty()) {
-      query += " AND (" + tquery + ");";
+      query += " AND (" + tquery + ")";
     }
 
     // Logging.INSTANCE.info(query);
 
-    final List<Long> oids = database.queryIds(query);
-    for (long l : oids) {
-      ModelReference model = retrieveModel(l, context);
-      if (model != null) {
-        Coverage coverage = resourceService.modelGeometry(model.getName());
-        if (coverage != null && !coverage.checkConstraints(scale)) {
-          resourceService
-              .serviceScope()
-              .debug(
-                  "model "
-                      + model.getName()
-                      + " of "
-                      + observable
-                      + " discarded because of coverage constraints mismatch");
-          continue;
-        }
-        ret.add(model);
+    final List<Long> oids = database.queryIds(query, parameters);
+    for (ModelReference model : retrieveModels(oids, context)) {
+      Coverage coverage = resourceService.modelGeometry(model.getName());
+      if (coverage != null && !coverage.checkConstraints(scale)) {
+        resourceService
+            .serviceScope()
+            .debug(
+                "model "
+                    + model.getName()
+                    + " of "
+                    + observable
+                    + " discarded because of coverage constraints mismatch");
+        continue;
       }
+      ret.add(model);
     }
 
     resourceService
@@ -379,14 +388,15 @@ public class ModelKbox extends ObservableKbox {
    * if not dummy OR] [project private and in the home project if not dummy OR] (non-private and
    * non-scenario) OR (in any of the scenarios in the context).
    */
-  private String scopeQuery(ContextScope context, Observable observable) {
+  private String scopeQuery(ContextScope context, Observable observable, List<Object> parameters) {
 
     String ret = "";
     String projectId = null;
     String namespaceId =
         context.getConstraint(ResolutionConstraint.Type.ResolutionNamespace, DUMMY_NAMESPACE_ID);
     if (!namespaceId.equals(DUMMY_NAMESPACE_ID)) {
-      ret += "(model.namespaceid = '" + namespaceId + "')";
+      ret += "(model.namespaceid = ?)";
+      parameters.add(namespaceId);
       projectId = context.getConstraint(ResolutionConstraint.Type.ResolutionProject, String.class);
     }
 
@@ -394,14 +404,13 @@ public class ModelKbox extends ObservableKbox {
         (ret.isEmpty() ? "" : " OR ")
             + "((NOT model.scope = 'NAMESPACE') AND (NOT model.inscenario))";
 
-    if (!context.getConstraints(ResolutionConstraint.Type.Scenarios, String.class).isEmpty()) {
+    var scenarios = context.getConstraints(ResolutionConstraint.Type.Scenarios, String.class);
+    if (!scenarios.isEmpty()) {
       ret +=
           " OR ("
-              + joinStringConditions(
-                  "model.namespaceid",
-                  context.getConstraints(ResolutionConstraint.Type.Scenarios, String.class),
-                  "OR")
+              + String.join(" OR ", Collections.nCopies(scenarios.size(), "model.namespaceid = ?"))
               + ")";
+      parameters.addAll(scenarios);
     }
 
     if (observable.is(SemanticType.COUNTABLE)) {
@@ -413,7 +422,8 @@ public class ModelKbox extends ObservableKbox {
     }
 
     if (projectId != null) {
-      ret += " AND (NOT (model.scope = 'PROJECT' AND model.projectid <> '" + projectId + "'))";
+      ret += " AND (NOT (model.scope = 'PROJECT' AND model.projectid <> ?))";
+      parameters.add(projectId);
     }
 
     return ret;
@@ -424,7 +434,7 @@ public class ModelKbox extends ObservableKbox {
    * geometry when forced - if it has @intensive(space, time) it shouldn't match no space/time OR
    * non-distributed space/time. ALSO the dimensionality!
    */
-  private String spaceQuery(Space space) {
+  private String spaceQuery(Space space, List<Object> parameters) {
 
     space = resolveEnumeratedExtensions(space);
 
@@ -446,10 +456,9 @@ public class ModelKbox extends ObservableKbox {
     String scalequery =
         space.getRank() + " BETWEEN model.minspatialscale AND model.maxspatialscale";
 
-    String spacequery =
-        "model.space && '"
-            + ShapeImpl.promote(space.getGeometricShape()).getStandardizedGeometry()
-            + "' OR ST_IsEmpty(model.space)";
+    String spacequery = "model.space && ST_GeomFromText(?) OR ST_IsEmpty(model.space)";
+    parameters.add(
+        ShapeImpl.promote(space.getGeometricShape()).getStandardizedGeometry().toString());
 
     return "(" + scalequery + ") AND (" + spacequery + ")";
   }
@@ -498,78 +507,161 @@ public class ModelKbox extends ObservableKbox {
     if (!database.hasTable("model")) {
       return ret;
     }
-    for (long oid : database.queryIds("SELECT oid FROM model;")) {
-      ret.add(retrieveModel(oid, monitor));
-    }
-    return ret;
+    return retrieveModels(database.queryIds("SELECT oid FROM model;"), monitor);
   }
 
   public ModelReference retrieve(String query, Channel monitor) {
+    return retrieve(query, List.of(), monitor);
+  }
+
+  /**
+   * Retrieve the model in the first row returned by a query on the model table, binding the passed
+   * parameters to its placeholders. Metadata are not retrieved.
+   *
+   * @param query
+   * @param parameters
+   * @param monitor
+   * @return the model, empty if the query returned nothing
+   */
+  public ModelReference retrieve(String query, List<?> parameters, Channel monitor) {
     initialize(monitor);
 
     final ModelReference ret = new ModelReference();
 
     database.query(
         query,
+        parameters,
         new SQL.SimpleResultHandler() {
           @Override
           public void onRow(ResultSet rs) {
+            readModel(rs, ret);
+          }
+        });
+
+    return ret;
+  }
+
+  /**
+   * Retrieve the models with the passed OIDs with their metadata, in the same order. Those that
+   * aren't cached are read in a single query joining the model and metadata tables.
+   *
+   * @param oids
+   * @param monitor
+   * @return the models found, skipping any OID that is not in the database
+   */
+  public List<ModelReference> retrieveModels(List<Long> oids, Channel monitor) {
 
-            try {
-
-              SpatialResultSet srs = rs.unwrap(SpatialResultSet.class);
-
-              long tyid = srs.getLong(7);
-
-              ret.setName(srs.getString(4));
-
-              Concept mtype = getType(tyid).asConcept();
-
-              ret.setObservableConcept(mtype);
-              ret.setObservable(getTypeDefinition(tyid));
-
-              ret.setServerId(nullify(srs.getString(2)));
-              // ret.setId(srs.getString(3));
-
-              ret.setNamespaceId(srs.getString(5));
-              ret.setProjectId(nullify(srs.getString(6)));
-
-              ret.setScope(KlabStatement.Scope.valueOf(srs.getString(9)));
-              ret.setResolved(srs.getBoolean(10));
-              ret.setReification(srs.getBoolean(11));
-              ret.setInScenario(srs.getBoolean(12));
-              ret.setHasDirectObjects(srs.getBoolean(13));
-              ret.setHasDirectData(srs.getBoolean(14));
-              ret.setTimeStart(srs.getLong(15));
-              ret.setTimeEnd(srs.getLong(16));
-              ret.setSpatial(srs.getBoolean(17));
-              ret.setTemporal(srs.getBoolean(18));
-              ret.setTimeMultiplicity(srs.getLong(19));
-              ret.setSpaceMultiplicity(srs.getLong(20));
-              ret.setScaleMultiplicity(srs.getLong(21));
-              ret.setDereifyingAttribute(nullify(srs.getString(22)));
-              ret.setMinSpatialScaleFactor(srs.getInt(23));
-              ret.setMaxSpatialScaleFactor(srs.getInt(24));
-              ret.setMinTimeScaleFactor(srs.getInt(25));
-              ret.setMaxTimeScaleFactor(srs.getInt(26));
-              Geometry geometry = srs.getGeometry(27);
-              if (!geometry.isEmpty()) {
-                ret.setShape(Shape.create(geometry.toText(), Projection.getLatLon())); // +
+    initialize(monitor);
+
+    Map<Long, ModelReference> found = new HashMap<>(models.getAllPresent(oids));
+    List<Long> missing = oids.stream().filter(oid -> !found.containsKey(oid)).distinct().toList();
+
+    if (!missing.isEmpty()) {
+
+      final Map<Long, ModelReference> retrieved = new LinkedHashMap<>();
+      database.query(
+          "SELECT model.*, metadata.mkey, metadata.mvalue FROM model"
+              + " LEFT JOIN metadata ON metadata.fid = model.oid WHERE model.oid IN ("
+              + SQL.placeholders(missing.size())
+              + ")",
+          missing,
+          new SQL.SimpleResultHandler() {
+            @Override
+            public void onRow(ResultSet rs) {
+              try {
+                // one row per metadata entry, all with the same model columns
+                var model =
+                    retrieved.computeIfAbsent(
+                        rs.getLong(1), oid -> readModel(rs, new ModelReference()));
+                String key = rs.getString("mkey");
+                Object value = rs.getObject("mvalue");
+                if (key != null && value != null) {
+                  if (model.getMetadata() == null) {
+                    model.setMetadata(new HashMap<>());
+                  }
+                  model.getMetadata().put(key, value.toString());
+                }
+              } catch (SQLException e) {
+                throw new KlabStorageException(e);
               }
-            } catch (SQLException e) {
-              throw new KlabStorageException(e);
             }
-          }
-        });
+          });
+
+      models.putAll(retrieved);
+      found.putAll(retrieved);
+    }
 
+    List<ModelReference> ret = new ArrayList<>();
+    for (long oid : oids) {
+      var model = found.get(oid);
+      if (model != null) {
+        ret.add(model);
+      }
+    }
     return ret;
   }
 
-  public ModelReference retrieveModel(long oid, Channel monitor) throws KlabException {
+  /** Fill in the model from the columns of the model table in the current row. */
+  private ModelReference readModel(ResultSet rs, ModelReference ret) {
+
+    try {
+
+      SpatialResultSet srs = rs.unwrap(SpatialResultSet.class);
+
+      long tyid = srs.getLong(7);
+
+      ret.setName(srs.getString(4));
+
+      Concept mtype = getType(tyid).asConcept();
+
+      ret.setObservableConcept(mtype);
+      ret.setObservable(getTypeDefinition(tyid));
+
+      ret.setServerId(nullify(srs.getString(2)));
+      // ret.setId(srs.getString(3));
+
+      ret.setNamespaceId(srs.getString(5));
+      ret.setProjectId(nullify(srs.getString(6)));
+
+      ret.setScope(KlabStatement.Scope.valueOf(srs.getString(9)));
+      ret.setResolved(srs.getBoolean(10));
+      ret.setReification(srs.getBoolean(11));
+      ret.setInScenario(srs.getBoolean(12));
+      ret.setHasDirectObjects(srs.getBoolean(13));
+      ret.setHasDirectData(srs.getBoolean(14));
+      ret.setTimeStart(srs.getLong(15));
+      ret.setTimeEnd(srs.getLong(16));
+      ret.setSpatial(srs.getBoolean(17));
+      ret.setTemporal(srs.getBoolean(18));
+      ret.setTimeMultiplicity(srs.getLong(19));
+      ret.setSpaceMultiplicity(srs.getLong(20));
+      ret.setScaleMultiplicity(srs.getLong(21));
+      ret.setDereifyingAttribute(nullify(srs.getString(22)));
+      ret.setMinSpatialScaleFactor(srs.getInt(23));
+      ret.setMaxSpatialScaleFactor(srs.getInt(24));
+      ret.setMinTimeScaleFactor(srs.getInt(25));
+      ret.setMaxTimeScaleFactor(srs.getInt(26));
+      Geometry geometry = srs.getGeometry(27);
+      if (!geometry.isEmpty()) {
+        ret.setShape(Shape.create(geometry.toText(), Projection.getLatLon())); // +
+      }
+    } catch (SQLException e) {
+      throw new KlabStorageException(e);
+    }
 
-    ModelReference ret = retrieve("SELECT * FROM model WHERE oid = " + oid, monitor);
-    ret.setMetadata(getMetadataFor(oid));
     return ret;
+  }
+
+  /**
+   * @param oid
+   * @param monitor
+   * @return the model with its metadata, or null if there is no model with the passed OID
+   * @throws KlabException
+   */
+  public ModelReference retrieveModel(long oid, Channel monitor) throws KlabException {
+
+    var ret = retrieveModels(List.of(oid), monitor);
+    return ret.isEmpty() ? null : ret.getFirst();
     //
     // initialize(monitor);
     //
@@ -648,7 +740,7 @@ public class ModelKbox extends ObservableKbox {
       return false;
     }
 
-    return database.queryIds("SELECT oid FROM model WHERE name = '" + name + "';").size() > 0;
+    return !database.queryIds("SELECT oid FROM model WHERE name = ?", List.of(name)).isEmpty();
   }
 
   @Override
@@ -656,10 +748,7 @@ public class ModelKbox extends ObservableKbox {
     initialize(monitor);
     int n = 0;
     for (long oid :
-        database.queryIds(
-            "SELECT oid FROM model where namespaceid = '"
-                + Utils.Escape.forSQL(namespaceId)
-                + "';")) {
+        database.queryIds("SELECT oid FROM model WHERE namespaceid = ?", List.of(namespaceId))) {
       deleteObjectWithId(oid, monitor);
       n++;
     }
@@ -669,8 +758,9 @@ public class ModelKbox extends ObservableKbox {
   @Override
   protected void deleteObjectWithId(long id, Channel monitor) {
     initialize(monitor);
-    database.execute("DELETE FROM model WHERE oid = " + id);
+    database.execute("DELETE FROM model WHERE oid = ?", List.of(id));
     deleteMetadataFor(id);
+    models.invalidate(id);
   }
 
   @Override
@@ -975,6 +1065,6 @@ public class ModelKbox extends ObservableKbox {
   }
 
   public ModelReference retrieveModel(String string, Channel monitor) {
-    return retrieve("SELECT * FROM model WHERE name = '" + string + "'", monitor);
+    return retrieve("SELECT * FROM model WHERE name = ?", List.of(string), monitor);
   }
 }
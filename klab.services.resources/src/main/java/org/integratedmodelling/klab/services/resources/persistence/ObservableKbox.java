@@ -37,6 +37,7 @@ import org.integratedmodelling.klab.persistence.h2.H2Kbox;
 import org.integratedmodelling.klab.persistence.h2.SQL;
 import org.integratedmodelling.klab.utilities.Utils;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -145,7 +146,7 @@ public abstract class ObservableKbox extends H2Kbox {
 
     int n = deleteAllObjectsWithNamespace(namespaceId, monitor);
 
-    database.execute("DELETE FROM namespaces where id = '" + namespaceId + "';");
+    database.execute("DELETE FROM namespaces WHERE id = ?", List.of(namespaceId));
 
     return n;
   }
@@ -527,42 +528,34 @@ public abstract class ObservableKbox extends H2Kbox {
     }
 
     Handler handler = new Handler();
-    database.query("SELECT * FROM metadata WHERE fid = " + oid, handler);
+    database.query("SELECT * FROM metadata WHERE fid = ?", List.of(oid), handler);
 
     return handler.ret;
   }
 
   protected void deleteMetadataFor(long oid) throws KlabException {
-    database.execute("DELETE FROM metadata WHERE fid = " + oid);
+    database.execute("DELETE FROM metadata WHERE fid = ?", List.of(oid));
   }
 
   protected void storeMetadataFor(long oid, Map<String, String> metadata) {
 
-    for (String s : metadata.keySet()) {
-
-      String sql =
-          " INSERT INTO metadata VALUES ("
-              + oid
-              + ", " // +
-              // "fid
-              // LONG,
-              // "
-              + "'"
-              + s
-              + "', " // + "key VARCHAR(256), "
-              + "?" // + "value OTHER"
-              + ")";
-      try {
-        /*
-         * OK, must execute these right away unfortunately - so if something goes wrong with
-         * the object's storage these will remain in the DB.
-         */
-        PreparedStatement prsql = database.getConnection().prepareStatement(sql);
-        prsql.setObject(1, metadata.get(s), Types.JAVA_OBJECT);
+    /*
+     * OK, must execute these right away unfortunately - so if something goes wrong with
+     * the object's storage these will remain in the DB.
+     */
+    Connection connection = database.getConnection();
+    try (PreparedStatement prsql =
+        connection.prepareStatement("INSERT INTO metadata VALUES (?, ?, ?)")) {
+      for (String s : metadata.keySet()) {
+        prsql.setLong(1, oid);
+        prsql.setString(2, s);
+        prsql.setObject(3, metadata.get(s), Types.JAVA_OBJECT);
         prsql.executeUpdate();
-      } catch (Exception e) {
-        throw new KlabStorageException(e);
       }
+    } catch (SQLException e) {
+      throw new KlabStorageException(e);
+    } finally {
+      database.releaseConnection(connection);
     }
   }
 
@@ -648,9 +641,7 @@ public abstract class ObservableKbox extends H2Kbox {
     }
     List<Long> ret =
         database.queryIds(
-            "SELECT timestamp FROM namespaces WHERE id = '"
-                + Utils.Escape.forSQL(namespace.getUrn())
-                + "';");
+            "SELECT timestamp FROM namespaces WHERE id = ?", List.of(namespace.getUrn()));
     return ret.size() > 0 ? ret.get(0) : 0L;
   }
 
@@ -1,16 +1,42 @@
 package org.integratedmodelling.klab.services.runtime.server.controllers;
 
+import org.integratedmodelling.klab.api.ServicesAPI;
+import org.integratedmodelling.klab.api.services.resources.ResourceSet;
+import org.integratedmodelling.klab.services.application.security.EngineAuthorization;
 import org.integratedmodelling.klab.services.application.security.Role;
 import org.integratedmodelling.klab.services.runtime.server.RuntimeServer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.access.annotation.Secured;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.security.Principal;
+import java.util.Map;
+
 @RestController
 @Secured(Role.ADMINISTRATOR)
-public class RuntimeServerAdminController {
+public class RuntimeServerAdminController implements ServicesAPI.RUNTIME.ADMIN {
 
     @Autowired
     private RuntimeServer runtimeService;
 
+    @GetMapping(EXCEPTION_TESTCASES)
+    public @ResponseBody Map<String, String> getExceptionTestcases(
+            @RequestParam(value = "deleteExisting", defaultValue = "false") boolean deleteExisting,
+            Principal principal) {
+        var scope = principal instanceof EngineAuthorization authorization
+                    ? authorization.getScope() : null;
+        return runtimeService.klabService().getExceptionTestcases(scope, deleteExisting);
+    }
+
+    @PostMapping(RESOURCES_CHANGED)
+    public @ResponseBody boolean resourcesChanged(@RequestBody ResourceSet changes) {
+        runtimeService.klabService().resourcesChanged(changes);
+        return true;
+    }
+
 }
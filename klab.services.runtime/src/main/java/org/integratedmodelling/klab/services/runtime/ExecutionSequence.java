@@ -1,23 +1,36 @@
 package org.integratedmodelling.klab.services.runtime;
 
 import com.google.common.collect.ImmutableList;
+import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
+import org.integratedmodelling.common.logging.Logging;
 import org.integratedmodelling.common.runtime.DataflowImpl;
 import org.integratedmodelling.klab.api.Klab;
-import org.integratedmodelling.klab.api.collections.Pair;
 import org.integratedmodelling.klab.api.data.KnowledgeGraph;
 import org.integratedmodelling.klab.api.data.Storage;
 import org.integratedmodelling.klab.api.data.Version;
 import org.integratedmodelling.klab.api.data.mediation.classification.LookupTable;
 import org.integratedmodelling.klab.api.digitaltwin.DigitalTwin;
 import org.integratedmodelling.klab.api.exceptions.KlabInternalErrorException;
+import org.integratedmodelling.klab.api.exceptions.KlabValidationException;
+import org.integratedmodelling.klab.api.geometry.Geometry;
+import org.integratedmodelling.klab.api.geometry.impl.GeometryImpl;
 import org.integratedmodelling.klab.api.knowledge.*;
 import org.integratedmodelling.klab.api.knowledge.observation.Observation;
 import org.integratedmodelling.klab.api.knowledge.observation.scale.Scale;
+import org.integratedmodelling.klab.api.knowledge.observation.scale.space.Space;
+import org.integratedmodelling.klab.api.lang.ExpressionCode;
 import org.integratedmodelling.klab.api.provenance.Activity;
 import org.integratedmodelling.klab.api.services.ResourcesService;
 import org.integratedmodelling.klab.api.services.RuntimeService;
@@ -47,7 +60,9 @@ public class ExecutionSequence {
   private final double resolvedCoverage;
   private final KnowledgeGraph.Operation contextualization;
   private final Dataflow<Observation> dataflow;
-  private List<List<ExecutorOperation>> sequence = new ArrayList<>();
+  private final long tileCellBudget;
+  // operations in topological order, each knowing its inputs and dependents
+  private List<ExecutorOperation> sequence = new ArrayList<>();
   private boolean empty;
   // the context for the next operation. Starts at the observation and doesn't normally change but
   // implementations
@@ -55,14 +70,24 @@ public class ExecutionSequence {
 //  // TODO check if this should be a RuntimeAsset or even an Observation.
 //  private Object currentExecutionContext;
   private Map<Actuator, KnowledgeGraph.Operation> operations = new HashMap<>();
-  private Throwable cause;
+  private volatile Throwable cause;
+  private final List<Long> criticalPath = new ArrayList<>();
+
+  private enum Status {
+    WAITING,
+    SUCCEEDED,
+    FAILED,
+    CANCELLED
+  }
 
   public ExecutionSequence(
       KnowledgeGraph.Operation contextualization,
       Dataflow<Observation> dataflow,
       ComponentRegistry componentRegistry,
-      ServiceContextScope contextScope) {
+      ServiceContextScope contextScope,
+      long tileCellBudget) {
     this.scope = contextScope;
+    this.tileCellBudget = tileCellBudget;
     this.contextualization = contextualization;
     this.resolvedCoverage =
         dataflow instanceof DataflowImpl dataflow1 ? dataflow1.getResolvedCoverage() : 1.0;
@@ -73,73 +98,260 @@ public class ExecutionSequence {
 
   public boolean compile(Actuator rootActuator) {
 
-    var pairs = sortComputation(rootActuator);
-    List<ExecutorOperation> current = null;
-    int currentGroup = -1;
-    for (var pair : pairs) {
-      if (currentGroup != pair.getSecond()) {
-        if (current != null) {
-          sequence.add(current);
-        }
-        current = new ArrayList<>();
+    var dependencyGraph = computeActuatorOrder(rootActuator);
+    Map<Actuator, ExecutorOperation> compiled = new HashMap<>();
+    for (var actuator : ImmutableList.copyOf(new TopologicalOrderIterator<>(dependencyGraph))) {
+      if (actuator.getActuatorType() == Actuator.Type.REFERENCE) {
+        continue;
       }
-      currentGroup = pair.getSecond();
-      var operation = new ExecutorOperation(pair.getFirst());
+      var operation = new ExecutorOperation(actuator);
       if (!operation.isOperational()) {
         return false;
       }
-      current.add(operation);
-    }
-
-    if (current != null) {
-      sequence.add(current);
-      return true;
+      // edges go from dependency to dependent, so all inputs have been compiled already
+      for (var edge : dependencyGraph.incomingEdgesOf(actuator)) {
+        var input = compiled.get(dependencyGraph.getEdgeSource(edge));
+        if (input != null && !operation.inputs.contains(input)) {
+          operation.inputs.add(input);
+          input.dependents.add(operation);
+        }
+      }
+      compiled.put(actuator, operation);
+      sequence.add(operation);
     }
 
-    return false;
+    return !sequence.isEmpty();
   }
 
+  /**
+   * Run all operations as soon as their inputs are available. A failed operation cancels all its
+   * direct and indirect dependents, while independent branches of the dataflow continue to run.
+   * Timings are collected for each actuator and the critical path is reported at the end.
+   *
+   * @return true if all operations were run successfully
+   */
   public boolean run() {
 
-    for (var operationGroup : sequence) {
-      // groups are sequential; grouped items are parallel. Empty groups are currently possible
-      // although
-      // they should be filtered out, but we leave them for completeness for now as they don't
-      // really
-      // bother anyone.
-      if (operationGroup.size() == 1) {
-        if (!operationGroup.getFirst().run()) {
-          return false;
+    long start = System.nanoTime();
+    for (var operation : sequence) {
+      operation.pendingInputs.set(operation.inputs.size());
+      operation.status.set(Status.WAITING);
+    }
+
+    if (sequence.size() == 1 || scope.getParallelism() == Parallelism.ONE) {
+      // topological order guarantees that inputs have been run when each operation is reached
+      for (var operation : sequence) {
+        if (operation.status.get() == Status.WAITING) {
+          complete(operation, operation.execute(start));
         }
-        continue;
       }
+    } else {
+      var remaining = new CountDownLatch(sequence.size());
+      try (ExecutorService taskExecutor = Executors.newVirtualThreadPerTaskExecutor()) {
+        for (var operation : sequence) {
+          if (operation.inputs.isEmpty()) {
+            submit(operation, taskExecutor, remaining, start);
+          }
+        }
+        remaining.await();
+      } catch (InterruptedException e) {
+        this.cause = e;
+        scope.error(e);
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
 
-      /*
-       * Run also the empty operations because execution will update the observations
-       */
-      if (scope.getParallelism() == Parallelism.ONE) {
-        for (var operation : operationGroup) {
-          if (!operation.run()) {
-            return false;
+    reportExecution(System.nanoTime() - start);
+
+    return sequence.stream().allMatch(operation -> operation.status.get() == Status.SUCCEEDED);
+  }
+
+  private void submit(
+      ExecutorOperation operation, ExecutorService executor, CountDownLatch remaining, long start) {
+    executor.execute(
+        () -> {
+          boolean success = false;
+          try {
+            success = operation.execute(start);
+          } catch (Throwable t) {
+            // execute() reports its own failures, so this should not happen
+            cause = t;
+            scope.error(t);
           }
+          // the latch must reach zero whatever happens, or run() waits forever
+          try {
+            for (int i = complete(operation, success); i > 0; i--) {
+              remaining.countDown();
+            }
+            if (success) {
+              for (var dependent : operation.dependents) {
+                if (dependent.pendingInputs.decrementAndGet() == 0
+                    && dependent.status.get() == Status.WAITING) {
+                  submit(dependent, executor, remaining, start);
+                }
+              }
+            }
+          } finally {
+            remaining.countDown();
+          }
+        });
+  }
+
+  /**
+   * Record the outcome of an operation and, if it failed, cancel the whole downstream subgraph.
+   *
+   * @return the number of operations cancelled as a consequence
+   */
+  private int complete(ExecutorOperation operation, boolean success) {
+    operation.status.set(success ? Status.SUCCEEDED : Status.FAILED);
+    int cancelled = 0;
+    if (!success) {
+      for (var dependent : operation.dependents) {
+        cancelled += cancel(dependent, operation);
+      }
+    }
+    return cancelled;
+  }
+
+  private int cancel(ExecutorOperation operation, ExecutorOperation failed) {
+    if (!operation.status.compareAndSet(Status.WAITING, Status.CANCELLED)) {
+      return 0;
+    }
+    scope.warn(
+        "Contextualization of "
+            + operation.observation
+            + " skipped because "
+            + failed.observation
+            + " could not be computed");
+    if (operation.operation != null) {
+      try {
+        operation.operation.fail(scope, operation.observation, cause);
+      } catch (Throwable t) {
+        scope.error(t);
+      }
+    }
+    int ret = 1;
+    for (var dependent : operation.dependents) {
+      ret += cancel(dependent, failed);
+    }
+    return ret;
+  }
+
+  /**
+   * Log the time spent in each actuator along with the critical path, i.e. the chain of dependent
+   * operations with the longest cumulative time, which bounds the duration of the whole run no
+   * matter how much parallelism is available.
+   */
+  private void reportExecution(long elapsedNanos) {
+
+    Map<ExecutorOperation, Long> finish = new HashMap<>();
+    Map<ExecutorOperation, ExecutorOperation> previous = new HashMap<>();
+    ExecutorOperation last = null;
+    for (var operation : sequence) {
+      long ready = 0;
+      for (var input : operation.inputs) {
+        if (finish.get(input) > ready) {
+          ready = finish.get(input);
+          previous.put(operation, input);
+        }
+      }
+      finish.put(operation, ready + operation.durationNanos);
+      if (last == null || finish.get(operation) > finish.get(last)) {
+        last = operation;
+      }
+    }
+
+    criticalPath.clear();
+    for (var operation = last; operation != null; operation = previous.get(operation)) {
+      criticalPath.addFirst(operation.id);
+    }
+
+    var report = new StringBuilder("Dataflow executed in ").append(millis(elapsedNanos));
+    report.append(" ms; critical path ").append(millis(finish.getOrDefault(last, 0L)));
+    report.append(" ms:");
+    for (var operation = last; operation != null; operation = previous.get(operation)) {
+      report.append("\n  ").append(operation.describe());
+    }
+    report.append("\nActuators:");
+    for (var operation : sequence) {
+      report.append("\n  ").append(operation.describe());
+    }
+    Logging.INSTANCE.debug(report.toString());
+  }
+
+  /**
+   * Run the task for each tile in parallel using the parallelism configured in the scope.
+   *
+   * @return true if all tiles were processed successfully
+   */
+  private <T> boolean runTiled(List<T> tiles, Predicate<T> task) {
+    int parallelism = scope.getParallelism().getAsInt();
+    boolean ret = true;
+    try {
+      if (parallelism == 1 || tiles.size() == 1) {
+        for (var tile : tiles) {
+          ret &= task.test(tile);
         }
       } else {
-        try (ExecutorService taskExecutor = Executors.newVirtualThreadPerTaskExecutor()) {
-          for (var operation : operationGroup) {
-            taskExecutor.execute(operation::run);
-          }
-          taskExecutor.shutdown();
-          if (!taskExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
-            return false;
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (var tile : tiles) {
+          tasks.add(() -> task.test(tile));
+        }
+        try (var pool = new ForkJoinPool(parallelism)) {
+          for (var result : pool.invokeAll(tasks)) {
+            ret &= result.get();
           }
-        } catch (InterruptedException e) {
-          this.cause = e;
-          scope.error(e);
         }
       }
+    } catch (ExecutionException e) {
+      cause = e.getCause();
+      scope.error(e.getCause());
+      return false;
+    } catch (InterruptedException e) {
+      cause = e;
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return ret;
+  }
+
+  private static boolean isGeometryAware(Method method) {
+    for (var type : method.getParameterTypes()) {
+      if (Geometry.class.isAssignableFrom(type) || Space.class.isAssignableFrom(type)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  /**
+   * Wall-clock time spent running each actuator in the last {@link #run()}, in milliseconds,
+   * indexed by actuator ID. Cancelled actuators are not reported.
+   *
+   * @return
+   */
+  public Map<Long, Long> getExecutionTimes() {
+    Map<Long, Long> ret = new LinkedHashMap<>();
+    for (var operation : sequence) {
+      if (operation.status.get() == Status.SUCCEEDED || operation.status.get() == Status.FAILED) {
+        ret.put(operation.id, millis(operation.durationNanos));
+      }
     }
+    return ret;
+  }
 
-    return true;
+  /**
+   * The IDs of the actuators on the critical path of the last {@link #run()}, in execution order.
+   *
+   * @return
+   */
+  public List<Long> getCriticalPath() {
+    return Collections.unmodifiableList(criticalPath);
   }
 
   /** One operation per observation. Successful execution will update the observation in the DT. */
@@ -151,14 +363,38 @@ public class ExecutionSequence {
     private boolean scalar;
     private boolean operational;
     private KnowledgeGraph.Operation operation;
+    private final Actuator actuator;
+    private final List<ExecutorOperation> inputs = new ArrayList<>();
+    private final List<ExecutorOperation> dependents = new ArrayList<>();
+    private final AtomicInteger pendingInputs = new AtomicInteger();
+    private final AtomicReference<Status> status = new AtomicReference<>(Status.WAITING);
+    private long startNanos;
+    private long durationNanos;
+    private List<Geometry> tiles;
 
     public ExecutorOperation(Actuator actuator) {
       this.id = actuator.getId();
+      this.actuator = actuator;
       this.operation = operations.get(actuator);
       this.observation = scope.getObservation(this.id);
       this.operational = compile(actuator);
     }
 
+    /**
+     * The qualities computed by the children of the actuator, by name and in the order of the
+     * children. Scalar steps read their inputs from these.
+     */
+    private Map<String, Observation> qualityDependencies(Actuator actuator) {
+      var ret = new LinkedHashMap<String, Observation>();
+      for (var child : actuator.getChildren()) {
+        var dependency = scope.getObservation(child.getId());
+        if (dependency != null && dependency.getObservable().is(SemanticType.QUALITY)) {
+          ret.put(child.getName(), dependency);
+        }
+      }
+      return ret;
+    }
+
     private boolean compile(Actuator actuator) {
 
       // TODO compile info for provenance from actuator
@@ -202,6 +438,23 @@ public class ExecutionSequence {
                       scope);
               if (adapter != null) {
 
+                if (tiles().size() > 1) {
+                  // each tile is contextualized and ingested into its own buffer concurrently
+                  executors.add(
+                      () ->
+                          runTiled(
+                              tiles(),
+                              tile ->
+                                  new ServiceResourceContextualizer(
+                                          adapter,
+                                          adapter.hasContextualizer()
+                                              ? adapter.contextualize(finalResource, tile, scope)
+                                              : finalResource,
+                                          observation)
+                                      .contextualize(observation, tile, scope)));
+                  continue;
+                }
+
                 if (adapter.hasContextualizer()) {
                   resource = adapter.contextualize(resource, observation.getGeometry(), scope);
                 }
@@ -249,10 +502,44 @@ public class ExecutionSequence {
               }
             }
             case EXPRESSION_RESOLVER -> {
-              System.out.println("RESOLVE THE FEKKIN' EXPRESSION " + call.getParameters());
-              // TODO compile the expression in scope, add the compiled Expression in either scalar
-              // mapper or
-              //  not
+              var code = call.getParameters().get("expression");
+              var source =
+                  code instanceof ExpressionCode expressionCode
+                      ? expressionCode.getCode()
+                      : (code == null ? null : code.toString());
+              if (source == null) {
+                scope.error("No expression code in " + call + " for " + actuator);
+                return false;
+              }
+
+              // qualities computed by the children are the inputs, bound to their storage at run
+              var dependencies = qualityDependencies(actuator);
+              var inputTypes = new HashMap<String, Storage.Type>();
+              for (var child : actuator.getChildren()) {
+                if (dependencies.containsKey(child.getName())) {
+                  inputTypes.put(
+                      child.getName(),
+                      child.getType() == Artifact.Type.BOOLEAN
+                          ? Storage.Type.BOOLEAN
+                          : Storage.Type.DOUBLE);
+                }
+              }
+
+              try {
+                // compiled once per context for the same code and inputs
+                var compiled = scope.getCompiledExpression(source, inputTypes);
+                if (scalarMapper == null) {
+                  scalarMapper =
+                      new ScalarMapper(observation, digitalTwin, componentRegistry, scope);
+                }
+                if (!scalarMapper.add(compiled, dependencies)) {
+                  return false;
+                }
+              } catch (KlabValidationException e) {
+                scope.error(e);
+                return false;
+              }
+              continue;
             }
             case LUT_RESOLVER -> {
               // Parameter in dataflow should be URN of LUT + @version, resolved through the
@@ -284,17 +571,17 @@ public class ExecutionSequence {
         if (currentDescriptor.serviceInfo.getGeometry().isScalar()) {
 
           if (scalarMapper == null) {
-            scalarMapper = new ScalarMapper(observation, digitalTwin, scope);
+            scalarMapper = new ScalarMapper(observation, digitalTwin, componentRegistry, scope);
           }
 
-          /**
-           * Executor is a class containing all consecutive steps in a single method and calling
-           * whatever mapping strategy is configured in the scope, using a different class per
-           * strategy.
+          /*
+           * Consecutive scalar steps are fused into the mapper's kernel and run together, in
+           * parallel over the cells, when the chain is interrupted or the actuator ends.
            */
-          scalarMapper.add(call, currentDescriptor);
-
-          System.out.println("SCALAR");
+          if (!scalarMapper.add(call, currentDescriptor, qualityDependencies(actuator))) {
+            scope.error("Cannot compile scalar executor for " + call + " in " + actuator);
+            return false;
+          }
 
         } else {
           if (scalarMapper != null) {
@@ -316,11 +603,12 @@ public class ExecutionSequence {
            * Should match arguments, check if they all match, and if not move to the next until
            * no available implementations remain.
            */
-          if (componentRegistry.implementation(currentDescriptor).method != null) {
+          var implementation = componentRegistry.implementation(currentDescriptor);
+          if (implementation.method != null) {
 
             var runArguments =
                 ComponentRegistry.matchArguments(
-                    componentRegistry.implementation(currentDescriptor).method,
+                    implementation.method,
                     resource,
                     observation.getGeometry(),
                     null,
@@ -339,45 +627,67 @@ public class ExecutionSequence {
               return false;
             }
 
-            if (currentDescriptor.staticMethod) {
-              Extensions.FunctionDescriptor finalDescriptor1 = currentDescriptor;
+            if ((currentDescriptor.staticMethod || implementation.mainClassInstance != null)
+                && tiles().size() > 1
+                && currentDescriptor.serviceInfo.isReentrant()
+                && isGeometryAware(implementation.method)) {
+
+              /*
+               * Reentrant contextualizers that take the geometry run once per tile, in parallel,
+               * and fill the storage buffers located by the tile's extent offsets.
+               */
+              List<Object[]> tileArguments = new ArrayList<>();
+              for (var tile : tiles()) {
+                var matched =
+                    ComponentRegistry.matchArguments(
+                        implementation.method,
+                        resource,
+                        tile,
+                        null,
+                        observation,
+                        observation.getObservable(),
+                        urn,
+                        call.getParameters(),
+                        call,
+                        storage,
+                        expression,
+                        lookupTable,
+                        null,
+                        scope);
+                if (matched == null) {
+                  return false;
+                }
+                tileArguments.add(matched.toArray());
+              }
               executors.add(
-                  () -> {
-                    try {
-                      var context =
-                          componentRegistry
-                              .implementation(finalDescriptor1)
-                              .method
-                              .invoke(null, runArguments.toArray());
-//                      setExecutionContext(context == null ? observation : context);
-                      return true;
-                    } catch (Exception e) {
-                      cause = e;
-                      scope.error(e /* TODO tracing parameters */);
-                    }
-                    return true;
-                  });
-            } else if (componentRegistry.implementation(currentDescriptor).mainClassInstance
-                != null) {
-              Extensions.FunctionDescriptor finalDescriptor = currentDescriptor;
+                  () ->
+                      runTiled(
+                          tileArguments,
+                          arguments -> {
+                            try {
+                              implementation.invoke(arguments);
+                              return true;
+                            } catch (Throwable e) {
+                              cause = e;
+                              scope.error(e);
+                              return false;
+                            }
+                          }));
+
+            } else if (currentDescriptor.staticMethod || implementation.mainClassInstance != null) {
+              // arguments are matched once and the invoker is pre-bound at registration
+              final var arguments = runArguments.toArray();
               executors.add(
                   () -> {
                     try {
-                      var context =
-                          componentRegistry
-                              .implementation(finalDescriptor)
-                              .method
-                              .invoke(
-                                  componentRegistry.implementation(finalDescriptor)
-                                      .mainClassInstance,
-                                  runArguments.toArray());
+                      var context = implementation.invoke(arguments);
 //                      setExecutionContext(context == null ? observation : context);
                       return true;
-                    } catch (Exception e) {
+                    } catch (Throwable e) {
                       cause = e;
                       scope.error(e /* TODO tracing parameters */);
+                      return false;
                     }
-                    return true;
                   });
             }
           }
@@ -391,32 +701,88 @@ public class ExecutionSequence {
       return true;
     }
 
-    public boolean run() {
+    /**
+     * Run all executors in sequence, recording the timing relative to the start of the sequence.
+     * Never throws: any exception, including those from recording the outcome, is reported and
+     * makes the operation fail.
+     *
+     * @param sequenceStart
+     * @return
+     */
+    public boolean execute(long sequenceStart) {
 
       // TODO compile info for provenance, to be added to the KG at finalization
-      long start = System.currentTimeMillis();
-      for (var executor : executors) {
-        if (!executor.get()) {
-          if (operation != null) {
-            operation.fail(scope, observation, cause);
+      long start = System.nanoTime();
+      this.startNanos = start - sequenceStart;
+      boolean success = true;
+      try {
+        for (var executor : executors) {
+          if (!executor.get()) {
+            success = false;
+            break;
           }
-          return false;
         }
+        if (success && operation != null) {
+          operation.success(scope, observation, resolvedCoverage);
+          scope.finalizeObservation(observation, operation, true);
+        }
+      } catch (Throwable t) {
+        cause = t;
+        scope.error(t);
+        success = false;
+      } finally {
+        this.durationNanos = System.nanoTime() - start;
       }
 
-      long time = System.currentTimeMillis() - start;
-
-      if (operation != null) {
-        operation.success(scope, observation, resolvedCoverage);
-        scope.finalizeObservation(observation, operation, true);
+      if (!success && operation != null) {
+        try {
+          operation.fail(scope, observation, cause);
+        } catch (Throwable t) {
+          scope.error(t);
+        }
       }
 
-      return true;
+      return success;
     }
 
     public boolean isOperational() {
       return operational;
     }
+
+    /**
+     * The tiles that the observation's geometry is split into for parallel contextualization. Only
+     * qualities whose geometry exceeds the configured cell budget are split; otherwise the only
+     * tile is the geometry itself.
+     *
+     * @return
+     */
+    private List<Geometry> tiles() {
+      if (tiles == null) {
+        var geometry = observation.getGeometry();
+        tiles = List.of(geometry);
+        if (tileCellBudget > 0
+            && geometry.size() > tileCellBudget
+            && observation.getObservable().is(SemanticType.QUALITY)) {
+          var splittable =
+              geometry instanceof GeometryImpl geometryImpl
+                  ? geometryImpl
+                  : (GeometryImpl) Geometry.create(geometry.encode());
+          tiles = splittable.split(tileCellBudget);
+        }
+      }
+      return tiles;
+    }
+
+    private String describe() {
+      return actuator.getName()
+          + " ["
+          + id
+          + "] "
+          + status.get().name().toLowerCase()
+          + (status.get() == Status.CANCELLED
+              ? ""
+              : " at +" + millis(startNanos) + " ms, " + millis(durationNanos) + " ms");
+    }
   }
 
 //  private void setExecutionContext(Object returnedValue) {
@@ -449,70 +815,6 @@ public class ExecutionSequence {
     return this.empty;
   }
 
-  /**
-   * Establish the order of execution and the possible parallelism. Each root actuator should be
-   * sorted by dependency and appended in order to the result list along with its order of
-   * execution. Successive roots can refer to the previous roots but they must be executed
-   * sequentially.
-   *
-   * <p>The DigitalTwin is asked to register the actuator in the scope and prepare the environment
-   * and state for its execution, including defining its contextualization scale in context.
-   *
-   * @return
-   */
-  private List<Pair<Actuator, Integer>> sortComputation(Actuator rootActuator) {
-    List<Pair<Actuator, Integer>> ret = new ArrayList<>();
-    int executionOrder = 0;
-    Map<Long, Actuator> branch = new HashMap<>();
-    Set<Actuator> group = new HashSet<>();
-    var dependencyGraph = computeActuatorOrder(rootActuator);
-    for (var nextActuator : ImmutableList.copyOf(new TopologicalOrderIterator<>(dependencyGraph))) {
-      if (nextActuator.getActuatorType() != Actuator.Type.REFERENCE) {
-        ret.add(
-            Pair.of(
-                nextActuator,
-                (executionOrder =
-                    checkExecutionOrder(executionOrder, nextActuator, dependencyGraph, group))));
-      }
-    }
-    return ret;
-  }
-
-  /**
-   * If the actuator depends on any in the currentGroup, empty the group and increment the order;
-   * otherwise, add it to the group and return the same order.
-   *
-   * @param executionOrder
-   * @param current
-   * @param dependencyGraph
-   * @param currentGroup
-   * @return
-   */
-  private int checkExecutionOrder(
-      int executionOrder,
-      Actuator current,
-      Graph<Actuator, DefaultEdge> dependencyGraph,
-      Set<Actuator> currentGroup) {
-    boolean dependency = false;
-    for (Actuator previous : currentGroup) {
-      for (var edge : dependencyGraph.incomingEdgesOf(current)) {
-        if (currentGroup.contains(dependencyGraph.getEdgeSource(edge))) {
-          dependency = true;
-          break;
-        }
-      }
-    }
-
-    if (dependency) {
-      currentGroup.clear();
-      return executionOrder + 1;
-    }
-
-    currentGroup.add(current);
-
-    return executionOrder;
-  }
-
   private Graph<Actuator, DefaultEdge> computeActuatorOrder(Actuator rootActuator) {
     Graph<Actuator, DefaultEdge> dependencyGraph = new DefaultDirectedGraph<>(DefaultEdge.class);
     Map<Long, Actuator> cache = new HashMap<>();
@@ -0,0 +1,324 @@
+package org.integratedmodelling.klab.services.runtime;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.integratedmodelling.common.logging.Logging;
+import org.integratedmodelling.common.runtime.ActuatorImpl;
+import org.integratedmodelling.common.runtime.DataflowImpl;
+import org.integratedmodelling.klab.api.geometry.Geometry;
+import org.integratedmodelling.klab.api.knowledge.observation.Observation;
+import org.integratedmodelling.klab.api.lang.kim.KlabDocument;
+import org.integratedmodelling.klab.api.scope.ContextScope;
+import org.integratedmodelling.klab.api.services.Reasoner;
+import org.integratedmodelling.klab.api.services.ResourcesService;
+import org.integratedmodelling.klab.api.services.resolver.ResolutionConstraint;
+import org.integratedmodelling.klab.api.services.resources.ResourceSet;
+import org.integratedmodelling.klab.api.services.runtime.Actuator;
+import org.integratedmodelling.klab.api.services.runtime.Dataflow;
+import org.integratedmodelling.klab.services.runtime.neo4j.KnowledgeGraphNeo4j;
+import org.integratedmodelling.klab.utilities.Utils;
+
+/**
+ * Dataflows that have been resolved and run successfully, so that observing the same observable
+ * under the same resolution constraints over the same extents with the same worldview can skip
+ * resolution. Entries are keyed by a hash of those and hold the dataflow as JSON, so that each hit
+ * is retargeted on a fresh copy.
+ *
+ * <p>Dataflows whose actuators all compute the target observation don't depend on anything else in
+ * their context and are also stored in the knowledge graph, surviving restarts. Those that also
+ * compute dependencies are only reused within the same context, where the dependencies have been
+ * computed already and are turned into references.
+ *
+ * <p>Keys include the worldview ID and a knowledge version that any change in namespaces,
+ * ontologies, observation strategies or resources increments, besides clearing both tiers, so
+ * that dataflows resolved before a change can neither be found nor cached after it. Changes reach
+ * the cache through {@link org.integratedmodelling.klab.api.services.RuntimeService.Admin}, also
+ * from remote engines. The version is persisted in the knowledge graph with a fingerprint of the
+ * content of the resources services: changes made while the runtime was down are not notified, so
+ * the first scope seen after startup compares the content of its resources services with the
+ * fingerprint and invalidates everything if they differ.
+ */
+public class ResolutionCache {
+
+  private static final int MAX_CACHED_DATAFLOWS = 256;
+
+  private record Entry(long targetId, String dataflow) {}
+
+  private final KnowledgeGraphNeo4j knowledgeGraph;
+  private final AtomicLong knowledgeVersion = new AtomicLong();
+  private final AtomicBoolean contentChecked = new AtomicBoolean();
+  private final Cache<String, Entry> dataflows =
+      CacheBuilder.newBuilder().maximumSize(MAX_CACHED_DATAFLOWS).build();
+
+  /**
+   * @param knowledgeGraph the graph to persist context-independent entries into, or null to keep
+   *     entries in memory only
+   */
+  public ResolutionCache(KnowledgeGraphNeo4j knowledgeGraph) {
+    this.knowledgeGraph = knowledgeGraph;
+    if (knowledgeGraph != null) {
+      this.knowledgeVersion.set(knowledgeGraph.getKnowledgeVersion());
+    }
+  }
+
+  /**
+   * The version of the knowledge that resolution can use, to be taken before resolving and passed
+   * to {@link #put(Observation, Dataflow, ContextScope, long)}.
+   *
+   * @return
+   */
+  public long getKnowledgeVersion() {
+    return knowledgeVersion.get();
+  }
+
+  /**
+   * Return a dataflow resolving the passed observation if one was cached for the same conditions,
+   * retargeted to the observation.
+   *
+   * @param observation
+   * @param scope
+   * @return the dataflow or null
+   */
+  public Dataflow<Observation> get(Observation observation, ContextScope scope) {
+
+    checkResourcesContent(scope);
+    var signature = signature(observation, scope, knowledgeVersion.get());
+    if (signature == null) {
+      return null;
+    }
+
+    // context-scoped entries first, as they are also the most specific
+    var entry = dataflows.getIfPresent(key(signature, scope));
+    if (entry == null) {
+      var key = key(signature, null);
+      entry = dataflows.getIfPresent(key);
+      if (entry == null && knowledgeGraph != null) {
+        var stored = knowledgeGraph.getResolution(key);
+        if (stored != null) {
+          entry = new Entry(stored.getFirst(), stored.getSecond());
+          dataflows.put(key, entry);
+        }
+      }
+    }
+
+    return entry == null ? null : instantiate(entry, observation);
+  }
+
+  /**
+   * Cache a dataflow after it has resolved and computed the observation successfully. Nothing is
+   * cached if the knowledge has changed since resolution started.
+   *
+   * @param observation
+   * @param dataflow
+   * @param scope
+   * @param knowledgeVersion as returned by {@link #getKnowledgeVersion()} before resolving
+   */
+  public void put(
+      Observation observation,
+      Dataflow<Observation> dataflow,
+      ContextScope scope,
+      long knowledgeVersion) {
+
+    if (dataflow.isEmpty() || !(dataflow instanceof DataflowImpl)) {
+      return;
+    }
+
+    checkResourcesContent(scope);
+
+    var signature = signature(observation, scope, knowledgeVersion);
+    if (signature == null || knowledgeVersion != this.knowledgeVersion.get()) {
+      return;
+    }
+
+    try {
+      boolean contextFree = computesOnly(dataflow.getComputation(), observation.getId());
+      var key = key(signature, contextFree ? null : scope);
+      var entry = new Entry(observation.getId(), Utils.Json.asString(dataflow));
+      dataflows.put(key, entry);
+      if (contextFree && knowledgeGraph != null) {
+        knowledgeGraph.putResolution(key, entry.targetId(), entry.dataflow(), knowledgeVersion);
+      }
+    } catch (Throwable t) {
+      Logging.INSTANCE.warn("Resolution of " + observation.getUrn() + " could not be cached", t);
+    }
+  }
+
+  /**
+   * Drop all entries if the changes may affect resolution.
+   *
+   * @param changes
+   */
+  public void invalidate(ResourceSet changes) {
+    if (changes == null
+        || !changes.getNamespaces().isEmpty()
+        || !changes.getOntologies().isEmpty()
+        || !changes.getObservationStrategies().isEmpty()
+        || !changes.getResources().isEmpty()) {
+      if (knowledgeGraph != null) {
+        var current = knowledgeVersion.get();
+        knowledgeVersion.accumulateAndGet(
+            knowledgeGraph.nextKnowledgeVersion(current + 1), Math::max);
+      } else {
+        knowledgeVersion.incrementAndGet();
+      }
+      dataflows.invalidateAll();
+      if (knowledgeGraph != null) {
+        knowledgeGraph.clearResolutions();
+      }
+    }
+  }
+
+  /**
+   * Once after startup, drop the stored resolutions if the content of the resources services has
+   * changed since they were made. Not done until a scope with resources services is seen.
+   */
+  private void checkResourcesContent(ContextScope scope) {
+    if (knowledgeGraph == null || contentChecked.get()) {
+      return;
+    }
+    synchronized (contentChecked) {
+      if (contentChecked.get()) {
+        return;
+      }
+      try {
+        var content = resourcesContent(scope);
+        if (content == null) {
+          return;
+        }
+        if (!content.equals(knowledgeGraph.getResourcesContent())) {
+          Logging.INSTANCE.info(
+              "Resources have changed since the last run: stored resolutions are discarded");
+          invalidate(null);
+          knowledgeGraph.setResourcesContent(content);
+        }
+      } catch (Throwable t) {
+        // cannot tell, so assume the worst
+        Logging.INSTANCE.warn("Resources content could not be checked: resolving again", t);
+        invalidate(null);
+      }
+      contentChecked.set(true);
+    }
+  }
+
+  /**
+   * A fingerprint of the projects, documents and resources in the resources services of the scope,
+   * with the versions and update times of the documents.
+   *
+   * @return the fingerprint or null if the scope has no resources service
+   */
+  private String resourcesContent(ContextScope scope) {
+    var services = scope.getServices(ResourcesService.class);
+    if (services.isEmpty()) {
+      return null;
+    }
+    List<String> ret = new ArrayList<>();
+    for (var resources : services) {
+      for (var workspace : resources.listWorkspaces()) {
+        for (var project : workspace.getProjects()) {
+          ret.add(
+              project.getUrn()
+                  + "@"
+                  + (project.getManifest() == null ? null : project.getManifest().getVersion()));
+          List<KlabDocument<?>> documents = new ArrayList<>(project.getNamespaces());
+          documents.addAll(project.getOntologies());
+          documents.addAll(project.getObservationStrategies());
+          for (var document : documents) {
+            ret.add(
+                document.getUrn()
+                    + "@"
+                    + document.getVersion()
+                    + ":"
+                    + document.getLastUpdateTimestamp());
+          }
+          ret.addAll(project.getResourceUrns());
+        }
+      }
+    }
+    ret.sort(null);
+    return Utils.Strings.hash(String.join(";", ret));
+  }
+
+  /**
+   * The conditions of resolution: observable, constraints, extents, worldview and knowledge
+   * version. Provenance constraints only record where the request comes from, so they are left out.
+   */
+  private String signature(Observation observation, ContextScope scope, long knowledgeVersion) {
+
+    if (observation.getObservable() == null || observation.getGeometry() == null) {
+      return null;
+    }
+
+    var reasoner = scope.getService(Reasoner.class);
+    var ret = new StringBuilder(observation.getObservable().getUrn());
+    ret.append('|').append(observation.getGeometry().encode());
+    ret.append('|').append(reasoner == null ? null : reasoner.capabilities(scope).getWorldviewId());
+    ret.append('|').append(knowledgeVersion);
+
+    List<String> constraints = new ArrayList<>();
+    for (var constraint : scope.getResolutionConstraints()) {
+      if (constraint.empty() || constraint.getType() == ResolutionConstraint.Type.Provenance) {
+        continue;
+      }
+      var encoded = new StringBuilder(constraint.getType().name());
+      for (var payload : constraint.payload(constraint.getType().dataClass)) {
+        encoded
+            .append(',')
+            .append(payload instanceof Geometry geometry ? geometry.encode() : payload);
+      }
+      constraints.add(encoded.toString());
+    }
+    constraints.sort(null);
+    ret.append('|').append(String.join(";", constraints));
+
+    return ret.toString();
+  }
+
+  private String key(String signature, ContextScope scope) {
+    return Utils.Strings.hash(scope == null ? signature : scope.getId() + "|" + signature);
+  }
+
+  private boolean computesOnly(List<Actuator> actuators, long observationId) {
+    for (var actuator : actuators) {
+      if (actuator.getId() != observationId
+          || !computesOnly(actuator.getChildren(), observationId)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Dataflow<Observation> instantiate(Entry entry, Observation observation) {
+    try {
+      var ret = Utils.Json.parseObject(entry.dataflow(), DataflowImpl.class);
+      ret.setTarget(observation);
+      retarget(ret.getComputation(), entry.targetId(), observation.getId());
+      return ret;
+    } catch (Throwable t) {
+      Logging.INSTANCE.warn("Cached resolution could not be restored: resolving again", t);
+      return null;
+    }
+  }
+
+  /**
+   * Point the actuators for the original target to the new one and turn the others into references
+   * to the dependencies already computed in the context.
+   */
+  private void retarget(List<Actuator> actuators, long targetId, long observationId) {
+    for (var actuator : actuators) {
+      if (actuator instanceof ActuatorImpl actuatorImpl) {
+        if (actuatorImpl.getId() == targetId) {
+          actuatorImpl.setId(observationId);
+          retarget(actuatorImpl.getChildren(), targetId, observationId);
+        } else {
+          actuatorImpl.setActuatorType(Actuator.Type.REFERENCE);
+          actuatorImpl.getChildren().clear();
+          actuatorImpl.getComputation().clear();
+        }
+      }
+    }
+  }
+}
@@ -44,6 +44,7 @@ import org.integratedmodelling.klab.services.configuration.RuntimeConfiguration;
 import org.integratedmodelling.klab.services.runtime.digitaltwin.DigitalTwinImpl;
 import org.integratedmodelling.klab.services.runtime.neo4j.AbstractKnowledgeGraph;
 import org.integratedmodelling.klab.services.runtime.neo4j.KnowledgeGraphNeo4JEmbedded;
+import org.integratedmodelling.klab.services.runtime.neo4j.KnowledgeGraphNeo4j;
 import org.integratedmodelling.klab.services.scopes.ServiceContextScope;
 import org.integratedmodelling.klab.services.scopes.ServiceSessionScope;
 import org.integratedmodelling.klab.services.scopes.messaging.EmbeddedBroker;
@@ -57,6 +58,7 @@ public class RuntimeService extends BaseService
       org.integratedmodelling.common.utils.Utils.Strings.hash(Utils.OS.getMACAddress());
   private RuntimeConfiguration configuration;
   private KnowledgeGraph knowledgeGraph;
+  private ResolutionCache resolutionCache = new ResolutionCache(null);
   private SystemLauncher systemLauncher;
 
   public RuntimeService(AbstractServiceDelegatingScope scope, ServiceStartupOptions options) {
@@ -87,7 +89,12 @@ public class RuntimeService extends BaseService
   private boolean createMainKnowledgeGraph() {
     // TODO choose the DB from configuration - client or embedded server
     var path = BaseService.getConfigurationSubdirectory(startupOptions, "dt").toPath();
-    this.knowledgeGraph = new KnowledgeGraphNeo4JEmbedded(path);
+    this.knowledgeGraph =
+        new KnowledgeGraphNeo4JEmbedded(path, configuration.getKnowledgeGraphSessions());
+    if (this.knowledgeGraph.isOnline()
+        && this.knowledgeGraph instanceof KnowledgeGraphNeo4j knowledgeGraphNeo4j) {
+      this.resolutionCache = new ResolutionCache(knowledgeGraphNeo4j);
+    }
     return this.knowledgeGraph.isOnline();
   }
 
@@ -205,6 +212,11 @@ public class RuntimeService extends BaseService
     return ret;
   }
 
+  @Override
+  public void resourcesChanged(ResourceSet changes) {
+    resolutionCache.invalidate(changes);
+  }
+
   @Override
   public String registerSession(SessionScope sessionScope) {
     if (sessionScope instanceof ServiceSessionScope serviceSessionScope) {
@@ -427,10 +439,9 @@ public class RuntimeService extends BaseService
     if (scope instanceof ServiceContextScope serviceContextScope) {
 
       /*
-      TODO must consult the knowledge graph to see if we have a pre-resolved dataflow that
-       can handle this observation. Could be done by looking up an existing RESOLUTION activity
-       that was linked to the overall covered geometry of the dataflow. Should use the spatial
-       queries in Neo4J or maintain a separate spatial index for the dataflows/activities.
+      Dataflows that ran successfully are cached by observable, constraints, extents and
+      worldview. TODO use coverage containment instead of identical extents once models carry
+      their coverage, possibly with the spatial queries in Neo4J.
        */
 
       var resolver = serviceContextScope.getService(Resolver.class);
@@ -451,6 +462,8 @@ public class RuntimeService extends BaseService
                 Dataflow<Observation> dataflow = null;
                 Activity resolutionActivity = null;
                 Observation result = null;
+                boolean cached = false;
+                long knowledgeVersion = resolutionCache.getKnowledgeVersion();
 
                 /*
                 This will commit or rollback at close()
@@ -473,7 +486,11 @@ public class RuntimeService extends BaseService
                       result);
                   try {
                     // TODO send out the activity with the scope
-                    dataflow = resolver.resolve(observation, scope);
+                    dataflow = resolutionCache.get(observation, scope);
+                    cached = dataflow != null;
+                    if (!cached) {
+                      dataflow = resolver.resolve(observation, scope);
+                    }
                     if (dataflow != null) {
                       resolution.success(
                           scope,
@@ -544,6 +561,9 @@ public class RuntimeService extends BaseService
                       result = runDataflow(dataflow, scope, contextualization);
                       ret.complete(result);
                       contextualization.success(scope, dataflow, result);
+                      if (!cached && result != null && !result.isEmpty()) {
+                        resolutionCache.put(observation, dataflow, scope, knowledgeVersion);
+                      }
                     } catch (Throwable t) {
                       Logging.INSTANCE.error(t);
                       contextualization.fail(scope, dataflow, result, t);
@@ -584,7 +604,11 @@ public class RuntimeService extends BaseService
       for (var rootActuator : dataflow.getComputation()) {
         var executionSequence =
             new ExecutionSequence(
-                contextualization, dataflow, getComponentRegistry(), serviceContextScope);
+                contextualization,
+                dataflow,
+                getComponentRegistry(),
+                serviceContextScope,
+                configuration.getTileCellBudget());
         var compiled = executionSequence.compile(rootActuator);
         if (!compiled) {
           contextualization.fail(
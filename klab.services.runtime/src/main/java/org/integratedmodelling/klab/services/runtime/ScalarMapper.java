@@ -1,30 +1,121 @@
 package org.integratedmodelling.klab.services.runtime;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongPredicate;
+import java.util.function.LongToDoubleFunction;
+import org.integratedmodelling.klab.api.data.Data;
 import org.integratedmodelling.klab.api.data.Storage;
 import org.integratedmodelling.klab.api.digitaltwin.DigitalTwin;
 import org.integratedmodelling.klab.api.exceptions.KlabIllegalStateException;
 import org.integratedmodelling.klab.api.exceptions.KlabInternalErrorException;
+import org.integratedmodelling.klab.api.exceptions.KlabValidationException;
+import org.integratedmodelling.klab.api.geometry.Geometry;
 import org.integratedmodelling.klab.api.knowledge.observation.Observation;
+import org.integratedmodelling.klab.api.knowledge.observation.scale.Scale;
 import org.integratedmodelling.klab.api.lang.ServiceCall;
 import org.integratedmodelling.klab.api.services.runtime.extension.Extensions;
+import org.integratedmodelling.klab.components.ComponentRegistry;
+import org.integratedmodelling.klab.runtime.language.CompiledExpression;
+import org.integratedmodelling.klab.runtime.scale.ExtentImpl;
 import org.integratedmodelling.klab.runtime.storage.*;
 import org.integratedmodelling.klab.services.scopes.ServiceContextScope;
 
 /**
  * Scalar executor providing handling and caching for LUTs, classifications and expression and
  * implementing the mapping strategy configured in the runtime.
+ *
+ * <p>Consecutive scalar calls are fused into a single kernel: each call is bound once to its
+ * context arguments and adapted to a method handle taking the values of its numeric and boolean
+ * parameters as doubles, so that cells are evaluated without boxing unless the function's own
+ * signature requires it. The first value parameter of a call receives the output of the previous
+ * step, if any; the others read the storage of the dependency they name at each cell, as the
+ * inputs of compiled expressions do. A nodata input, or a step returning null or NaN, makes the
+ * cell nodata and the rest of the chain is skipped for it; cells outside the extent mask, if any,
+ * are nodata without evaluation. The cells are split into chunks along the fill curve of the
+ * target buffer and the chunks are mapped on a fork/join pool sized by the scope's parallelism,
+ * each writing its own range of the buffer.
  */
 public class ScalarMapper {
 
+  /** Cells staged before each bulk write to the buffer. */
+  private static final int BLOCK_SIZE = 4096;
+
+  /** Minimum number of cells in a parallel chunk, so that small states are not overpartitioned. */
+  private static final long MIN_CHUNK_SIZE = 4 * BLOCK_SIZE;
+
+  /** Chunks per worker, to balance the load when the cost per cell is uneven. */
+  private static final int CHUNKS_PER_WORKER = 4;
+
   private final DigitalTwin digitalTwin;
+  private final ComponentRegistry componentRegistry;
   private final ServiceContextScope scope;
   private final Observation targetObservation;
   private final Class<? extends Storage> storageClass;
+  private final List<Step> steps = new ArrayList<>();
+
+  private static final MethodHandle AS_BOOLEAN;
+  private static final MethodHandle FROM_BOOLEAN;
+  private static final MethodHandle UNBOX;
+
+  static {
+    try {
+      var lookup = MethodHandles.lookup();
+      AS_BOOLEAN =
+          lookup.findStatic(
+              ScalarMapper.class,
+              "asBoolean",
+              MethodType.methodType(boolean.class, double.class));
+      FROM_BOOLEAN =
+          lookup.findStatic(
+              ScalarMapper.class,
+              "fromBoolean",
+              MethodType.methodType(double.class, boolean.class));
+      UNBOX =
+          lookup.findStatic(
+              ScalarMapper.class,
+              "unbox",
+              MethodType.methodType(double.class, ServiceCall.class, Object.class));
+    } catch (ReflectiveOperationException e) {
+      throw new KlabInternalErrorException(e);
+    }
+  }
+
+  /** A step of the chain, with the observations providing its inputs in slot order. */
+  sealed interface Step {
+    List<Observation> inputs();
+  }
 
-  public ScalarMapper(Observation target, DigitalTwin digitalTwin, ServiceContextScope scope) {
+  /**
+   * One scalar call bound to its context arguments. The kernel takes the values of the numeric and
+   * boolean parameters of the call in a double array and returns the result as a double. A null
+   * input is the output of the previous step.
+   */
+  record CallStep(ServiceCall call, MethodHandle kernel, List<Observation> inputs)
+      implements Step {}
+
+  /** A compiled expression with the observations providing its inputs, in slot order. */
+  record ExpressionStep(CompiledExpression expression, List<Observation> inputs)
+      implements Step {}
+
+  public ScalarMapper(
+      Observation target,
+      DigitalTwin digitalTwin,
+      ComponentRegistry componentRegistry,
+      ServiceContextScope scope) {
 
     this.targetObservation = target;
     this.digitalTwin = digitalTwin;
+    this.componentRegistry = componentRegistry;
     this.scope = scope;
 
     // observation should admit scalar values
@@ -42,38 +133,452 @@ public class ScalarMapper {
         };
   }
 
-  public void add(ServiceCall serviceCall, Extensions.FunctionDescriptor descriptor) {
+  /**
+   * Add a scalar call to the chain, binding its context arguments.
+   *
+   * @param serviceCall
+   * @param descriptor
+   * @param dependencies the observations available to the call, by name
+   * @return false if the call cannot be compiled
+   */
+  public boolean add(
+      ServiceCall serviceCall,
+      Extensions.FunctionDescriptor descriptor,
+      Map<String, Observation> dependencies) {
+
+    var implementation = componentRegistry.implementation(descriptor);
+    if (implementation == null || implementation.method == null) {
+      scope.error("Scalar function " + serviceCall.getUrn() + " has no method implementation");
+      return false;
+    }
+
+    var method = implementation.method;
+    var arguments =
+        ComponentRegistry.matchArguments(
+            method,
+            null,
+            targetObservation.getGeometry(),
+            null,
+            targetObservation,
+            targetObservation.getObservable(),
+            null,
+            serviceCall.getParameters(),
+            serviceCall,
+            null,
+            null,
+            null,
+            null,
+            scope,
+            true);
+    if (arguments == null) {
+      return false;
+    }
+
+    // bound to its instance by the component registry
+    if (implementation.handle == null) {
+      scope.error("Scalar function " + serviceCall.getUrn() + " cannot be bound for invocation");
+      return false;
+    }
+    if (method.getReturnType() == void.class) {
+      scope.error("Scalar function " + serviceCall.getUrn() + " does not return a value");
+      return false;
+    }
 
-    // check out the expected data value vs. the observation
+    var parameters = method.getParameters();
+    var valueSlots = new ArrayList<Integer>();
+    var names = new ArrayList<String>();
+    var imports = descriptor.serviceInfo.listImports();
+    for (int i = 0; i < parameters.length; i++) {
+      if (isValueType(parameters[i].getType())) {
+        // the imports are declared in the order of the value parameters they feed
+        int input = valueSlots.size() - (steps.isEmpty() ? 0 : 1);
+        valueSlots.add(i);
+        names.add(
+            parameters[i].isNamePresent()
+                ? parameters[i].getName()
+                : (input >= 0 && input < imports.size() ? imports.get(input).getName() : null));
+      }
+    }
+
+    // the first value follows the chain, the others come from the dependencies they name
+    var inputs = new ArrayList<Observation>();
+    try {
+      for (var input :
+          bindInputs(names, serviceCall.getParameters(), dependencies.keySet(), !steps.isEmpty())) {
+        inputs.add(input == null ? null : dependencies.get(input));
+      }
+    } catch (KlabValidationException e) {
+      scope.error("Scalar function " + serviceCall.getUrn() + " " + e.getMessage());
+      return false;
+    }
 
-    // if needed, adjust the storage class
+    MethodHandle kernel;
+    try {
+      kernel = kernel(implementation.handle, arguments, valueSlots, serviceCall);
+    } catch (RuntimeException e) {
+      // e.g. a numeric parameter of a type that a double cannot be converted to
+      scope.error("Scalar function " + serviceCall.getUrn() + " cannot be adapted: " + e);
+      return false;
+    }
+    steps.add(new CallStep(serviceCall, kernel, inputs));
+
+    return true;
+  }
+
+  /**
+   * Choose the dependency providing each value parameter of a call. A parameter reads the
+   * dependency named by the call argument with its name, if any, or else the dependency with its
+   * name. A parameter that names none can only take the one dependency that no other parameter
+   * names, and only if it is the only such parameter.
+   *
+   * @param names the name of each value parameter, null if unknown
+   * @param arguments the arguments of the call
+   * @param dependencies the names of the available dependencies
+   * @param chained if true, the first value parameter takes the output of the previous step
+   * @return the name of the dependency for each value parameter, null for the chained one
+   * @throws KlabValidationException if a parameter cannot be bound without ambiguity
+   */
+  static List<String> bindInputs(
+      List<String> names,
+      Map<String, Object> arguments,
+      Collection<String> dependencies,
+      boolean chained) {
+
+    var ret = new ArrayList<String>();
+    var unbound = new ArrayList<Integer>();
+    var available = new LinkedHashSet<>(dependencies);
+    for (int i = 0; i < names.size(); i++) {
+      var name = names.get(i);
+      var argument = name == null ? null : arguments.get(name);
+      if (i == 0 && chained) {
+        ret.add(null);
+      } else if (argument instanceof String dependency && dependencies.contains(dependency)) {
+        ret.add(dependency);
+      } else if (name != null && dependencies.contains(name)) {
+        ret.add(name);
+      } else {
+        ret.add(null);
+        unbound.add(i);
+      }
+    }
+    ret.forEach(available::remove);
+
+    if (unbound.size() == 1 && available.size() == 1) {
+      ret.set(unbound.getFirst(), available.getFirst());
+    } else if (!unbound.isEmpty()) {
+      var parameter = names.get(unbound.getFirst());
+      throw new KlabValidationException(
+          (available.isEmpty() ? "has no input for parameter " : "cannot choose the input for ")
+              + (parameter == null ? "#" + (unbound.getFirst() + 1) : parameter)
+              + (available.isEmpty() ? "" : " among " + available));
+    }
+
+    return ret;
+  }
+
+  /**
+   * Bind the context arguments of a call and adapt the value parameters and the return value to
+   * doubles, spreading the values over an array.
+   */
+  static MethodHandle kernel(
+      MethodHandle handle, List<Object> arguments, List<Integer> valueSlots, ServiceCall call) {
+
+    var ret = handle;
+    // bind from the last, so that the positions of the others don't change
+    for (int i = arguments.size() - 1; i >= 0; i--) {
+      if (!valueSlots.contains(i)) {
+        ret = MethodHandles.insertArguments(ret, i, arguments.get(i));
+      }
+    }
+
+    var filters = new MethodHandle[valueSlots.size()];
+    for (int i = 0; i < filters.length; i++) {
+      filters[i] = fromDouble(ret.type().parameterType(i));
+    }
+    ret = MethodHandles.filterArguments(ret, 0, filters);
+
+    var returnType = ret.type().returnType();
+    MethodHandle result;
+    if (returnType == boolean.class) {
+      result = FROM_BOOLEAN;
+    } else if (returnType.isPrimitive()) {
+      result =
+          MethodHandles.explicitCastArguments(
+              MethodHandles.identity(returnType), MethodType.methodType(double.class, returnType));
+    } else {
+      result =
+          MethodHandles.insertArguments(UNBOX, 0, call)
+              .asType(MethodType.methodType(double.class, returnType));
+    }
+    ret = MethodHandles.filterReturnValue(ret, result);
+
+    return ret.asSpreader(double[].class, valueSlots.size())
+        .asType(MethodType.methodType(double.class, double[].class));
+  }
+
+  /** Convert a double to the passed parameter type, boxing only if the parameter is boxed. */
+  private static MethodHandle fromDouble(Class<?> type) {
+    if (type == double.class) {
+      return null;
+    }
+    var primitive = MethodType.methodType(type).unwrap().returnType();
+    MethodHandle ret;
+    if (primitive == boolean.class) {
+      ret = AS_BOOLEAN;
+    } else if (primitive.isPrimitive()) {
+      ret =
+          MethodHandles.explicitCastArguments(
+              MethodHandles.identity(double.class), MethodType.methodType(primitive, double.class));
+    } else {
+      // Number or Object: passed as a Double
+      ret = MethodHandles.identity(double.class);
+    }
+    return ret.asType(MethodType.methodType(type, double.class));
+  }
 
-    System.out.println("ADD CALL " + serviceCall);
+  /**
+   * Add a compiled expression to the chain.
+   *
+   * @param expression
+   * @param dependencies the observations available to the expression, by identifier
+   * @return false if an input of the expression is not among the dependencies
+   */
+  public boolean add(CompiledExpression expression, Map<String, Observation> dependencies) {
+    var inputs = new ArrayList<Observation>();
+    for (var identifier : expression.getInputs()) {
+      var input = dependencies.get(identifier);
+      if (input == null) {
+        scope.error("Expression " + expression + " uses unknown quality " + identifier);
+        return false;
+      }
+      inputs.add(input);
+    }
+    steps.add(new ExpressionStep(expression, inputs));
+    return true;
   }
 
   public boolean run() {
 
+    if (steps.isEmpty()) {
+      return true;
+    }
+
     // determine storage
     var storage = digitalTwin.getStateStorage().getOrCreateStorage(targetObservation, storageClass);
 
-    // call storage.map() with the correct executor and configuration
-    // TODO masking
-    switch (storage) {
-      case DoubleStorage doubleStorage -> {
-//        doubleStorage.map(getDoubleMapper());
+    // TODO keyed storage has no buffers yet
+    if (!(storage instanceof AbstractStorage<?> abstractStorage)
+        || storage instanceof KeyedStorage) {
+      scope.error(
+          "Scalar mapping to "
+              + storageClass.getSimpleName()
+              + " is not supported in "
+              + targetObservation);
+      return false;
+    }
+
+    var geometry = targetObservation.getGeometry();
+    long size = geometry.size();
+    // recomputing, e.g. at a new time step, refills the same buffer
+    var buffer = abstractStorage.refill(Data.FillCurve.DN_LINEAR, geometry.getExtentOffsets());
+    var mask = getMask(geometry);
+    var readers = getReaders();
+    if (readers == null) {
+      return false;
+    }
+
+    int parallelism = Math.max(1, scope.getParallelism().getAsInt());
+    long chunkSize =
+        Math.max(
+            MIN_CHUNK_SIZE,
+            (size + (long) parallelism * CHUNKS_PER_WORKER - 1)
+                / ((long) parallelism * CHUNKS_PER_WORKER));
+    // keep chunk boundaries aligned to the staging blocks
+    chunkSize = (chunkSize + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+
+    var chunks = new ArrayList<Callable<Boolean>>();
+    for (long from = 0; from < size; from += chunkSize) {
+      final long start = from;
+      final long length = Math.min(chunkSize, size - from);
+      chunks.add(() -> map(buffer, mask, readers, start, length));
+    }
+
+    try {
+      if (parallelism == 1 || chunks.size() == 1) {
+        for (var chunk : chunks) {
+          chunk.call();
+        }
+      } else {
+        try (var pool = new ForkJoinPool(parallelism)) {
+          for (var result : pool.invokeAll(chunks)) {
+            result.get();
+          }
+        }
       }
-      case FloatStorage doubleStorage -> {}
-      case BooleanStorage booleanStorage -> {}
-      case KeyedStorage keyedStorage -> {}
-      default ->
-          throw new KlabInternalErrorException("unexpected storage type in ScalarMapper run()");
+    } catch (ExecutionException e) {
+      scope.error(e.getCause());
+      return false;
+    } catch (Exception e) {
+      scope.error(e);
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Evaluate the kernel over one chunk of the buffer and write the results in bulk. Chunks are
+   * disjoint, so each has its own filler and argument arrays and no synchronization is needed.
+   */
+  private boolean map(
+      AbstractStorage<?>.AbstractBuffer buffer,
+      LongPredicate mask,
+      LongToDoubleFunction[][] readers,
+      long from,
+      long length) {
+
+    var kernel = new Kernel(steps.toArray(new Step[0]), readers);
+    var filler = buffer.filler(Data.DoubleFiller.class, from, length);
+    var block = new double[(int) Math.min(BLOCK_SIZE, length)];
+
+    for (long done = 0; done < length; done += block.length) {
+      int n = (int) Math.min(block.length, length - done);
+      long offset = from + done;
+      for (int i = 0; i < n; i++) {
+        block[i] =
+            mask == null || mask.test(offset + i) ? kernel.evaluate(offset + i) : Double.NaN;
+      }
+      filler.add(block, 0, n);
     }
 
     return true;
   }
 
-//  private LongStorage.OffsetToDoubleFunction getDoubleMapper() {
-//    // TODO
-//    return null;
-//  }
+  /**
+   * Bind the inputs of each step to the storage of its dependencies, which must have been computed
+   * by now.
+   *
+   * @return the readers for each step and input, null for the output of the previous step, or null
+   *     if an input has no data
+   */
+  private LongToDoubleFunction[][] getReaders() {
+    var ret = new LongToDoubleFunction[steps.size()][];
+    for (int s = 0; s < steps.size(); s++) {
+      var step = steps.get(s);
+      ret[s] = new LongToDoubleFunction[step.inputs().size()];
+      for (int i = 0; i < ret[s].length; i++) {
+        var input = step.inputs().get(i);
+        if (input == null) {
+          continue;
+        }
+        var storage = digitalTwin.getStateStorage().getExistingStorage(input, Storage.class);
+        if (!(storage instanceof AbstractStorage<?> abstractStorage)) {
+          scope.error(
+              "No data available for "
+                  + input
+                  + " in "
+                  + switch (step) {
+                    case CallStep call -> "call to " + call.call().getUrn();
+                    case ExpressionStep expression -> "expression " + expression.expression();
+                  });
+          return null;
+        }
+        ret[s][i] = abstractStorage.reader();
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * The mask of the geometry, if any. Only used when a single extent varies, so that the extent
+   * offset coincides with the position along the linear fill curve of the buffer.
+   */
+  private LongPredicate getMask(Geometry geometry) {
+    var scale = geometry instanceof Scale s ? s : Scale.create(geometry);
+    var varying = scale.getExtents().stream().filter(e -> e.size() > 1).toList();
+    if (varying.size() == 1
+        && varying.getFirst() instanceof ExtentImpl<?> extent
+        && extent.getMask() != null) {
+      return extent.getMask()::covers;
+    }
+    return null;
+  }
+
+  /**
+   * The fused steps with private input slots, used by one thread. The readers are those of {@link
+   * #getReaders()}, by step and input.
+   */
+  static final class Kernel {
+
+    private final Step[] chain;
+    private final double[][] inputs;
+    private final LongToDoubleFunction[][] readers;
+
+    Kernel(Step[] chain, LongToDoubleFunction[][] readers) {
+      this.chain = chain;
+      this.readers = readers;
+      this.inputs = new double[chain.length][];
+      for (int i = 0; i < chain.length; i++) {
+        inputs[i] = new double[chain[i].inputs().size()];
+      }
+    }
+
+    double evaluate(long offset) {
+      double value = Double.NaN;
+      for (int s = 0; s < chain.length; s++) {
+        switch (chain[s]) {
+          case CallStep step -> {
+            var slots = inputs[s];
+            for (int i = 0; i < slots.length; i++) {
+              slots[i] = readers[s][i] == null ? value : readers[s][i].applyAsDouble(offset);
+              if (Double.isNaN(slots[i])) {
+                // nodata input: the function is not called
+                return Double.NaN;
+              }
+            }
+            try {
+              value = (double) step.kernel().invokeExact(slots);
+            } catch (Throwable t) {
+              throw new KlabInternalErrorException(t);
+            }
+          }
+          case ExpressionStep step -> {
+            var slots = inputs[s];
+            for (int i = 0; i < slots.length; i++) {
+              slots[i] = readers[s][i].applyAsDouble(offset);
+            }
+            value = step.expression().evaluate(slots);
+          }
+        }
+        if (Double.isNaN(value)) {
+          // nodata: the rest of the chain is not evaluated
+          break;
+        }
+      }
+      return value;
+    }
+  }
+
+  private static boolean isValueType(Class<?> type) {
+    return type.isPrimitive() || Number.class.isAssignableFrom(type) || type == Boolean.class;
+  }
+
+  private static boolean asBoolean(double value) {
+    return value != 0;
+  }
+
+  private static double fromBoolean(boolean value) {
+    return value ? 1 : 0;
+  }
+
+  private static double unbox(ServiceCall call, Object value) {
+    return switch (value) {
+      case null -> Double.NaN;
+      case Number number -> number.doubleValue();
+      case Boolean bool -> bool ? 1 : 0;
+      default ->
+          throw new KlabIllegalStateException(
+              "scalar function " + call.getUrn() + " returned a non-scalar value");
+    };
+  }
 }
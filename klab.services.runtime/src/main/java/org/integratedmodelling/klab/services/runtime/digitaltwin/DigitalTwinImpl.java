@@ -9,6 +9,7 @@ import org.integratedmodelling.klab.api.data.Storage;
 import org.integratedmodelling.klab.api.digitaltwin.DigitalTwin;
 import org.integratedmodelling.klab.api.digitaltwin.Scheduler;
 import org.integratedmodelling.klab.api.digitaltwin.StateStorage;
+import org.integratedmodelling.klab.api.geometry.Geometry;
 import org.integratedmodelling.klab.api.knowledge.SemanticType;
 import org.integratedmodelling.klab.api.knowledge.observation.Observation;
 import org.integratedmodelling.klab.api.provenance.Provenance;
@@ -31,8 +32,11 @@ import java.util.concurrent.*;
 
 public class DigitalTwinImpl implements DigitalTwin {
 
+  /** Number of values staged before each bulk write to a storage buffer during ingestion. */
+  private static final int INGESTION_CHUNK_SIZE = 4096;
+
   private final KnowledgeGraph knowledgeGraph;
-  private final StateStorage stateStorage;
+  private final StateStorageImpl stateStorage;
   private final ContextScope rootScope;
   private final Scheduler scheduler;
 
@@ -61,6 +65,11 @@ public class DigitalTwinImpl implements DigitalTwin {
 
   @Override
   public boolean ingest(Data data, Observation target, ContextScope scope) {
+    return ingest(data, target, null, scope);
+  }
+
+  @Override
+  public boolean ingest(Data data, Observation target, Geometry tile, ContextScope scope) {
 
     if (target.getObservable().is(SemanticType.COUNTABLE)) {
       // scope contextualized to the collective observation
@@ -98,7 +107,9 @@ public class DigitalTwinImpl implements DigitalTwin {
 
     if (data.hasStates()) {
 
-      // TODO negotiate any partial fill strategy from parallelized access to the storage
+      // a tile gets its own buffer located by the tile offsets; the data geometry, which comes
+      // through its encoded form, does not carry them
+      var extent = tile == null ? data.geometry() : tile;
       var storage =
           scope.getDigitalTwin().getStateStorage().getOrCreateStorage(target, Storage.class);
 
@@ -111,10 +122,15 @@ public class DigitalTwinImpl implements DigitalTwin {
                 .promoteStorage(target, storage, DoubleStorage.class);
         var buffer =
             doubleStorage.buffer(
-                data.geometry().size(), data.fillCurve(), data.geometry().getExtentOffsets());
+                extent.size(), data.fillCurve(), extent.getExtentOffsets());
         var filler = buffer.filler(Data.DoubleFiller.class);
+        var chunk = new double[INGESTION_CHUNK_SIZE];
         while (doubleData.hasNext()) {
-          filler.add(doubleData.nextDouble());
+          int n = 0;
+          while (n < chunk.length && doubleData.hasNext()) {
+            chunk[n++] = doubleData.nextDouble();
+          }
+          filler.add(chunk, 0, n);
         }
         return true;
       } else if (data instanceof LongDataImpl longData) {
@@ -125,10 +141,15 @@ public class DigitalTwinImpl implements DigitalTwin {
                 .promoteStorage(target, storage, LongStorage.class);
         var buffer =
             longStorage.buffer(
-                data.geometry().size(), data.fillCurve(), data.geometry().getExtentOffsets());
+                extent.size(), data.fillCurve(), extent.getExtentOffsets());
         var filler = buffer.filler(Data.LongFiller.class);
+        var chunk = new long[INGESTION_CHUNK_SIZE];
         while (longData.hasNext()) {
-          filler.add(longData.nextLong());
+          int n = 0;
+          while (n < chunk.length && longData.hasNext()) {
+            chunk[n++] = longData.nextLong();
+          }
+          filler.add(chunk, 0, n);
         }
       } else if (data instanceof IntDataImpl intData) {
         var key = intData.getDataKey();
@@ -140,10 +161,15 @@ public class DigitalTwinImpl implements DigitalTwin {
                   .promoteStorage(target, storage, IntStorage.class);
           var buffer =
               intStorage.buffer(
-                  data.geometry().size(), data.fillCurve(), data.geometry().getExtentOffsets());
+                  extent.size(), data.fillCurve(), extent.getExtentOffsets());
           var filler = buffer.filler(Data.IntFiller.class);
+          var chunk = new int[INGESTION_CHUNK_SIZE];
           while (intData.hasNext()) {
-            filler.add(intData.nextInt());
+            int n = 0;
+            while (n < chunk.length && intData.hasNext()) {
+              chunk[n++] = intData.nextInt();
+            }
+            filler.add(chunk, 0, n);
           }
           return true;
         } else {
@@ -169,6 +195,6 @@ public class DigitalTwinImpl implements DigitalTwin {
   @Override
   public void dispose() {
     this.knowledgeGraph.deleteContext();
-    this.stateStorage.clear();
+    this.stateStorage.close();
   }
 }
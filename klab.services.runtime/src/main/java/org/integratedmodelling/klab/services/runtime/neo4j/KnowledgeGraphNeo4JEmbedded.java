@@ -37,12 +37,28 @@ public class KnowledgeGraphNeo4JEmbedded extends KnowledgeGraphNeo4j implements
     this.online = parent.online;
     this.scope = scope;
     this.driver = parent.driver;
+    this.keys = parent.keys;
+    this.geometryIds = parent.geometryIds;
+    this.sessions = parent.sessions;
   }
 
   /**
    * @param directory
    */
   public KnowledgeGraphNeo4JEmbedded(Path directory) {
+    this(directory, 0);
+  }
+
+  /**
+   * @param directory
+   * @param maxSessions the maximum number of concurrent queries, the number of cores if not
+   *     positive
+   */
+  public KnowledgeGraphNeo4JEmbedded(Path directory, int maxSessions) {
+
+    if (maxSessions > 0) {
+      this.sessions = new SessionPool(maxSessions);
+    }
 
     /*
      * TODO tie the performance parameters to runtime configuration
@@ -62,6 +78,8 @@ public class KnowledgeGraphNeo4JEmbedded extends KnowledgeGraphNeo4j implements
 
       // TODO this could just reimplement query() to use the DB directly and not expose the
       //  connectors, losing debugging access outside the application
+      // the driver keeps its default connection pool: the session pool only bounds auto-commit
+      // queries, and operation transactions each hold a connection for their whole duration
       this.driver = GraphDatabase.driver("bolt://localhost:7687");
 
       this.driver.verifyConnectivity();
@@ -85,20 +103,12 @@ public class KnowledgeGraphNeo4JEmbedded extends KnowledgeGraphNeo4j implements
     }
   }
 
+  /**
+   * Create or upgrade the constraints and indexes that back the lookups in the queries. Runs
+   * directly on the embedded database, as schema changes must not share transactions with data.
+   */
   private void configureDatabase() {
-
-    // TODO all the needed indices
-
-    //        IndexDefinition usernamesIndex;
-    //        try ( Transaction tx = graphDb.beginTx() )
-    //        {
-    //            Schema schema = tx.schema();
-    //            usernamesIndex = schema.indexFor(Label.label( "User" ) )
-    //                                   .on( "username" )
-    //                                   .withName( "usernames" )
-    //                                   .create();
-    //            tx.commit();
-    //        }
+    KnowledgeGraphSchema.apply(graphDb);
   }
 
   @Override
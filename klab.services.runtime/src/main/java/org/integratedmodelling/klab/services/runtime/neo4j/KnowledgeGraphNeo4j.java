@@ -1,13 +1,20 @@
 package org.integratedmodelling.klab.services.runtime.neo4j;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import java.io.IOException;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.integratedmodelling.common.knowledge.GeometryRepository;
 import org.integratedmodelling.common.logging.Logging;
 import org.integratedmodelling.common.runtime.ActuatorImpl;
 import org.integratedmodelling.common.services.client.resolver.DataflowEncoder;
+import org.integratedmodelling.klab.api.collections.Pair;
 import org.integratedmodelling.klab.api.data.RuntimeAsset;
 import org.integratedmodelling.klab.api.data.Storage;
 import org.integratedmodelling.klab.api.digitaltwin.DigitalTwin;
@@ -41,6 +48,7 @@ import org.integratedmodelling.klab.api.utils.Utils;
 import org.integratedmodelling.klab.runtime.scale.space.ShapeImpl;
 import org.integratedmodelling.klab.runtime.storage.AbstractStorage;
 import org.neo4j.driver.*;
+import org.ojalgo.concurrent.Parallelism;
 
 /**
  * TODO check spatial queries:
@@ -59,6 +67,18 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
   private RuntimeAsset contextNode;
   private RuntimeAsset dataflowNode;
   private RuntimeAsset provenanceNode;
+  protected KeyAllocator keys = new KeyAllocator();
+  protected SessionPool sessions = new SessionPool(Parallelism.CORES.getAsInt());
+
+  protected static int MAX_CACHED_GEOMETRIES = 1024;
+
+  /**
+   * IDs of the committed geometry nodes by content hash of their encoding, so that assets sharing a
+   * geometry are linked to it by ID without sending or comparing the definition. Entries are only
+   * added after commit and the cache is invalidated whenever nodes are deleted.
+   */
+  protected Cache<String, Long> geometryIds =
+      CacheBuilder.newBuilder().maximumSize(MAX_CACHED_GEOMETRIES).build();
 
   // all predefined Cypher queries
   interface Queries {
@@ -92,6 +112,40 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
               + "\t(ctx)<-[:CREATED]-(creation),\n"
               + "(prov)-[:HAS_CHILD]->(creation)"
         };
+    // lock the node before reading the high-water mark so that concurrent reservations serialize
+    String RESERVE_KEYS =
+        "MERGE (n:Statistics) ON CREATE SET n.nextId = 0 SET n._lock = true WITH n SET n.nextId ="
+            + " n.nextId + $blockSize, n.lastActivity = $lastActivity REMOVE n._lock RETURN"
+            + " n.nextId";
+    String LINK_GEOMETRY =
+        "UNWIND $batch AS row MATCH (n:{assetLabel} {id: row.assetId})"
+            + " WHERE NOT (n)-[:HAS_GEOMETRY]->(:Geometry)"
+            + " MATCH (g:Geometry {id: row.geometryId})"
+            + " CREATE (n)-[r:HAS_GEOMETRY]->(g) SET r = row.properties";
+    String MERGE_GEOMETRY =
+        "UNWIND $batch AS row MATCH (n:{assetLabel} {id: row.assetId})"
+            + " WHERE NOT (n)-[:HAS_GEOMETRY]->(:Geometry)"
+            + " MERGE (g:Geometry {hash: row.hash})"
+            + " ON CREATE SET g.id = row.id, g.size = row.size, g.definition = row.definition"
+            + " CREATE (n)-[r:HAS_GEOMETRY]->(g) SET r = row.properties"
+            + " RETURN row.hash AS hash, g.id AS id";
+    // appended to queries matching observations as (o) to return their geometry in the same row
+    String OBSERVATION_PROJECTION =
+        " OPTIONAL MATCH (o)-[:HAS_GEOMETRY]->(g:Geometry) RETURN o, g.definition AS geometry";
+    String GET_RESOLUTION =
+        "MATCH (r:Resolution {key: $key}) RETURN r.targetId AS targetId, r.dataflow AS dataflow";
+    String PUT_RESOLUTION =
+        "MERGE (r:Resolution {key: $key}) SET r.targetId = $targetId, r.dataflow = $dataflow,"
+            + " r.version = $version, r.created = $created";
+    // the knowledge version lives on the schema node, so that it survives clearing resolutions
+    String GET_KNOWLEDGE_VERSION =
+        "MATCH (s:Schema) RETURN s.knowledgeVersion AS version, s.resourcesContent AS content";
+    String NEXT_KNOWLEDGE_VERSION =
+        "MERGE (s:Schema) WITH s, coalesce(s.knowledgeVersion, 0) + 1 AS next"
+            + " SET s.knowledgeVersion = CASE WHEN next > $minimum THEN next ELSE $minimum END"
+            + " RETURN s.knowledgeVersion AS version";
+    String SET_RESOURCES_CONTENT = "MERGE (s:Schema) SET s.resourcesContent = $content";
+    String CLEAR_RESOLUTIONS = "MATCH (r:Resolution) DELETE r";
     String GET_AGENT_BY_NAME =
         "match (ctx:Context {id: $contextId})-->(prov:Provenance)-[:HAS_AGENT]->"
             + "(a:Agent {name: $agentName}) RETURN a";
@@ -205,7 +259,9 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
 
     private ActivityImpl activity;
     private Agent agent;
+    private Session session;
     private Transaction transaction;
+    private WriteBatch batch;
     private Scope.Status outcome;
     private Throwable exception;
     private Object[] assets;
@@ -233,6 +289,7 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
 
       ret.agent = agent;
       ret.transaction = transaction;
+      ret.batch = batch;
       ret.parent = this;
 
       if (activityData != null) {
@@ -264,7 +321,7 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
 
     @Override
     public long store(RuntimeAsset asset, Object... additionalProperties) {
-      return KnowledgeGraphNeo4j.this.store(transaction, asset, scope, additionalProperties);
+      return KnowledgeGraphNeo4j.this.store(batch, asset, additionalProperties);
     }
 
     @Override
@@ -273,8 +330,7 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
         RuntimeAsset destination,
         DigitalTwin.Relationship relationship,
         Object... additionalProperties) {
-      KnowledgeGraphNeo4j.this.link(
-          transaction, source, destination, relationship, scope, additionalProperties);
+      batch.link(source, destination, relationship, asParameters(null, additionalProperties));
     }
 
     @Override
@@ -289,8 +345,7 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
             case Observation ignored -> contextNode;
             default -> throw new KlabIllegalStateException("Unexpected value: " + destination);
           };
-      KnowledgeGraphNeo4j.this.link(
-          transaction, rootNode, destination, relationship, scope, additionalProperties);
+      batch.link(rootNode, destination, relationship, asParameters(null, additionalProperties));
     }
 
     @Override
@@ -376,35 +431,48 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
 
       if (parent == null) {
 
-        if (outcome == null) {
-          // Log an internal failure (no success or failure, should not happen)
-          Logging.INSTANCE.error("Internal error: activity did not properly finish: " + activity);
-          scope.send(
-              Message.MessageClass.ObservationLifecycle,
-              Message.MessageType.ActivityAborted,
-              activity);
-          transaction.rollback();
-        } else if (outcome == Scope.Status.FINISHED) {
-          scope.send(
-              Message.MessageClass.ObservationLifecycle,
-              Message.MessageType.ActivityFinished,
-              activity);
-          if (dataflow != null) {
-            // TODO record causal links
-            storeCausalLinks(dataflow);
+        try {
+          // queue the updates of all observations and activities w.r.t. the ones contained here
+          updateAssets();
+
+          if (outcome == Scope.Status.FINISHED) {
+            scope.send(
+                Message.MessageClass.ObservationLifecycle,
+                Message.MessageType.ActivityFinished,
+                activity);
+            if (dataflow != null) {
+              // TODO record causal links
+              storeCausalLinks(dataflow);
+            }
+            if (batch.flush(transaction, false)) {
+              transaction.commit();
+              batch.publishGeometries();
+            } else {
+              transaction.rollback();
+            }
+          } else {
+            if (outcome == null) {
+              // Log an internal failure (no success or failure, should not happen)
+              Logging.INSTANCE.error(
+                  "Internal error: activity did not properly finish: " + activity);
+            }
+            scope.send(
+                Message.MessageClass.ObservationLifecycle,
+                Message.MessageType.ActivityAborted,
+                activity);
+            transaction.rollback();
+            // the activities are recorded with their outcome in any case, in a new transaction
+            // on the same session so that failing operations do not take a second connection
+            try (var recordingTransaction = session.beginTransaction()) {
+              if (batch.flush(recordingTransaction, true)) {
+                recordingTransaction.commit();
+              }
+            }
           }
-          transaction.commit();
-        } else if (outcome == Scope.Status.ABORTED) {
-          scope.send(
-              Message.MessageClass.ObservationLifecycle,
-              Message.MessageType.ActivityAborted,
-              activity);
-          transaction.rollback();
+        } finally {
+          session.close();
+          sessions.transactionClosed();
         }
-
-        // npw that transactions are done, update all observations and activities w.r.t. the ones
-        // contained here
-        updateAssets();
       }
     }
 
@@ -438,13 +506,13 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
           observation.setResolved(true);
           observation.setResolvedCoverage(coverage);
         }
-        update(observation, scope);
+        batch.update(observation);
         if (observation.getGeometry() != null) {
-          storeGeometry(observation.getGeometry(), observation);
+          storeGeometry(batch, observation.getGeometry(), observation);
         }
       }
 
-      update(this.activity, scope);
+      batch.update(this.activity);
     }
   }
 
@@ -515,23 +583,33 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
         ret.activity);
 
     // open transaction if we are the root operation. We only commit within it.
-    ret.transaction =
-        ret.parent == null
-            ?
-            // this open a new session per transaction. Probably expensive but safe as
-            // transactions can't co-occur within a session.
-            driver
-                .session()
-                .beginTransaction(TransactionConfig.builder().withTimeout(Duration.ZERO).build())
-            : ret.parent.transaction;
+    if (ret.parent == null) {
+      // this opens a new session per transaction, as transactions can't co-occur within a
+      // session. Mutations are buffered and written in it when the operation is closed.
+      ret.session = driver.session();
+      sessions.transactionOpened();
+      ret.transaction =
+          ret.session.beginTransaction(
+              TransactionConfig.builder().withTimeout(Duration.ZERO).build());
+      ret.batch = new WriteBatch();
+    } else {
+      ret.transaction = ret.parent.transaction;
+      ret.batch = ret.parent.batch;
+    }
 
     return ret;
   }
 
-  protected synchronized EagerResult query(
-      String query, Map<String, Object> parameters, Scope scope) {
+  /**
+   * Run a query in its own auto-commit transaction. The driver is thread-safe, so queries from
+   * different threads run concurrently, up to the size of the session pool.
+   */
+  protected EagerResult query(String query, Map<String, Object> parameters, Scope scope) {
     if (isOnline()) {
+      boolean acquired = false;
       try {
+        sessions.acquire();
+        acquired = true;
         //                System.out.printf("\nQUERY " + query + "\n     WITH " + parameters);
         return driver.executableQuery(query).withParameters(parameters).execute();
       } catch (Throwable t) {
@@ -540,16 +618,26 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
         } else {
           Logging.INSTANCE.error(t);
         }
+      } finally {
+        if (acquired) {
+          sessions.release();
+        }
       }
     }
     return null;
   }
 
-  protected synchronized Result query(
+  /**
+   * Run a query in a transaction, which may be shared by concurrent child operations and is not
+   * thread-safe, so only calls within the same transaction are serialized.
+   */
+  protected Result query(
       Transaction transaction, String query, Map<String, Object> parameters, Scope scope) {
     if (isOnline()) {
       try {
-        return transaction.run(query, parameters);
+        synchronized (transaction) {
+          return transaction.run(query, parameters);
+        }
       } catch (Throwable t) {
         if (scope != null) {
           scope.error(t.getMessage(), t);
@@ -654,9 +742,15 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
   @Override
   public void deleteContext() {
     query(Queries.REMOVE_CONTEXT, Map.of("contextId", scope.getId()), scope);
+    geometryIds.invalidateAll();
   }
 
   /**
+   * Turn the records in a query result into objects of the passed class, taking the node from the
+   * first field. Observations are complete only if the query ends with {@link
+   * Queries#OBSERVATION_PROJECTION}; otherwise their geometry is looked up with one query per
+   * record.
+   *
    * @param query
    * @param cls
    * @param <T>
@@ -665,6 +759,9 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
   protected <T> List<T> adapt(EagerResult query, Class<T> cls, Scope scope) {
 
     List<T> ret = new ArrayList<>();
+    // observables are resolved once per definition, as many records will share them
+    Map<String, Observable> observables = new HashMap<>();
+    Reasoner reasoner = null;
 
     for (var record : query.records()) {
 
@@ -694,23 +791,40 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
       } else if (Observation.class.isAssignableFrom(cls)) {
 
         var instance = new ObservationImpl();
-        var reasoner = scope.getService(Reasoner.class);
+        if (reasoner == null) {
+          reasoner = scope.getService(Reasoner.class);
+        }
+
+        var observable = node.get("observable").asString();
+        var resolved = observables.get(observable);
+        if (resolved == null) {
+          resolved = reasoner.resolveObservable(observable);
+          observables.put(observable, resolved);
+        }
 
         instance.setUrn(node.get("urn").asString());
         instance.setName(node.get("name").asString());
-        instance.setObservable(reasoner.resolveObservable(node.get("observable").asString()));
+        instance.setObservable(resolved);
         instance.setResolved(node.get("resolved").asBoolean());
         instance.setId(node.get("id").asLong());
 
-        var gResult =
-            query(
-                "MATCH (o:Observation)-[:HAS_GEOMETRY]->(g:Geometry) WHERE o.id"
-                    + " = $id RETURN g",
-                Map.of("id", node.get("id").asLong()),
-                scope);
+        if (record.containsKey("geometry")) {
+          var geometry = record.get("geometry");
+          if (!geometry.isNull()) {
+            instance.setGeometry(
+                GeometryRepository.INSTANCE.get(geometry.asString(), Geometry.class));
+          }
+        } else {
+          var gResult =
+              query(
+                  "MATCH (o:Observation)-[:HAS_GEOMETRY]->(g:Geometry) WHERE o.id"
+                      + " = $id RETURN g",
+                  Map.of("id", node.get("id").asLong()),
+                  scope);
 
-        if (gResult == null || !gResult.records().isEmpty()) {
-          instance.setGeometry(adapt(gResult, Geometry.class, scope).getFirst());
+          if (gResult == null || !gResult.records().isEmpty()) {
+            instance.setGeometry(adapt(gResult, Geometry.class, scope).getFirst());
+          }
         }
 
         ret.add((T) instance);
@@ -803,6 +917,7 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
     } else {
       query(Queries.REMOVE_CONTEXT, Map.of("contextId", scope.getId()), scope);
     }
+    geometryIds.invalidateAll();
   }
 
   @Override
@@ -810,11 +925,16 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
     var result =
         assetClass == RuntimeAsset.class
             ? query("MATCH (n {id: $id}) return n", Map.of("id", key), null)
-            : query(
-                "MATCH (n:{assetLabel} {id: $id}) return n"
-                    .replace("{assetLabel}", getLabel(assetClass)),
-                Map.of("id", key),
-                null);
+            : Observation.class.isAssignableFrom(assetClass)
+                ? query(
+                    "MATCH (o:Observation {id: $id})" + Queries.OBSERVATION_PROJECTION,
+                    Map.of("id", key),
+                    null)
+                : query(
+                    "MATCH (n:{assetLabel} {id: $id}) return n"
+                        .replace("{assetLabel}", getLabel(assetClass)),
+                    Map.of("id", key),
+                    null);
     var adapted = adapt(result, assetClass, scope);
     return adapted.isEmpty() ? null : adapted.getFirst();
   }
@@ -838,51 +958,42 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
     return ret;
   }
 
-  protected long store(
-      Transaction transaction, RuntimeAsset asset, Scope scope, Object... additionalProperties) {
+  /**
+   * Queue the creation of a node for the asset in the batch of an operation, along with its link
+   * to the geometry if it has one. The ID is assigned immediately.
+   */
+  private long store(WriteBatch batch, RuntimeAsset asset, Object... additionalProperties) {
 
-    var type = getLabel(asset);
     var props = asParameters(asset, additionalProperties);
     var ret = nextKey();
     props.put("id", ret);
-    var result =
-        query(
-            transaction,
-            Queries.CREATE_WITH_PROPERTIES.replace("{type}", type),
-            Map.of("properties", props),
-            scope);
-    if (result != null && result.hasNext()) {
+    batch.create(getLabel(asset), props);
+    setId(asset, ret);
 
-      setId(asset, ret);
-      var geometry =
-          switch (asset) {
-            case Observation observation -> observation.getGeometry();
-            case Actuator actuator -> actuator.getCoverage();
-            default -> null;
-          };
+    var geometry =
+        switch (asset) {
+          case Observation observation -> observation.getGeometry();
+          case Actuator actuator -> actuator.getCoverage();
+          default -> null;
+        };
 
-      if (geometry != null) {
-        storeGeometry(geometry, asset);
-      }
+    if (geometry != null) {
+      storeGeometry(batch, geometry, asset);
     }
 
     return ret;
   }
 
-  private void storeGeometry(Geometry geometry, RuntimeAsset asset) {
-
-    // TODO have a multi-cache ordered by size
-
-    // Must be called after update() and this may happen more than once, so we must check to avoid
-    // multiple relationships.
-    var exists =
-        query(
-            "MATCH (n:{assetLabel} {id: $assetId})-[:HAS_GEOMETRY]->(g:Geometry) RETURN g"
-                .replace("{assetLabel}", getLabel(asset)),
-            Map.of("assetId", getId(asset)),
-            scope);
+  /**
+   * Queue the link of the asset to the node for its geometry, shared with any other asset with the
+   * same geometry and created if needed. Must be called after update() and this may happen more
+   * than once, so the link is only created if the asset has no geometry yet. Geometry nodes are
+   * identified by the hash of their encoding: known ones are linked by ID, the others are merged on
+   * the (unique) hash and their IDs cached once the transaction commits.
+   */
+  private void storeGeometry(WriteBatch batch, Geometry geometry, RuntimeAsset asset) {
 
-    if (exists != null && !exists.records().isEmpty()) {
+    if (!batch.linkGeometry(asset)) {
       return;
     }
 
@@ -891,36 +1002,41 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
       geometry = Scale.create(geometry);
     }
 
+    // TODO more properties pertaining to the link (e.g. separate space/time coverages etc)
     double coverage = geometry instanceof Coverage cov ? cov.getCoverage() : 1.0;
 
-    // the idea is that looking up the size before the monster string can be faster.
-    var query = "MATCH (g:Geometry) WHERE g.size = $size AND g.definition = $definition RETURN g";
-    long id;
-    var result =
-        query(query, Map.of("size", geometry.size(), "definition", geometry.encode()), scope);
-    if (result == null || result.records().isEmpty()) {
-      id = nextKey();
-      // TODO more geometry data (bounding box, time boundaries etc.)
-      query(
-          "CREATE (g:Geometry {size: $size, definition: $definition, id: $id}) RETURN g",
-          Map.of("size", geometry.size(), "definition", geometry.encode(), "id", id),
-          scope);
+    var definition = geometry.encode();
+    var hash = Utils.Strings.hash(definition);
+    var geometryId = geometryIds.getIfPresent(hash);
+    var assetLabel = getLabel(asset);
+
+    if (geometryId != null) {
+      batch.relationship(
+          Queries.LINK_GEOMETRY.replace("{assetLabel}", assetLabel),
+          Map.of(
+              "assetId",
+              getId(asset),
+              "geometryId",
+              geometryId,
+              "properties",
+              Map.of("coverage", coverage)));
     } else {
-      id = result.records().getFirst().values().getFirst().get("id").asLong();
+      batch.geometry(
+          Queries.MERGE_GEOMETRY.replace("{assetLabel}", assetLabel),
+          Map.of(
+              "assetId",
+              getId(asset),
+              "hash",
+              hash,
+              "size",
+              geometry.size(),
+              "definition",
+              definition,
+              "id",
+              nextKey(),
+              "properties",
+              Map.of("coverage", coverage)));
     }
-
-    // TODO more properties pertaining to the link (e.g. separate space/time coverages etc)
-    var properties = Map.of("coverage", coverage);
-
-    // link it with the associated coverage
-    var rel =
-        query(
-            ("MATCH (n:{assetLabel}), (g:Geometry) WHERE n.id = $assetId AND g.id = $geometryId"
-                    + " CREATE (n)"
-                    + "-[r:HAS_GEOMETRY]->(g) SET r = $properties RETURN r")
-                .replace("{assetLabel}", getLabel(asset)),
-            Map.of("assetId", getId(asset), "geometryId", id, "properties", properties),
-            scope);
   }
 
   @Override
@@ -950,55 +1066,155 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
         scope);
   }
 
-  protected void link(
-      Transaction transaction,
-      RuntimeAsset source,
-      RuntimeAsset destination,
-      DigitalTwin.Relationship relationship,
-      Scope scope,
-      Object... additionalProperties) {
+  /**
+   * Mutations buffered by an operation and all its children, which share it along with the
+   * transaction. They are written in the transaction when the root operation is closed, as one
+   * parameterized UNWIND statement per node label, relationship pattern and update type, instead
+   * of a round trip per mutation. Nodes are created first, then relationships, then geometries not
+   * found in the cache, and updates last. Methods can be called concurrently by the operations
+   * sharing the batch.
+   */
+  private class WriteBatch {
+
+    private final Map<String, List<Map<String, Object>>> creations = new LinkedHashMap<>();
+    private final Map<String, List<Map<String, Object>>> relationships = new LinkedHashMap<>();
+    private final Map<String, List<Map<String, Object>>> geometries = new LinkedHashMap<>();
+    private final Map<String, List<Map<String, Object>>> updates = new LinkedHashMap<>();
+    private final Set<String> linkedGeometries = new HashSet<>();
+    private final Map<String, Long> mergedGeometries = new HashMap<>();
+
+    synchronized void create(String label, Map<String, Object> properties) {
+      creations
+          .computeIfAbsent(
+              "UNWIND $batch AS row CREATE (n:{type}) SET n = row"
+                  .replace("{type}", label),
+              k -> new ArrayList<>())
+          .add(properties);
+    }
 
-    // find out if the internal ID or what stored ID should be used
-    var sourceQuery = matchAsset(source, "n", "sourceId");
-    var targetQuery = matchAsset(destination, "c", "targetId");
-    var props = asParameters(null, additionalProperties);
-    var query =
-        ("MATCH (n:{fromLabel}), (c:{toLabel}) WHERE {sourceQuery} AND {targetQuery} CREATE (n)"
-                + "-[r:{relationshipLabel}]->(c) SET r = $properties RETURN r")
-            .replace("{sourceQuery}", sourceQuery)
-            .replace("{targetQuery}", targetQuery)
-            .replace("{relationshipLabel}", relationship.name())
-            .replace("{fromLabel}", getLabel(source))
-            .replace("{toLabel}", getLabel(destination));
+    void link(
+        RuntimeAsset source,
+        RuntimeAsset destination,
+        DigitalTwin.Relationship relationship,
+        Map<String, Object> properties) {
+      relationship(
+          ("UNWIND $batch AS row MATCH (n:{fromLabel} {{sourceKey}: row.source}),"
+                  + " (c:{toLabel} {{targetKey}: row.target})"
+                  + " CREATE (n)-[r:{relationshipLabel}]->(c) SET r = row.properties")
+              .replace("{sourceKey}", keyProperty(source))
+              .replace("{targetKey}", keyProperty(destination))
+              .replace("{relationshipLabel}", relationship.name())
+              .replace("{fromLabel}", getLabel(source))
+              .replace("{toLabel}", getLabel(destination)),
+          Map.of("source", getId(source), "target", getId(destination), "properties", properties));
+    }
 
-    query(
-        transaction,
-        query,
-        Map.of("sourceId", getId(source), "targetId", getId(destination), "properties", props),
-        scope);
+    /** True the first time it is called for the asset, so its geometry is linked only once. */
+    synchronized boolean linkGeometry(RuntimeAsset asset) {
+      return linkedGeometries.add(getLabel(asset) + ":" + getId(asset));
+    }
+
+    synchronized void relationship(String statement, Map<String, Object> row) {
+      relationships.computeIfAbsent(statement, k -> new ArrayList<>()).add(row);
+    }
+
+    /** A geometry merge statement, returning the hash and ID of the geometry node for each row. */
+    synchronized void geometry(String statement, Map<String, Object> row) {
+      geometries.computeIfAbsent(statement, k -> new ArrayList<>()).add(row);
+    }
+
+    /** Cache the IDs of the geometry nodes merged by the last flush, once it's been committed. */
+    synchronized void publishGeometries() {
+      geometryIds.putAll(mergedGeometries);
+      mergedGeometries.clear();
+    }
+
+    synchronized void update(RuntimeAsset asset) {
+      var props = asParameters(asset);
+      props.remove("id");
+      updates
+          .computeIfAbsent(
+              "UNWIND $batch AS row MATCH (n:{type} {id: row.id}) SET n += row.properties"
+                  .replace("{type}", getLabel(asset)),
+              k -> new ArrayList<>())
+          .add(
+              Map.of(
+                  "id",
+                  asset instanceof ActuatorImpl actuator ? actuator.getInternalId() : asset.getId(),
+                  "properties",
+                  props));
+    }
+
+    /**
+     * Write the buffered mutations in the transaction and clear the batch.
+     *
+     * @param transaction
+     * @param updatesOnly only write the updates, e.g. to record the outcome of activities after a
+     *     rollback
+     * @return false if any of the statements failed
+     */
+    synchronized boolean flush(Transaction transaction, boolean updatesOnly) {
+      mergedGeometries.clear();
+      try {
+        for (var phase :
+            updatesOnly
+                ? List.of(updates)
+                : List.of(creations, relationships, geometries, updates)) {
+          for (var statement : phase.entrySet()) {
+            var result = transaction.run(statement.getKey(), Map.of("batch", statement.getValue()));
+            if (phase == geometries) {
+              for (var record : result.list()) {
+                mergedGeometries.put(record.get("hash").asString(), record.get("id").asLong());
+              }
+            } else {
+              result.consume();
+            }
+          }
+        }
+        return true;
+      } catch (Throwable t) {
+        if (scope != null) {
+          scope.error(t.getMessage(), t);
+        } else {
+          Logging.INSTANCE.error(t);
+        }
+        return false;
+      } finally {
+        creations.clear();
+        relationships.clear();
+        geometries.clear();
+        updates.clear();
+        linkedGeometries.clear();
+      }
+    }
   }
 
   private String matchAsset(RuntimeAsset asset, String name, String queryVariable) {
+    return name + "." + keyProperty(asset) + " = $" + queryVariable;
+  }
+
+  /** The property that identifies the node for the asset. */
+  private String keyProperty(RuntimeAsset asset) {
 
     var ret =
         switch (asset) {
-          case Activity activity -> name + ".id = $" + queryVariable;
-          case Observation observation -> name + ".id = $" + queryVariable;
-          case Actuator actuator -> name + ".id = $" + queryVariable;
-          case Storage.Buffer actuator -> name + ".id = $" + queryVariable;
-          case Agent agent -> name + ".name = $" + queryVariable;
+          case Activity activity -> "id";
+          case Observation observation -> "id";
+          case Actuator actuator -> "id";
+          case Storage.Buffer actuator -> "id";
+          case Agent agent -> "name";
           default -> null;
         };
 
     if (ret == null) {
       ret =
           switch (asset.classify()) {
-            case ARTIFACT, DATAFLOW, PROVENANCE, DATA -> name + ".id = $" + queryVariable;
+            case ARTIFACT, DATAFLOW, PROVENANCE, DATA -> "id";
             default -> throw new KlabIllegalStateException("Unexpected value: " + asset.classify());
           };
     }
 
-    return ret == null ? (ret = name + ".id = $" + queryVariable) : ret;
+    return ret;
   }
 
   private Object getId(RuntimeAsset asset) {
@@ -1135,25 +1351,250 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
   }
 
   @Override
-  protected synchronized long nextKey() {
-    var ret = -1L;
-    var lastActivity = System.currentTimeMillis();
-    var result = query("MATCH (n:Statistics) return n.nextId", Map.of(), scope);
-    if (result != null) {
-      if (result.records().isEmpty()) {
-        ret = 1;
-        query("CREATE (n:Statistics {nextId: 1})", Map.of(), scope);
-      } else {
-        var id = result.records().getFirst().get(result.keys().getFirst()).asLong();
-        ret = id + 1;
-        query(
-            "MATCH (n:Statistics) WHERE n.nextId = $id SET n.nextId = $nextId, n.lastActivity = "
-                + "$lastActivity",
-            Map.of("id", id, "nextId", ret, "lastActivity", lastActivity),
-            scope);
+  protected long nextKey() {
+    return keys.next();
+  }
+
+  /**
+   * High/low allocator for the node IDs. Blocks of IDs are reserved with a single atomic update of
+   * the high-water mark in the Statistics node, then handed out without locking until exhausted.
+   * Contextualized graphs share the allocator of the graph they come from.
+   */
+  protected class KeyAllocator {
+
+    private static final long BLOCK_SIZE = 1000;
+
+    private record Block(AtomicLong next, long end) {}
+
+    private volatile Block block = new Block(new AtomicLong(), 0);
+
+    /**
+     * @return the next unique ID, or -1 if the database is not available
+     */
+    public long next() {
+      while (true) {
+        var current = block;
+        long ret = current.next().getAndIncrement();
+        if (ret < current.end()) {
+          return ret;
+        }
+        if (!reserve(current)) {
+          return -1;
+        }
       }
     }
-    return ret;
+
+    private synchronized boolean reserve(Block exhausted) {
+      if (block != exhausted) {
+        // reserved by another thread while we were waiting
+        return true;
+      }
+      if (!isOnline()) {
+        return false;
+      }
+      try {
+        var result =
+            driver
+                .executableQuery(Queries.RESERVE_KEYS)
+                .withParameters(
+                    Map.of("blockSize", BLOCK_SIZE, "lastActivity", System.currentTimeMillis()))
+                .execute();
+        long highWaterMark = result.records().getFirst().get(0).asLong();
+        block = new Block(new AtomicLong(highWaterMark - BLOCK_SIZE + 1), highWaterMark + 1);
+        return true;
+      } catch (Throwable t) {
+        Logging.INSTANCE.error("Cannot reserve knowledge graph IDs", t);
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Statistics on the use of the session pool, to tell whether queries are waiting for sessions.
+   *
+   * @param size the number of sessions available to auto-commit queries
+   * @param active the queries running now
+   * @param peak the maximum number of queries that ran at the same time
+   * @param queries the total number of queries run
+   * @param waits the number of queries that had to wait for a session
+   * @param waitMillis the total time spent waiting for sessions
+   * @param transactions the operation transactions open now
+   */
+  public record SessionStatistics(
+      int size,
+      int active,
+      int peak,
+      long queries,
+      long waits,
+      long waitMillis,
+      int transactions) {}
+
+  /**
+   * Bounds the number of concurrent auto-commit queries so that parallel contextualization cannot
+   * exhaust the driver's connection pool, and records the back-pressure it applies. Operation
+   * transactions are not bounded, as queries are issued while they are open, but are counted; the
+   * driver's connection pool is left at its default size so that they do not compete with the
+   * pooled queries for connections.
+   */
+  protected class SessionPool {
+
+    private static final long SLOW_WAIT_MILLIS = 1000;
+
+    private final int size;
+    private final Semaphore permits;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    private final AtomicInteger transactions = new AtomicInteger();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    protected SessionPool(int size) {
+      this.size = Math.max(1, size);
+      this.permits = new Semaphore(this.size, true);
+    }
+
+    void acquire() throws InterruptedException {
+      if (!permits.tryAcquire()) {
+        long start = System.nanoTime();
+        permits.acquire();
+        long waited = System.nanoTime() - start;
+        waits.incrementAndGet();
+        waitNanos.addAndGet(waited);
+        if (TimeUnit.NANOSECONDS.toMillis(waited) > SLOW_WAIT_MILLIS) {
+          Logging.INSTANCE.debug(
+              "Knowledge graph query waited "
+                  + TimeUnit.NANOSECONDS.toMillis(waited)
+                  + "ms for one of "
+                  + size
+                  + " sessions");
+        }
+      }
+      queries.incrementAndGet();
+      peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+    }
+
+    void release() {
+      active.decrementAndGet();
+      permits.release();
+    }
+
+    void transactionOpened() {
+      transactions.incrementAndGet();
+    }
+
+    void transactionClosed() {
+      transactions.decrementAndGet();
+    }
+
+    SessionStatistics getStatistics() {
+      return new SessionStatistics(
+          size,
+          active.get(),
+          peak.get(),
+          queries.get(),
+          waits.get(),
+          TimeUnit.NANOSECONDS.toMillis(waitNanos.get()),
+          transactions.get());
+    }
+  }
+
+  /**
+   * The current use of the session pool shared by this graph and all its contextualized views.
+   *
+   * @return
+   */
+  public SessionStatistics getSessionStatistics() {
+    return sessions.getStatistics();
+  }
+
+  /**
+   * Retrieve a resolved dataflow stored with {@link #putResolution(String, long, String, long)}.
+   *
+   * @param key
+   * @return the ID of the observation the dataflow was resolved for and the dataflow, or null
+   */
+  public Pair<Long, String> getResolution(String key) {
+    var result = query(Queries.GET_RESOLUTION, Map.of("key", key), scope);
+    if (result == null || result.records().isEmpty()) {
+      return null;
+    }
+    var record = result.records().getFirst();
+    return Pair.of(record.get("targetId").asLong(), record.get("dataflow").asString());
+  }
+
+  /**
+   * Store a resolved dataflow independent of any context, replacing any previous one with the
+   * same key.
+   *
+   * @param key
+   * @param targetId the ID of the observation the dataflow was resolved for
+   * @param dataflow the serialized dataflow
+   * @param version the version of the knowledge the dataflow was resolved with
+   */
+  public void putResolution(String key, long targetId, String dataflow, long version) {
+    query(
+        Queries.PUT_RESOLUTION,
+        Map.of(
+            "key", key,
+            "targetId", targetId,
+            "dataflow", dataflow,
+            "version", version,
+            "created", System.currentTimeMillis()),
+        scope);
+  }
+
+  /**
+   * The version of the knowledge that stored resolutions must have been made with.
+   *
+   * @return the version, 0 if the graph has never recorded one
+   */
+  public long getKnowledgeVersion() {
+    var result = query(Queries.GET_KNOWLEDGE_VERSION, Map.of(), scope);
+    if (result == null || result.records().isEmpty()) {
+      return 0;
+    }
+    var version = result.records().getFirst().get("version");
+    return version.isNull() ? 0 : version.asLong();
+  }
+
+  /**
+   * Increment and return the knowledge version. The result is never below the passed minimum, so
+   * that versions keep increasing if the graph has been cleared since they were read.
+   *
+   * @param minimum
+   * @return the new version
+   */
+  public long nextKnowledgeVersion(long minimum) {
+    var result = query(Queries.NEXT_KNOWLEDGE_VERSION, Map.of("minimum", minimum), scope);
+    if (result == null || result.records().isEmpty()) {
+      return minimum;
+    }
+    return result.records().getFirst().get("version").asLong();
+  }
+
+  /**
+   * The fingerprint of the content of the resources services that the stored resolutions were
+   * made with, as recorded by {@link #setResourcesContent(String)}.
+   *
+   * @return the fingerprint or null
+   */
+  public String getResourcesContent() {
+    var result = query(Queries.GET_KNOWLEDGE_VERSION, Map.of(), scope);
+    if (result == null || result.records().isEmpty()) {
+      return null;
+    }
+    var content = result.records().getFirst().get("content");
+    return content.isNull() ? null : content.asString();
+  }
+
+  public void setResourcesContent(String content) {
+    query(Queries.SET_RESOURCES_CONTENT, Map.of("content", content), scope);
+  }
+
+  /** Remove all the stored resolutions. */
+  public void clearResolutions() {
+    query(Queries.CLEAR_RESOLUTIONS, Map.of(), scope);
   }
 
   @Override
@@ -1333,7 +1774,11 @@ public abstract class KnowledgeGraphNeo4j extends AbstractKnowledgeGraph {
       }
     }
 
-    var result = query(query.append(") return o").toString(), queryParameters, scope);
+    var result =
+        query(
+            query.append(")").append(Queries.OBSERVATION_PROJECTION).toString(),
+            queryParameters,
+            scope);
     return adapt(result, Observation.class, scope);
   }
 
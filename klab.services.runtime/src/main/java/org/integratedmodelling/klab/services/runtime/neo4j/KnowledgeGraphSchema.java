@@ -0,0 +1,116 @@
+package org.integratedmodelling.klab.services.runtime.neo4j;
+
+import java.util.List;
+import java.util.Map;
+import org.integratedmodelling.common.logging.Logging;
+import org.integratedmodelling.klab.api.exceptions.KlabIllegalStateException;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+/**
+ * The constraints and indexes of the knowledge graph, versioned alongside the data. Each entry in
+ * {@link #MIGRATIONS} upgrades the schema by one version and is never modified once released: new
+ * indexes go in a new entry at the end. The version reached is recorded in the singleton {@code
+ * :Schema} node, so that opening an existing database only applies the migrations it hasn't seen.
+ * All statements are idempotent, so a crash between the schema changes and the version update is
+ * harmless.
+ */
+public class KnowledgeGraphSchema {
+
+  /** Schema statements by version: entry {@code i} brings the schema to version {@code i + 1}. */
+  static final List<List<String>> MIGRATIONS =
+      List.of(
+          List.of(
+              // identities assigned by the key allocator or derived from the context ID
+              "CREATE CONSTRAINT context_id IF NOT EXISTS FOR (n:Context) REQUIRE n.id IS UNIQUE",
+              "CREATE CONSTRAINT observation_id IF NOT EXISTS FOR (n:Observation) REQUIRE n.id IS"
+                  + " UNIQUE",
+              "CREATE CONSTRAINT activity_id IF NOT EXISTS FOR (n:Activity) REQUIRE n.id IS UNIQUE",
+              "CREATE CONSTRAINT data_id IF NOT EXISTS FOR (n:Data) REQUIRE n.id IS UNIQUE",
+              "CREATE CONSTRAINT geometry_id IF NOT EXISTS FOR (n:Geometry) REQUIRE n.id IS UNIQUE",
+              "CREATE CONSTRAINT provenance_id IF NOT EXISTS FOR (n:Provenance) REQUIRE n.id IS"
+                  + " UNIQUE",
+              "CREATE CONSTRAINT dataflow_id IF NOT EXISTS FOR (n:Dataflow) REQUIRE n.id IS UNIQUE",
+              "CREATE CONSTRAINT agent_name IF NOT EXISTS FOR (n:Agent) REQUIRE n.name IS UNIQUE",
+              // actuator IDs are those of the observations they resolve, so not unique per se
+              "CREATE RANGE INDEX actuator_id IF NOT EXISTS FOR (n:Actuator) ON (n.id)",
+              "CREATE RANGE INDEX actuator_name IF NOT EXISTS FOR (n:Actuator) ON (n.name)",
+              // geometry definitions can exceed the range index key size, so only seek on size
+              "CREATE RANGE INDEX geometry_size IF NOT EXISTS FOR (n:Geometry) ON (n.size)",
+              "CREATE TEXT INDEX observation_semantics IF NOT EXISTS FOR (n:Observation) ON"
+                  + " (n.semantics)"),
+          List.of(
+              // geometries are identified by the content hash of their encoding
+              "CREATE CONSTRAINT geometry_hash IF NOT EXISTS FOR (n:Geometry) REQUIRE n.hash IS"
+                  + " UNIQUE"),
+          List.of(
+              // cached resolutions by hash of the conditions they were resolved under
+              "CREATE CONSTRAINT resolution_key IF NOT EXISTS FOR (n:Resolution) REQUIRE n.key IS"
+                  + " UNIQUE"));
+
+  static final String GET_VERSION = "MATCH (s:Schema) RETURN s.version AS version";
+  static final String SET_VERSION = "MERGE (s:Schema) SET s.version = $version, s.updated = $now";
+  static final String AWAIT_INDEXES = "CALL db.awaitIndexes($timeout)";
+
+  private static final long INDEX_TIMEOUT_SECONDS = 300;
+
+  /**
+   * The schema version implemented by this code.
+   *
+   * @return
+   */
+  public static int currentVersion() {
+    return MIGRATIONS.size();
+  }
+
+  /**
+   * The schema version stored in the database, 0 if the database has never been configured.
+   *
+   * @param database
+   * @return
+   */
+  public static int storedVersion(GraphDatabaseService database) {
+    return database.executeTransactionally(
+        GET_VERSION,
+        Map.of(),
+        result ->
+            result.hasNext() && result.next().get("version") instanceof Number version
+                ? version.intValue()
+                : 0);
+  }
+
+  /**
+   * Bring the schema of the passed database to {@link #currentVersion()}, waiting for any new index
+   * to come online so that the planner can use it from the first query.
+   *
+   * @param database
+   * @return the version found before the upgrade
+   * @throws KlabIllegalStateException if the database was created by a newer version of the code
+   */
+  public static int apply(GraphDatabaseService database) {
+
+    int stored = storedVersion(database);
+    if (stored > currentVersion()) {
+      throw new KlabIllegalStateException(
+          "knowledge graph schema version "
+              + stored
+              + " is newer than the supported version "
+              + currentVersion());
+    }
+
+    if (stored < currentVersion()) {
+      // schema changes cannot share a transaction with data changes, so each runs on its own
+      for (int version = stored; version < currentVersion(); version++) {
+        for (var statement : MIGRATIONS.get(version)) {
+          database.executeTransactionally(statement);
+        }
+      }
+      database.executeTransactionally(AWAIT_INDEXES, Map.of("timeout", INDEX_TIMEOUT_SECONDS));
+      database.executeTransactionally(
+          SET_VERSION, Map.of("version", currentVersion(), "now", System.currentTimeMillis()));
+      Logging.INSTANCE.info(
+          "Knowledge graph schema upgraded from version " + stored + " to " + currentVersion());
+    }
+
+    return stored;
+  }
+}
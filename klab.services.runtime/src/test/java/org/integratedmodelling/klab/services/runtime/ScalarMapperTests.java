@@ -0,0 +1,156 @@
+package org.integratedmodelling.klab.services.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongToDoubleFunction;
+import org.integratedmodelling.klab.api.exceptions.KlabValidationException;
+import org.integratedmodelling.klab.api.knowledge.observation.impl.ObservationImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** The fused kernel chain and the binding of the inputs of scalar calls to their dependencies. */
+class ScalarMapperTests {
+
+  private static final AtomicInteger sums = new AtomicInteger();
+  private static final AtomicInteger halvings = new AtomicInteger();
+
+  static double sum(double a, double b) {
+    sums.incrementAndGet();
+    return a + b;
+  }
+
+  // a context argument, a boxed result and null for nodata
+  static Double half(String label, double value) {
+    halvings.incrementAndGet();
+    return value > 100 ? null : value / 2;
+  }
+
+  static boolean odd(int value) {
+    return value % 2 != 0;
+  }
+
+  private static MethodHandle handle(String name, Class<?> returnType, Class<?>... parameters)
+      throws ReflectiveOperationException {
+    return MethodHandles.lookup()
+        .findStatic(ScalarMapperTests.class, name, MethodType.methodType(returnType, parameters));
+  }
+
+  private static ScalarMapper.CallStep step(
+      MethodHandle handle, List<Object> arguments, List<Integer> valueSlots, int inputs) {
+    return new ScalarMapper.CallStep(
+        null,
+        ScalarMapper.kernel(handle, arguments, valueSlots, null),
+        Arrays.asList(new ObservationImpl[inputs]));
+  }
+
+  /** sum(x, y) -> half("label", _) -> odd(_) */
+  private static ScalarMapper.Kernel chain(LongToDoubleFunction x, LongToDoubleFunction y)
+      throws ReflectiveOperationException {
+    var sum = handle("sum", double.class, double.class, double.class);
+    var half = handle("half", Double.class, String.class, double.class);
+    var odd = handle("odd", boolean.class, int.class);
+    var steps =
+        new ScalarMapper.Step[] {
+          step(sum, Arrays.asList(null, null), List.of(0, 1), 2),
+          step(half, Arrays.asList("label", null), List.of(1), 1),
+          step(odd, Arrays.asList((Object) null), List.of(0), 1)
+        };
+    return new ScalarMapper.Kernel(steps, new LongToDoubleFunction[][] {{x, y}, {null}, {null}});
+  }
+
+  @BeforeEach
+  void reset() {
+    sums.set(0);
+    halvings.set(0);
+  }
+
+  @Test
+  void composedChain() throws Exception {
+    var kernel = chain(offset -> offset, offset -> 10);
+    // (0 + 10) / 2 = 5, odd
+    assertEquals(1, kernel.evaluate(0));
+    // (4 + 10) / 2 = 7, odd
+    assertEquals(1, kernel.evaluate(4));
+    // (2 + 10) / 2 = 6, even
+    assertEquals(0, kernel.evaluate(2));
+    assertEquals(3, sums.get());
+    assertEquals(3, halvings.get());
+  }
+
+  @Test
+  void nodataInputSkipsTheChain() throws Exception {
+    var kernel = chain(offset -> offset == 1 ? Double.NaN : offset, offset -> 10);
+    assertTrue(Double.isNaN(kernel.evaluate(1)));
+    assertEquals(0, sums.get());
+    assertEquals(0, halvings.get());
+    assertEquals(0, kernel.evaluate(2));
+  }
+
+  @Test
+  void nullResultIsNodata() throws Exception {
+    var kernel = chain(offset -> offset, offset -> 100);
+    // 101 is halved to null, so the last step is not called
+    assertTrue(Double.isNaN(kernel.evaluate(1)));
+    assertEquals(1, sums.get());
+    assertEquals(1, halvings.get());
+    assertEquals(0, kernel.evaluate(0));
+  }
+
+  @Test
+  void inputsBoundByName() {
+    // the dependencies are in the opposite order of the parameters
+    assertEquals(
+        List.of("a", "b"),
+        ScalarMapper.bindInputs(List.of("a", "b"), Map.of(), List.of("b", "a"), false));
+  }
+
+  @Test
+  void inputsBoundByArgument() {
+    assertEquals(
+        List.of("elevation", "slope"),
+        ScalarMapper.bindInputs(
+            List.of("value", "slope"),
+            Map.of("value", "elevation"),
+            List.of("slope", "elevation"),
+            false));
+  }
+
+  @Test
+  void chainedInputIsNotBound() {
+    assertEquals(
+        Arrays.asList(null, "b"),
+        ScalarMapper.bindInputs(Arrays.asList(null, "b"), Map.of(), List.of("a", "b"), true));
+  }
+
+  @Test
+  void singleUnnamedInputTakesTheRemainingDependency() {
+    assertEquals(
+        List.of("a", "c"),
+        ScalarMapper.bindInputs(Arrays.asList("a", null), Map.of(), List.of("c", "a"), false));
+  }
+
+  @Test
+  void ambiguousInputsAreRejected() {
+    assertThrows(
+        KlabValidationException.class,
+        () ->
+            ScalarMapper.bindInputs(Arrays.asList(null, null), Map.of(), List.of("a", "b"), false));
+    assertThrows(
+        KlabValidationException.class,
+        () ->
+            ScalarMapper.bindInputs(
+                Arrays.asList((String) null), Map.of(), List.of("a", "b"), false));
+    assertThrows(
+        KlabValidationException.class,
+        () -> ScalarMapper.bindInputs(List.of("a", "b"), Map.of(), List.of("a"), false));
+  }
+}
@@ -0,0 +1,123 @@
+package org.integratedmodelling.klab.services.runtime.neo4j;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.integratedmodelling.klab.api.knowledge.observation.Observation;
+import org.integratedmodelling.klab.api.services.Reasoner;
+import org.integratedmodelling.klab.utilities.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Loads the 10^4 observations of a context from the embedded knowledge graph, comparing the single
+ * projection that returns each observation with its geometry against the former query per
+ * observation. The reasoner is stubbed, so this only measures the graph. The embedded database
+ * opens the bolt port, which must be free. Run with the main method or through the JMH runner on
+ * the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ObservationLoadingBenchmark {
+
+  private static final int OBSERVATIONS = 10000;
+  private static final int GEOMETRIES = 10;
+  private static final String CONTEXT_ID = "benchmark";
+  private static final String MATCH_OBSERVATIONS =
+      "MATCH (c:Context {id: $contextId})-[:HAS_CHILD]->(o:Observation)";
+
+  private Path directory;
+  private KnowledgeGraphNeo4JEmbedded graph;
+  private org.integratedmodelling.klab.api.scope.Scope scope;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+
+    this.directory = Files.createTempDirectory("klab-kg-benchmark");
+    this.graph = new KnowledgeGraphNeo4JEmbedded(directory);
+
+    var reasoner =
+        (Reasoner)
+            Proxy.newProxyInstance(
+                Reasoner.class.getClassLoader(),
+                new Class<?>[] {Reasoner.class},
+                (proxy, method, args) -> null);
+    this.scope =
+        (org.integratedmodelling.klab.api.scope.Scope)
+            Proxy.newProxyInstance(
+                org.integratedmodelling.klab.api.scope.Scope.class.getClassLoader(),
+                new Class<?>[] {org.integratedmodelling.klab.api.scope.Scope.class},
+                (proxy, method, args) ->
+                    "getService".equals(method.getName()) ? reasoner : null);
+
+    graph.query(
+        "CREATE (:Context {id: $contextId})"
+            + " WITH 1 AS x UNWIND range(0, $geometries - 1) AS i"
+            + " CREATE (:Geometry {id: i, hash: toString(i), size: 10000 * (i + 1),"
+            + " definition: 'S2(100,' + toString(100 * (i + 1)) + ')'})",
+        Map.of("contextId", CONTEXT_ID, "geometries", GEOMETRIES),
+        null);
+    graph.query(
+        "MATCH (c:Context {id: $contextId}) UNWIND range(0, $count - 1) AS i"
+            + " MATCH (g:Geometry {id: i % $geometries})"
+            + " CREATE (c)-[:HAS_CHILD]->(o:Observation {id: i, urn: 'obs' + toString(i),"
+            + " name: 'obs' + toString(i), observable: 'earth:Region', resolved: true})"
+            + "-[:HAS_GEOMETRY]->(g)",
+        Map.of("contextId", CONTEXT_ID, "count", OBSERVATIONS, "geometries", GEOMETRIES),
+        null);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    graph.shutdown();
+    Utils.Files.deleteQuietly(directory.toFile());
+  }
+
+  @Benchmark
+  public List<Observation> projection() {
+    return graph.adapt(
+        graph.query(
+            MATCH_OBSERVATIONS + KnowledgeGraphNeo4j.Queries.OBSERVATION_PROJECTION,
+            Map.of("contextId", CONTEXT_ID),
+            scope),
+        Observation.class,
+        scope);
+  }
+
+  @Benchmark
+  public List<Observation> queryPerObservation() {
+    return graph.adapt(
+        graph.query(MATCH_OBSERVATIONS + " RETURN o", Map.of("contextId", CONTEXT_ID), scope),
+        Observation.class,
+        scope);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(ObservationLoadingBenchmark.class.getSimpleName())
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,85 @@
+package org.integratedmodelling.runtime.tests.neo4j;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.Map;
+import org.integratedmodelling.klab.services.runtime.neo4j.KnowledgeGraphSchema;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.dbms.api.DatabaseManagementService;
+import org.neo4j.dbms.api.DatabaseManagementServiceBuilder;
+import org.neo4j.graphdb.ExecutionPlanDescription;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+/**
+ * Checks that the knowledge graph schema is applied once per version and that the lookups used by
+ * the knowledge graph are planned as index seeks rather than label scans.
+ */
+class KnowledgeGraphSchemaTest {
+
+  @TempDir static Path directory;
+
+  private static DatabaseManagementService managementService;
+  private static GraphDatabaseService database;
+
+  @BeforeAll
+  static void startDatabase() {
+    managementService =
+        new DatabaseManagementServiceBuilder(directory)
+            .setConfig(GraphDatabaseSettings.initial_default_database, "klab")
+            .build();
+    database = managementService.database("klab");
+    KnowledgeGraphSchema.apply(database);
+  }
+
+  @AfterAll
+  static void stopDatabase() {
+    managementService.shutdown();
+  }
+
+  @Test
+  void schemaIsVersioned() {
+    assertEquals(
+        KnowledgeGraphSchema.currentVersion(), KnowledgeGraphSchema.storedVersion(database));
+    // a second application finds the schema current and changes nothing
+    assertEquals(KnowledgeGraphSchema.currentVersion(), KnowledgeGraphSchema.apply(database));
+  }
+
+  @Test
+  void lookupsUseIndexes() {
+    assertIndexSeek("MATCH (ctx:Context {id: $id}) RETURN ctx", Map.of("id", "ctx"));
+    assertIndexSeek("MATCH (n:Observation {id: $id}) RETURN n", Map.of("id", 1L));
+    assertIndexSeek("MATCH (n:Activity {id: $id}) RETURN n", Map.of("id", 1L));
+    assertIndexSeek("MATCH (n:Actuator {id: $id}) RETURN n", Map.of("id", 1L));
+    assertIndexSeek("MATCH (n:Agent {name: $name}) RETURN n", Map.of("name", "k.LAB"));
+    assertIndexSeek(
+        "MATCH (o:Observation {semantics: $semantics}) RETURN o",
+        Map.of("semantics", "earth:Elevation"));
+    assertIndexSeek("MATCH (g:Geometry {id: $id}) RETURN g", Map.of("id", 1L));
+    assertIndexSeek("MATCH (g:Geometry {hash: $hash}) RETURN g", Map.of("hash", "S2"));
+  }
+
+  private static void assertIndexSeek(String query, Map<String, Object> parameters) {
+    var plan =
+        database.executeTransactionally(
+            "EXPLAIN " + query, parameters, result -> result.getExecutionPlanDescription());
+    assertTrue(usesIndexSeek(plan), () -> "no index seek in plan for " + query + ":\n" + plan);
+  }
+
+  private static boolean usesIndexSeek(ExecutionPlanDescription plan) {
+    if (plan.getName().contains("IndexSeek")) {
+      return true;
+    }
+    for (var child : plan.getChildren()) {
+      if (usesIndexSeek(child)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}